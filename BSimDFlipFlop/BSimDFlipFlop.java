@@ -1,5 +1,11 @@
 package BSimDFlipFlop;
 
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.FieldProbe;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.MultiSpeciesField;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.SpeciesField;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.DsysAnalyticStepper;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.InPlaceOdeSolver;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.InPlaceOdeSystem;
 import bsim.BSim;
 import bsim.BSimChemicalField;
 import bsim.BSimTicker;
@@ -9,7 +15,6 @@ import bsim.draw.BSimP3DDrawer;
 import bsim.export.BSimLogger;
 import bsim.export.BSimMovExporter;
 import bsim.export.BSimPngExporter;
-import bsim.ode.BSimOdeSolver;
 import bsim.ode.BSimOdeSystem;
 import bsim.particle.BSimBacterium;
 import processing.core.PGraphics3D;
@@ -63,16 +68,21 @@ public class BSimDFlipFlop {
 
         final double cellWallDiffusivity = 2.0;        // Cell wall diffusivity (Should be the same as eta in the GRN?)
         final int theInitialConditions = ICS_RANDOM;    // What initial conditions do we want to use?
+        final boolean analyticGrn = false;              // Advance the GRNs exactly between threshold crossings instead of with RK4
 
         // Set up the chemical field for AHL:
-        final BSimChemicalField field = new BSimChemicalField(sim, new int[]{25, 25, 25}, diffusivity, decayRate);
+        // (nothing deposits into it yet, so its updates are elided while it stays uniform)
+        final MultiSpeciesField field = new MultiSpeciesField(sim, 1, new int[]{25, 25, 25}, diffusivity, decayRate);
 
-        BSimChemicalField hField = new BSimChemicalField(sim, new int[]{(int) sim.getBound().x, (int) sim.getBound().y, 1}, diffusivity, decayRate);
-        BSimChemicalField iField = new BSimChemicalField(sim, new int[]{(int) sim.getBound().x, (int) sim.getBound().y, 1}, diffusivity, decayRate);
+        // The h, i, d, q and qc species share the grid, diffusivity and decay: one field, updated in one sweep
+        final MultiSpeciesField chemicals = new MultiSpeciesField(sim, 5, new int[]{(int) sim.getBound().x, (int) sim.getBound().y, 1}, diffusivity, decayRate);
 
-        BSimChemicalField dField = new BSimChemicalField(sim, new int[]{(int) sim.getBound().x, (int) sim.getBound().y, 1}, diffusivity, decayRate);
-        BSimChemicalField qField = new BSimChemicalField(sim, new int[]{(int) sim.getBound().x, (int) sim.getBound().y, 1}, diffusivity, decayRate);
-        BSimChemicalField qcField = new BSimChemicalField(sim, new int[]{(int) sim.getBound().x, (int) sim.getBound().y, 1}, diffusivity, decayRate);
+        BSimChemicalField hField = chemicals.species(0);
+        BSimChemicalField iField = chemicals.species(1);
+
+        BSimChemicalField dField = chemicals.species(2);
+        BSimChemicalField qField = chemicals.species(3);
+        BSimChemicalField qcField = chemicals.species(4);
 
         // ICs as in original DDEs
         hField.setConc(10.0);
@@ -84,7 +94,7 @@ public class BSimDFlipFlop {
          */
         class BSimDFlipFlopBacterium extends BSimBacterium {
             protected QuorumDFlipFlop repGRN;          // Instance of internal class
-            protected double[] y, yNew;                // Local values of ODE variables
+            protected double[] y;                      // Local values of ODE variables
 
             final double cellWallDiffusivity = 2.0;  // Cell wall diffusivity, taken from other implementations using BSimCapsuleBacterium
             BSimChemicalField hField;
@@ -93,6 +103,10 @@ public class BSimDFlipFlop {
             BSimChemicalField qField;
             BSimChemicalField qcField;
 
+            // Reads d, i, q and qc and deposits q and qc, with the cell's box index cached
+            FieldProbe probe;
+            final double[] levels = new double[4];
+
             public BSimDFlipFlopBacterium(BSim sim, Vector3d position, BSimChemicalField h, BSimChemicalField i, BSimChemicalField d, BSimChemicalField q, BSimChemicalField qc) {
                 super(sim, position);
 
@@ -106,6 +120,7 @@ public class BSimDFlipFlop {
                 dField = d;
                 qField = q;
                 qcField = qc;
+                probe = new FieldProbe(d, i, q, qc);
             }
 
             /*
@@ -126,32 +141,36 @@ public class BSimDFlipFlop {
                 double deltaChemQc;        // Change in qc chemical quantity
 
                 // external chemical level at position of the bacterium
-                externalChemD = dField.getConc(position);
-                externalChemCLK = iField.getConc(position);
-                externalChemQ = qField.getConc(position);
-                externalChemQc = qcField.getConc(position);
+                probe.gather(position, levels);
+                externalChemD = levels[0];
+                externalChemCLK = levels[1];
+                externalChemQ = levels[2];
+                externalChemQc = levels[3];
 
                 // Get the external chemical field level for the GRN ode system later on:
                 /* Qc for reverse! */
                 repGRN.setExternalLevel(externalChemQc, externalChemCLK);
 
                 // re-scaled time units
-                yNew = BSimOdeSolver.rungeKutta45(repGRN, sim.getTime() / 60, y, sim.getDt() / 60);
-                y = yNew;
+                if (analyticGrn) {
+                    repGRN.advanceAnalytic(sim.getTime() / 60, y, sim.getDt() / 60);
+                } else {
+                    InPlaceOdeSolver.rungeKutta45(repGRN, sim.getTime() / 60, y, sim.getDt() / 60);
+                }
 
                 // Adjust the external chemical field
                 deltaChemQ = externalChemQ - y[2];
                 deltaChemQc = externalChemQc - y[3];
 
                 // Changing external concentration
-                qField.addQuantity(position, cellWallDiffusivity * (-deltaChemQ));
-                qcField.addQuantity(position, cellWallDiffusivity * (-deltaChemQc));
+                probe.addQuantity(2, position, cellWallDiffusivity * (-deltaChemQ));
+                probe.addQuantity(3, position, cellWallDiffusivity * (-deltaChemQc));
             }
 
             /*
              * Representation of the D flip-flop ODE system with quorum coupling
              */
-            class QuorumDFlipFlop implements BSimOdeSystem {
+            class QuorumDFlipFlop implements BSimOdeSystem, InPlaceOdeSystem {
                 int numEq = 4;                       // System of 4 equations
 
                 private double D = 0;                // External D chemical level
@@ -176,12 +195,19 @@ public class BSimDFlipFlop {
                 private double dt1 = 0.0036;
                 private double dt2 = 0.0036;
 
+                private DsysAnalyticStepper analyticStepper;  // Created on first use
+
                 private double unitStep(double inp) {
                     return (inp < 0) ? 0 : 1;
                 }
 
                 public double[] derivativeSystem(double t, double[] y) {
                     double[] dy = new double[numEq];
+                    derivative(t, y, dy);
+                    return dy;
+                }
+
+                public void derivative(double t, double[] y, double[] dy) {
                     //a
                     dy[0] = a1 * unitStep(D - Kd1) * unitStep(Kd2 - CLK) + a2 * unitStep(Kd3 - y[1]) - dt1 * y[0];
                     //ac
@@ -195,8 +221,14 @@ public class BSimDFlipFlop {
                     dy[1] *= t;
                     dy[2] *= t;
                     dy[3] *= t;
+                }
 
-                    return dy;
+                // Advance y in place from t to t + h, exactly between threshold crossings
+                public void advanceAnalytic(double t, double[] y, double h) {
+                    if (analyticStepper == null) {
+                        analyticStepper = new DsysAnalyticStepper(a1, a2, a3, a4, Kd1, Kd2, Kd3, Kd4, Kd5, Kd6, Kd7, dt1, dt2);
+                    }
+                    analyticStepper.advance(D, CLK, y, t, t + h);
                 }
 
                 // Set up external chemical level
@@ -263,11 +295,7 @@ public class BSimDFlipFlop {
                 }
                 // Update the chemical field
                 field.update();
-                hField.update();
-                iField.update();
-                dField.update();
-                qField.update();
-                qcField.update();
+                chemicals.update();
             }
         });
 
@@ -351,42 +379,11 @@ public class BSimDFlipFlop {
             public final void during() {
                 String o = sim.getFormattedTime();
 
-                int[] iBoxes = iField.getBoxes();
-                double iConc = 0;
-                for (int i = 0; i < iBoxes[0]; i++) {
-                    for (int j = 0; j < iBoxes[1]; j++) {
-                        iConc += iField.getConc(i, j, 0);
-                    }
-                }
-
-                int[] hBoxes = hField.getBoxes();
-                double hConc = 0;
-                for (int i = 0; i < iBoxes[0]; i++) {
-                    for (int j = 0; j < iBoxes[1]; j++) {
-                        hConc += hField.getConc(i, j, 0);
-                    }
-                }
-
-                int[] qBoxes = qField.getBoxes();
-                double qConc = 0;
-                for (int i = 0; i < qBoxes[0]; i++) {
-                    for (int j = 0; j < qBoxes[1]; j++) {
-                        qConc += qField.getConc(i, j, 0);
-                    }
-                }
-
-                int[] qcBoxes = qcField.getBoxes();
-                double qcConc = 0;
-                for (int i = 0; i < qcBoxes[0]; i++) {
-                    for (int j = 0; j < qcBoxes[1]; j++) {
-                        qcConc += qcField.getConc(i, j, 0);
-                    }
-                }
-
-                iConc /= iBoxes[0] * iBoxes[1];
-                hConc /= hBoxes[0] * hBoxes[1];
-                qConc /= qBoxes[0] * qBoxes[1];
-                qcConc /= qcBoxes[0] * qcBoxes[1];
+                //Average concentrations, maintained by the fields
+                double iConc = SpeciesField.mean(iField);
+                double hConc = SpeciesField.mean(hField);
+                double qConc = SpeciesField.mean(qField);
+                double qcConc = SpeciesField.mean(qcField);
                 write(o.replace(",", ".") + "," + String.format("%.0f", hConc) + "," + String.format("%.0f", iConc) + "," + String.format("%.0f", qConc) + "," + String.format("%.0f", qConc));
 
                 if (sim.getSimulationTime() % 100 == 0) {
@@ -402,6 +399,13 @@ public class BSimDFlipFlop {
                 // Elapsed time (real time)
                 tEnd = Calendar.getInstance().getTimeInMillis();
                 write("Elapsed time (sec)," + ((tEnd - tStart) / 1000.0));
+
+                // Field updates skipped while the fields were uniform
+                String[] names = {"h", "i", "d", "q", "qc"};
+                for (int s = 0; s < names.length; s++) {
+                    write("Elided updates " + names[s] + "," + chemicals.getElidedUpdates(s) + "/" + chemicals.getUpdates());
+                }
+                write("Elided updates AHL," + field.getElidedUpdates(0) + "/" + field.getUpdates());
                 super.after();
             }
         };
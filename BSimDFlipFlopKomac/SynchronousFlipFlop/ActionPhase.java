@@ -0,0 +1,213 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The action phase of a tick as gather, compute and scatter stages, run on a work-stealing pool.
+ *
+ * The cells are split into species partitions (Partition), each with its own loops over its own typed list of
+ * cells. A loop over all cells would call action() and exchange() of three cell classes at one call site,
+ * which the JIT can then neither inline nor predict; in a partition's loop the site only ever sees one class.
+ *
+ *   1. gather: every cell's action(), which moves it and reads the field levels at its position into its
+ *      GRN inputs, one partition after the other. The fields are only read (deposits are deferred until the
+ *      field update), and each cell only writes its own state and its own population slot.
+ *   2. compute: the GRN populations advance, alongside each other. Each splits its cells over the pool: the
+ *      D population per step, the activator and repressor populations per stage of each of their adaptive
+ *      steps (one step size for the whole population, with the error norm reduced over the chunks).
+ *   3. scatter: exchange() of every cell, one partition after the other on the caller's thread, so the
+ *      deposits into the fields are made in the same order as by a serial ticker.
+ *
+ * The compute stage gives the same GRN states for any number of threads: every cell is advanced with the same
+ * operations, and the populations do not share state. With determinism set (the default) the gather stage
+ * runs serially in cell order, so a run is bit-identical to the serial ticker. Without it the gather stage runs
+ * in parallel too, and the cells' movement draws from the simulation's random number generator in whatever
+ * order the threads reach them.
+ *
+ * Each partition keeps the time spent in each stage, for the tick profile.
+ */
+public class ActionPhase {
+
+    // Fewest cells worth a task of their own in the gather stage
+    private static final int MIN_CHUNK = 256;
+
+    // null for a serial action phase
+    private final ForkJoinPool pool;
+    private final boolean deterministic;
+
+    /**
+     * The cells of one species, and the kernels of each stage for them.
+     */
+    public abstract static class Partition {
+
+        private final String name;
+
+        // Time spent in each stage since the last reset, in nanoseconds
+        private long gatherTime = 0;
+        private long computeTime = 0;
+        private long scatterTime = 0;
+
+        protected Partition(String _name) {
+            this.name = _name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return number of cells in the partition
+         */
+        public abstract int size();
+
+        /**
+         * action() of cells [from, to) of the partition.
+         */
+        protected abstract void gather(int from, int to);
+
+        /**
+         * Advance the partition's GRN population from t by h (GRN time units), splitting its cells over the pool
+         * if it can (pool is null for a serial step).
+         */
+        protected abstract void compute(double t, double h, ForkJoinPool pool);
+
+        /**
+         * exchange() of every cell of the partition, in order.
+         */
+        protected abstract void scatter();
+
+        /**
+         * @return time spent in gather, compute and scatter since the last reset, in ms
+         */
+        public String profile() {
+            return name + " " + size() + ": gather " + gatherTime/1e6 + " ms, GRN " + computeTime/1e6
+                    + " ms, exchange " + scatterTime/1e6 + " ms";
+        }
+
+        public void resetProfile() {
+            gatherTime = 0;
+            computeTime = 0;
+            scatterTime = 0;
+        }
+    }
+
+    /**
+     * @param threads       1 is serial, 0 uses all available processors
+     * @param deterministic keep the gather stage in cell order
+     */
+    public ActionPhase(int threads, boolean deterministic) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Number of action threads must be at least 0 (got " + threads + ")");
+        }
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.pool = (threads > 1) ? new ForkJoinPool(threads) : null;
+        this.deterministic = deterministic;
+    }
+
+    public int getThreads() {
+        return (pool == null) ? 1 : pool.getParallelism();
+    }
+
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /**
+     * Stage 1: action() of every cell, partition by partition.
+     */
+    public void gather(Partition... partitions) {
+        for (Partition partition : partitions) {
+            long start = System.nanoTime();
+            int size = partition.size();
+            if (pool == null || deterministic || size < 2*MIN_CHUNK) {
+                partition.gather(0, size);
+            } else {
+                int chunk = Math.max(MIN_CHUNK, size/(4*pool.getParallelism()));
+                pool.invoke(new Gather(partition, 0, size, chunk));
+            }
+            partition.gatherTime += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Stage 2: advance the GRN populations of the partitions from t by h (GRN time units).
+     */
+    public void compute(final double t, final double h, Partition... partitions) {
+        if (pool == null) {
+            for (Partition partition : partitions) {
+                long start = System.nanoTime();
+                partition.compute(t, h, null);
+                partition.computeTime += System.nanoTime() - start;
+            }
+            return;
+        }
+
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (final Partition partition : partitions) {
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    long start = System.nanoTime();
+                    partition.compute(t, h, pool);
+                    partition.computeTime += System.nanoTime() - start;
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Stage 3: exchange() of every cell, partition by partition, on this thread.
+     */
+    public void scatter(Partition... partitions) {
+        for (Partition partition : partitions) {
+            long start = System.nanoTime();
+            partition.scatter();
+            partition.scatterTime += System.nanoTime() - start;
+        }
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * gather() of cells [from, to) of a partition, split in halves until at most chunk long.
+     */
+    private static final class Gather extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Partition partition;
+        private final int from, to, chunk;
+
+        Gather(Partition _partition, int _from, int _to, int _chunk) {
+            this.partition = _partition;
+            this.from = _from;
+            this.to = _to;
+            this.chunk = _chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                partition.gather(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Gather(partition, from, mid, chunk), new Gather(partition, mid, to, chunk));
+        }
+    }
+}
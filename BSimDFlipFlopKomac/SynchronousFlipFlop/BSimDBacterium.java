@@ -1,16 +1,18 @@
 package BSimDFlipFlopKomac.SynchronousFlipFlop;
 
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.FieldProbe;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.Dsys;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.DsysPopulation;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.InPlaceOdeSolver;
 import bsim.BSim;
 import bsim.BSimChemicalField;
 import bsim.capsule.BSimCapsuleBacterium;
-import bsim.ode.BSimOdeSolver;
 
 import javax.vecmath.Vector3d;
 
 public class BSimDBacterium extends BSimCapsuleBacterium {
     protected Dsys odesys;	// Instance of ODE system
-    protected double[] y, yNew;				// Local values of ODE variables
+    protected double[] y;				// Local values of ODE variables
     final double cellWallDiffusivity = 2.0; 		// Cell wall diffusivity, taken from other implementations using BSimCapsuleBacterium
     BSimChemicalField _h_field;
     BSimChemicalField _i_field;
@@ -18,6 +20,21 @@ public class BSimDBacterium extends BSimCapsuleBacterium {
     BSimChemicalField _q_field;
     BSimChemicalField _qc_field;
 
+    // Population-level integrator holding this cell's GRN state (null if the cell integrates its own state)
+    protected DsysPopulation population;
+    protected int slot = -1;
+
+    // External q and qc levels read in gather(), used by exchange()
+    protected double externalChemQ;
+    protected double externalChemQc;
+
+    // Reads d, i, q and qc and deposits q and qc, with the cell's box index cached
+    private final FieldProbe probe;
+    private final double[] levels = new double[4];
+
+    // Fixed in place (see immobilize)
+    protected boolean immobilized = false;
+
 
     public BSimDBacterium(BSim sim, Vector3d position, Vector3d position2, BSimChemicalField h_field, BSimChemicalField i_field, BSimChemicalField d_field, BSimChemicalField q_field, BSimChemicalField qc_field){
         super(sim, position, position2);
@@ -28,11 +45,68 @@ public class BSimDBacterium extends BSimCapsuleBacterium {
         this._q_field  = q_field;
         this._qc_field = qc_field;
 
+        this.probe = new FieldProbe(d_field, i_field, q_field, qc_field);
+
         // Create the parameters and initial conditions for the ODE system
         odesys = new Dsys();
         y = odesys.getICs();
     }
 
+    /**
+     * Store the GRN state of this cell in a population-level integrator.
+     * The cell will then no longer integrate its own state in action(); instead the ticker calls
+     * population.step() once for all cells, followed by exchange() on every cell.
+     */
+    public void setPopulation(DsysPopulation _population) {
+        this.population = _population;
+        this.slot = _population.add(y);
+    }
+
+    /**
+     * Remove this cell from its population-level integrator (if any), e.g. when the cell dies.
+     */
+    public void leavePopulation() {
+        if (population != null) {
+            y = getState();
+            population.remove(slot);
+            population = null;
+            slot = -1;
+        }
+    }
+
+    /**
+     * @return state variable i (0: a, 1: ac, 2: q, 3: qc) of the GRN
+     */
+    public double getState(int i) {
+        return (population == null) ? y[i] : population.get(slot, i);
+    }
+
+    /**
+     * @return a copy of the current GRN state
+     */
+    public double[] getState() {
+        double[] state = new double[odesys.getNumEq()];
+        if (population == null) {
+            System.arraycopy(y, 0, state, 0, state.length);
+        } else {
+            population.getState(slot, state);
+        }
+        return state;
+    }
+
+    /**
+     * Fix the cell in place, for simulations without growth: action() then skips the capsule mechanics, and the
+     * field boxes the cell reads and writes are fixed to those at its current position.
+     */
+    public void immobilize() {
+        immobilized = true;
+        probe.freeze(position);
+    }
+
+    public boolean isImmobilized() {
+        return immobilized;
+    }
+
     /*
      * Action each time step
      */
@@ -40,37 +114,58 @@ public class BSimDBacterium extends BSimCapsuleBacterium {
     public void action() {
 
         // Movement
-        super.action();
+        if (!immobilized) {
+            super.action();
+        }
+
+        gather();
+
+        if (population == null) {
+            // re-scaled time units
+            InPlaceOdeSolver.rungeKutta45(odesys, sim.getTime()/60, y, sim.getDt()/60);
+
+            exchange();
+        }
+    }
 
+    /**
+     * Read the external chemical levels at the position of the bacterium and pass them to the GRN.
+     */
+    public void gather() {
         // Chemical fields concentrations
         double externalChemD;	// External data chem. field
         double externalChemCLK;	// External clock chem. field
-        double externalChemQ;	// External q chem. field
-        double externalChemQc;	// External qc chem. field
-        double deltaChemQ;		// Change in q chemical quantity
-        double deltaChemQc;		// Change in qc chemical quantity
 
         // external chemical level at position of the bacterium
-        externalChemD   = _d_field.getConc(position);
-        externalChemCLK = _i_field.getConc(position);
-        externalChemQ   = _q_field.getConc(position);
-        externalChemQc  = _qc_field.getConc(position);
+        probe.gather(position, levels);
+        externalChemD   = levels[0];
+        externalChemCLK = levels[1];
+        externalChemQ   = levels[2];
+        externalChemQc  = levels[3];
 
         // Get the external chemical field level for the GRN ode system later on:
         /* Qc for reverse! */
-        odesys.setExternalLevel(externalChemQc, externalChemCLK);
+        if (population == null) {
+            odesys.setExternalLevel(externalChemQc, externalChemCLK);
+        } else {
+            population.setExternalLevel(slot, externalChemQc, externalChemCLK);
+        }
+    }
 
-        // re-scaled time units
-        yNew = BSimOdeSolver.rungeKutta45(odesys, sim.getTime()/60, y, sim.getDt()/60);
-        y = yNew;
+    /**
+     * Exchange q and qc with the external fields across the cell wall, based on the current GRN state.
+     */
+    public void exchange() {
+        double deltaChemQ;		// Change in q chemical quantity
+        double deltaChemQc;		// Change in qc chemical quantity
 
         // Adjust the external chemical field
-        deltaChemQ  = externalChemQ  - y[2];
-        deltaChemQc = externalChemQc - y[3];
+        deltaChemQ  = externalChemQ  - getState(2);
+        deltaChemQc = externalChemQc - getState(3);
 
         // Changing external concentration
-        _q_field.addQuantity(position, cellWallDiffusivity*(-deltaChemQ));
-        _qc_field.addQuantity(position, cellWallDiffusivity*(-deltaChemQc));
+        probe.addQuantity(2, position, cellWallDiffusivity*(-deltaChemQ));
+        probe.addQuantity(3, position, cellWallDiffusivity*(-deltaChemQc));
     }
 
     @Override
@@ -108,12 +203,13 @@ public class BSimDBacterium extends BSimCapsuleBacterium {
         double[] child_state = new double[this.odesys.getNumEq()];
 
         // Store the current state of the ODE system:
-        System.arraycopy(this.y, 0, new_state, 0, this.odesys.getNumEq());
-        System.arraycopy(this.y, 0, child_state, 0, this.odesys.getNumEq());
+        double[] current_state = getState();
+        System.arraycopy(current_state, 0, new_state, 0, this.odesys.getNumEq());
+        System.arraycopy(current_state, 0, child_state, 0, this.odesys.getNumEq());
 
         // Iterate to length-1 as we don't care about time
-        for(int i = 0; i < y.length; i++){
-            double pert_state = 0.1*rng.nextGaussian()*this.y[i];
+        for(int i = 0; i < current_state.length; i++){
+            double pert_state = 0.1*rng.nextGaussian()*current_state[i];
 
             new_state[i] = new_state[i] + pert_state;
             child_state[i] = child_state[i] - pert_state;
@@ -130,6 +226,10 @@ public class BSimDBacterium extends BSimCapsuleBacterium {
 
         child.L = L2;
 
+        if (population != null) {
+            child.setPopulation(population);
+        }
+
         System.out.println("Child ID id " + child.id);
 
         return child;
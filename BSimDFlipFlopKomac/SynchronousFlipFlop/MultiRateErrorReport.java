@@ -0,0 +1,112 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Error report of a multi-rate run against the single-rate baseline (see MultiRateSchedule).
+ *
+ * Compares two Concentrations_average.csv files written by SynchronousFlipFlop, row by row at matching
+ * times, and prints per field the largest absolute error, the largest error relative to the range of the
+ * baseline, the RMS error and the time of the largest error. Any two runs can be compared the same way, e.g. a
+ * run with -singlefields against one with double-precision fields.
+ *
+ * Usage: MultiRateErrorReport baseline/Concentrations_average.csv multirate/Concentrations_average.csv
+ */
+public class MultiRateErrorReport {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: MultiRateErrorReport <baseline csv> <multi-rate csv>");
+            System.exit(1);
+        }
+
+        List<String> header = new ArrayList<String>();
+        Map<String, double[]> baseline = read(args[0], header);
+        Map<String, double[]> multiRate = read(args[1], new ArrayList<String>());
+
+        int columns = header.size() - 1;
+        double[] min = new double[columns];
+        double[] max = new double[columns];
+        double[] maxError = new double[columns];
+        double[] sumSquares = new double[columns];
+        String[] maxErrorTime = new String[columns];
+        for (int c = 0; c < columns; c++) {
+            min[c] = Double.POSITIVE_INFINITY;
+            max[c] = Double.NEGATIVE_INFINITY;
+        }
+
+        int rows = 0;
+        for (Map.Entry<String, double[]> row : baseline.entrySet()) {
+            double[] b = row.getValue();
+            double[] m = multiRate.get(row.getKey());
+            if (m == null) {
+                continue;
+            }
+            rows++;
+
+            for (int c = 0; c < columns; c++) {
+                min[c] = Math.min(min[c], b[c]);
+                max[c] = Math.max(max[c], b[c]);
+
+                double e = Math.abs(m[c] - b[c]);
+                sumSquares[c] += e*e;
+                if (maxErrorTime[c] == null || e > maxError[c]) {
+                    maxError[c] = e;
+                    maxErrorTime[c] = row.getKey();
+                }
+            }
+        }
+
+        if (rows == 0) {
+            System.err.println("No matching times in " + args[0] + " and " + args[1]);
+            System.exit(1);
+        }
+
+        System.out.println("Compared " + rows + " of " + baseline.size() + " baseline rows.");
+        System.out.println("field, max abs error, max error / baseline range, RMS error, time of max error (s)");
+        for (int c = 0; c < columns; c++) {
+            double range = max[c] - min[c];
+            double relative = (range > 0) ? maxError[c]/range : 0;
+            System.out.println(header.get(c + 1) + ", " + maxError[c] + ", " + relative + ", "
+                    + Math.sqrt(sumSquares[c]/rows) + ", " + maxErrorTime[c]);
+        }
+    }
+
+    /**
+     * @return rows keyed by the time column, in file order
+     */
+    private static Map<String, double[]> read(String file, List<String> header) throws IOException {
+        Map<String, double[]> rows = new LinkedHashMap<String, double[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Empty file " + file);
+            }
+            for (String name : line.split(",")) {
+                header.add(name.trim());
+            }
+
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (fields.length != header.size()) {
+                    continue;
+                }
+                double[] values = new double[fields.length - 1];
+                for (int c = 1; c < fields.length; c++) {
+                    values[c - 1] = Double.parseDouble(fields[c]);
+                }
+                rows.put(fields[0].trim(), values);
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+}
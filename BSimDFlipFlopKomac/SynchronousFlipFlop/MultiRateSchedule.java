@@ -0,0 +1,153 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop;
+
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.MultiSpeciesField;
+import bsim.BSim;
+import bsim.BSimChemicalField;
+
+/**
+ * Multi-rate schedule for the chemical fields and the intracellular GRNs.
+ *
+ * The simulation tick (sim dt) is the exchange step: every tick each cell reads the field levels at its
+ * position (gather) and exchanges with the fields based on its latest GRN state. On top of that:
+ *   - the fields advance every tick, in fieldSubsteps diffusion/decay updates of dt/fieldSubsteps each;
+ *   - the GRN populations advance every grnInterval ticks, over the whole interval at once, with the field
+ *     levels gathered on the last tick of the interval held constant.
+ *
+ * Operator-splitting order within a tick (Lie splitting):
+ *   1. cell actions: movement and gather;
+ *   2. on the last tick of a GRN interval: GRN populations from the end of the previous interval to the end
+ *      of this tick;
+ *   3. exchange between cells and fields;
+ *   4. field updates.
+ *
+ * With grnInterval = fieldSubsteps = 1 this is exactly the single-rate ticker. The GRN state seen by the
+ * exchange lags the fields by at most grnInterval - 1 ticks; MultiRateErrorReport compares the
+ * logged concentrations with a single-rate run.
+ *
+ * grnInterval*dt must be shorter than the GRN lag. The D cell GRNs are integrated in RK4 substeps of at most
+ * one tick whatever the interval, as longer RK4 steps go unstable late in a run (see DsysPopulation). The
+ * accuracy still falls with the interval: at dt 0.25 s the fields stay within 0.4% (h, i) and 1.2% (q, qc)
+ * of the single-rate run at grnInterval 16, and within 1.6% and 5.2% at 60.
+ */
+public class MultiRateSchedule {
+
+    private final int grnInterval;
+    private final int fieldSubsteps;
+
+    // Time up to which the GRNs have been advanced (seconds)
+    private double grnTime;
+
+    private long grnSteps = 0;
+
+    /**
+     * @param startTime  simulation time of the first tick (seconds)
+     * @param dt         simulation tick (seconds)
+     * @param maxGrnStep bound on the GRN step grnInterval*dt (seconds): the lag of the delayed GRNs. A cell's
+     *                   field inputs are held over its whole GRN step, so a step as long as the lag would delay the
+     *                   coupling through the fields by more than the GRN's own delay.
+     */
+    public MultiRateSchedule(int _grnInterval, int _fieldSubsteps, double startTime, double dt, double maxGrnStep) {
+        if (_grnInterval < 1 || _fieldSubsteps < 1) {
+            throw new IllegalArgumentException("GRN interval and field substeps must be at least 1 (got "
+                    + _grnInterval + ", " + _fieldSubsteps + ")");
+        }
+        if (_grnInterval*dt >= maxGrnStep) {
+            throw new IllegalArgumentException("GRN interval of " + _grnInterval + " ticks (" + _grnInterval*dt
+                    + " s) must be shorter than the GRN lag of " + maxGrnStep + " s");
+        }
+        this.grnInterval = _grnInterval;
+        this.fieldSubsteps = _fieldSubsteps;
+        this.grnTime = startTime;
+    }
+
+    /**
+     * @return true if the GRNs are advanced on the current tick (the last tick of a GRN interval)
+     */
+    public boolean isGrnTick(BSim sim) {
+        return (sim.getTimestep() + 1) % grnInterval == 0;
+    }
+
+    /**
+     * @return the time (seconds) from which the next GRN step starts
+     */
+    public double getGrnTime() {
+        return grnTime;
+    }
+
+    /**
+     * Take a GRN step: from getGrnTime() to the end of the current tick.
+     * @return the step size (seconds)
+     */
+    public double advanceGrn(BSim sim) {
+        double end = sim.getTime() + sim.getDt();
+        double h = end - grnTime;
+        grnTime = end;
+        grnSteps++;
+        return h;
+    }
+
+    /**
+     * Advance the fields over one tick, in fieldSubsteps updates.
+     * BSimChemicalField.update() takes its step from the simulation, so the simulation dt is reduced for the
+     * duration of the updates.
+     */
+    public void updateFields(BSim sim, BSimChemicalField... fields) {
+        if (fieldSubsteps == 1) {
+            for (BSimChemicalField field : fields) {
+                field.update();
+            }
+            return;
+        }
+
+        double dt = sim.getDt();
+        sim.setDt(dt/fieldSubsteps);
+        try {
+            for (int s = 0; s < fieldSubsteps; s++) {
+                for (BSimChemicalField field : fields) {
+                    field.update();
+                }
+            }
+        } finally {
+            sim.setDt(dt);
+        }
+    }
+
+    /**
+     * Advance fused multi-species fields over one tick, in fieldSubsteps sweeps.
+     */
+    public void updateFields(BSim sim, MultiSpeciesField... fields) {
+        double dt = sim.getDt();
+        if (fieldSubsteps > 1) {
+            sim.setDt(dt/fieldSubsteps);
+        }
+        try {
+            for (int s = 0; s < fieldSubsteps; s++) {
+                for (MultiSpeciesField field : fields) {
+                    field.update();
+                }
+            }
+        } finally {
+            sim.setDt(dt);
+        }
+    }
+
+    public int getGrnInterval() {
+        return grnInterval;
+    }
+
+    public int getFieldSubsteps() {
+        return fieldSubsteps;
+    }
+
+    /**
+     * @return number of GRN steps taken so far
+     */
+    public long getGrnSteps() {
+        return grnSteps;
+    }
+
+    @Override
+    public String toString() {
+        return "GRN every " + grnInterval + " tick(s), " + fieldSubsteps + " field update(s) per tick";
+    }
+}
@@ -7,12 +7,17 @@ import bsim.capsule.BSimCapsuleBacterium;
 
 import javax.vecmath.Vector3d;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /**
  */
 public class PopulationGenerator {
 
+    // Candidates tried around an active sample before it is retired (Bridson's k)
+    private static final int POISSON_DISK_ATTEMPTS = 30;
+
     private Random bacRng;
 
     // Separate lists of bacteria in case we want to manipulate the species individually
@@ -56,6 +61,115 @@ public class PopulationGenerator {
         this.i_e_field = _i_e_field;
     }
 
+    /**
+     * Centres for n cells in the rectangle [xMin, xMax] x [yMin, yMax] (z = 0), no two closer than minDistance.
+     *
+     * The rectangle is first filled with a maximal Poisson-disk sample, with Bridson's algorithm: from a random
+     * first point, new points are tried in the ring [r, 2r] around randomly chosen active points, until no
+     * active point is left. Candidates are only checked against the points in the neighbouring cells of a
+     * background grid with cells r/sqrt(2) wide, which hold at most one point each, so the fill costs time
+     * proportional to the number of points, unlike testing every candidate against all cells placed so far.
+     * n of the points are then chosen at random, in random order, so that consecutive centres (e.g. those of
+     * one cell type) are spread over the whole rectangle rather than clustered around the first point.
+     *
+     * @throws IllegalArgumentException if the fill has fewer than n points: the density is too close to the
+     *                                  packing limit for random seeding (a Poisson-disk fill covers roughly two
+     *                                  thirds of a hexagonal packing)
+     */
+    public static List<Vector3d> poissonDisk(int n, double minDistance, double xMin, double yMin, double xMax, double yMax,
+                                             Random rng) {
+        final double width = xMax - xMin, height = yMax - yMin;
+        if (n < 0 || !(minDistance > 0) || !(width >= 0) || !(height >= 0)) {
+            throw new IllegalArgumentException("Invalid Poisson-disk seeding: " + n + " points at least " + minDistance
+                    + " apart in [" + xMin + ", " + xMax + "] x [" + yMin + ", " + yMax + "]");
+        }
+        List<Vector3d> centres = new ArrayList<Vector3d>(n);
+        if (n == 0) {
+            return centres;
+        }
+
+        final double r2 = minDistance*minDistance;
+        final double cell = minDistance/Math.sqrt(2);
+        final int nx = (int) Math.floor(width/cell) + 1;
+        final int ny = (int) Math.floor(height/cell) + 1;
+
+        // Index of the point in each grid cell, -1 if empty; points as x[i], y[i]
+        int[] grid = new int[nx*ny];
+        Arrays.fill(grid, -1);
+        double[] x = new double[64];
+        double[] y = new double[64];
+        int[] active = new int[64];
+        int count = 0, nActive = 0;
+
+        x[0] = xMin + rng.nextDouble()*width;
+        y[0] = yMin + rng.nextDouble()*height;
+        grid[Math.min((int) ((y[0] - yMin)/cell), ny - 1)*nx + Math.min((int) ((x[0] - xMin)/cell), nx - 1)] = 0;
+        active[nActive++] = count++;
+
+        while (nActive > 0) {
+            int a = rng.nextInt(nActive);
+            int p = active[a];
+            boolean placed = false;
+
+            candidates:
+            for (int attempt = 0; attempt < POISSON_DISK_ATTEMPTS; attempt++) {
+                // Uniform over the area of the ring [r, 2r]
+                double radius = minDistance*Math.sqrt(1 + 3*rng.nextDouble());
+                double angle = 2*Math.PI*rng.nextDouble();
+                double cx = x[p] + radius*Math.cos(angle);
+                double cy = y[p] + radius*Math.sin(angle);
+                if (cx < xMin || cx > xMax || cy < yMin || cy > yMax) {
+                    continue;
+                }
+
+                int gx = Math.min((int) ((cx - xMin)/cell), nx - 1);
+                int gy = Math.min((int) ((cy - yMin)/cell), ny - 1);
+                for (int j = Math.max(gy - 2, 0); j <= Math.min(gy + 2, ny - 1); j++) {
+                    for (int i = Math.max(gx - 2, 0); i <= Math.min(gx + 2, nx - 1); i++) {
+                        int q = grid[j*nx + i];
+                        if (q >= 0) {
+                            double dx = x[q] - cx, dy = y[q] - cy;
+                            if (dx*dx + dy*dy < r2) {
+                                continue candidates;
+                            }
+                        }
+                    }
+                }
+
+                if (count == x.length) {
+                    x = Arrays.copyOf(x, 2*count);
+                    y = Arrays.copyOf(y, 2*count);
+                    active = Arrays.copyOf(active, 2*count);
+                }
+                x[count] = cx;
+                y[count] = cy;
+                grid[gy*nx + gx] = count;
+                active[nActive++] = count++;
+                placed = true;
+                break;
+            }
+
+            if (!placed) {
+                active[a] = active[--nActive];
+            }
+        }
+
+        if (count < n) {
+            throw new IllegalArgumentException("Cannot seed " + n + " cells at least " + minDistance + " apart in "
+                    + width + " x " + height + ": the Poisson-disk fill holds " + count + " of them. "
+                    + "Reduce the population or enlarge the domain.");
+        }
+
+        // n of the points, in random order (partial Fisher-Yates shuffle)
+        for (int i = 0; i < n; i++) {
+            int j = i + rng.nextInt(count - i);
+            double t = x[i]; x[i] = x[j]; x[j] = t;
+            t = y[i]; y[i] = y[j]; y[j] = t;
+            centres.add(new Vector3d(x[i], y[i], 0));
+        }
+        return centres;
+    }
+
     /**
      * Generate an evenly spaced grid of points throughout the domain.
      * These can be used as a seeding for subsequent generation of bac agent positions.
@@ -1,10 +1,12 @@
 package BSimDFlipFlopKomac.SynchronousFlipFlop;
 
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.FieldProbe;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.ChenPopulationDDE;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.DelayRingBuffer;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.RepressorDDE;
 import bsim.BSim;
 import bsim.BSimChemicalField;
 import bsim.capsule.BSimCapsuleBacterium;
-import org.opensourcephysics.numerics.ode_interpolation.StateHistory;
 import org.opensourcephysics.numerics.ode_solvers.InterpolatorEventSolver;
 import org.opensourcephysics.numerics.ode_solvers.rk.BogackiShampine23;
 
@@ -20,10 +22,11 @@ public class RepressorBacterium extends BSimCapsuleBacterium {
 
     public RepressorDDE grn;
 
+    // Solver of a cell that integrates its own GRN (null until its first action())
     protected InterpolatorEventSolver solver;
 
-    public StateHistory getStateHistory() {
-        return solver.getStateHistory();
+    public DelayRingBuffer getDelayHistory() {
+        return grn.getHistory();
     }
 
     protected BSimChemicalField H_e_field;
@@ -31,6 +34,20 @@ public class RepressorBacterium extends BSimCapsuleBacterium {
 
     public double[] grn_state;
 
+    // Population-level integrator holding this cell's GRN state (null if the cell integrates its own state)
+    protected ChenPopulationDDE population;
+    protected int slot = -1;
+
+    // Reads and deposits H and I, with the cell's box index cached
+    protected FieldProbe probe;
+
+    // External H and I levels read in gather(), used by exchange()
+    protected double externalH;
+    protected double externalI;
+
+    // Fixed in place (see immobilize)
+    protected boolean immobilized = false;
+
     public RepressorBacterium(BSim sim, Vector3d px1, Vector3d px2, BSimChemicalField _H_e, BSimChemicalField _I_e, double[] _ICs){
         super(sim, px1, px2);
 
@@ -50,18 +67,32 @@ public class RepressorBacterium extends BSimCapsuleBacterium {
 
         this.H_e_field = _H_e;
         this.I_e_field = _I_e;
+        this.probe = new FieldProbe(_H_e, _I_e);
     }
 
     /**
-     * Set the grn, and initialise a solver for it.
+     * Set the grn. Its solver is created on the first action() that needs it, so a cell integrated by a
+     * population never allocates one.
      * @param _grn
      */
     public void setGrnAndSolver(RepressorDDE _grn){
         this.grn = _grn;
         this.grn_state = this.grn.getState();
+        this.solver = null;
 
+        if (population != null) {
+            // The population integrates this cell: restart it from the new state
+            population.remove(slot);
+            slot = population.add(grn_state);
+        }
+    }
+
+    /**
+     * Initialise a solver for the grn of a cell that integrates its own state.
+     */
+    private void initSolver() {
         // Solver and its parameters
-        solver = new InterpolatorEventSolver(new BogackiShampine23(), _grn);
+        solver = new InterpolatorEventSolver(new BogackiShampine23(), grn);
 
         double stepSize = sim.getDt()/100.0; // The initial step size (used by fixed step methods)
         double plotStepSize = sim.getDt()/60.0; // The step size for plotting the solution
@@ -73,46 +104,112 @@ public class RepressorBacterium extends BSimCapsuleBacterium {
         solver.setTolerances(absTol, relTol);
         //    eventSolver.setDDEIterations(500);
 //        solver.setHistoryLength(Double.POSITIVE_INFINITY); // Recall all past values
-        solver.setHistoryLength(8.0); // Recall all past values
+        solver.setHistoryLength(0.0); // The delay history is kept by the GRN itself
         solver.setEnableExceptions(false); // Do not throw exceptions when an error occurs
     }
 
+    /**
+     * Integrate the GRN of this cell in a population-level integrator.
+     * The cell will then no longer run its own solver in action(); instead the ticker calls
+     * population.step() once for all cells, followed by exchange() on every cell.
+     */
+    public void setPopulation(ChenPopulationDDE _population) {
+        this.population = _population;
+        this.slot = _population.add(grn_state);
+        this.solver = null;
+    }
+
+    /**
+     * Remove this cell from its population-level integrator (if any), e.g. when the cell dies.
+     * The cell gets its own solver back, with the current state as constant pre-history.
+     */
+    public void leavePopulation() {
+        if (population != null) {
+            population.remove(slot);
+            population = null;
+            slot = -1;
+            this.setGrnAndSolver(new RepressorDDE(grn_state));
+        }
+    }
+
+    /**
+     * Fix the cell in place, for simulations without growth: action() then skips the capsule mechanics, and the
+     * field boxes the cell reads and writes are fixed to those at its current position.
+     */
+    public void immobilize() {
+        immobilized = true;
+        probe.freeze(position);
+    }
+
+    public boolean isImmobilized() {
+        return immobilized;
+    }
+
     @Override
     public void action() {
-        super.action();
+        if (!immobilized) {
+            super.action();
+        }
+
+        gather();
+
+        if (population == null) {
+            if (solver == null) {
+                initSolver();
+            }
+
+            // Start the delay history from the initial state
+            if (grn.getHistory().isEmpty()) {
+                grn.recordHistory();
+            }
+
+            // Solve the dde system
+            // TODO: re-scale the time units correctly (GRN equations are in minutes, BSim works in seconds)
+            solver.step();
+            if (solver.getErrorCode()!=InterpolatorEventSolver.ERROR.NO_ERROR) {
+                System.err.println ("Error when advancing the solution from " + solver.getCurrentTime());
+                System.err.println ("Delay solver failed in Repressor bacterium " + id + ", ");
+                System.err.println ("With error: " + solver.getErrorCode());
+                System.exit(-42);
+//            return;
+            }
 
-        // Variables for chemical field response:
-        double h_e;	// External Q1
-        double i_e;	// External Q2
+            grn.recordHistory();
 
-        double h_Delta;		// Change in Q1
-        double i_Delta;		// Change in Q2
+            exchange();
+        }
+    }
 
+    /**
+     * Read the external chemical levels at the position of the bacterium and pass them to the GRN.
+     */
+    public void gather() {
         // external chemical level at position of the bacterium:
-        h_e = H_e_field.getConc(position);
-        i_e = I_e_field.getConc(position);
+        externalH = probe.getConc(0, position);
+        externalI = probe.getConc(1, position);
 
         // Get the external chemical field level for the GRN dde system later on:
-        grn.setExternalFieldLevel(h_e, i_e);
-
-        // Solve the dde system
-        // TODO: re-scale the time units correctly (GRN equations are in minutes, BSim works in seconds)
-        solver.step();
-        if (solver.getErrorCode()!=InterpolatorEventSolver.ERROR.NO_ERROR) {
-            System.err.println ("Error when advancing the solution from " + solver.getCurrentTime());
-            System.err.println ("Delay solver failed in Repressor bacterium " + id + ", ");
-            System.err.println ("With error: " + solver.getErrorCode());
-            System.exit(-42);
-//            return;
+        if (population == null) {
+            grn.setExternalFieldLevel(externalH, externalI);
+        } else {
+            population.setExternalLevel(slot, externalH, externalI);
         }
+    }
+
+    /**
+     * Exchange H and I with the external fields across the cell wall, based on the current GRN state.
+     */
+    public void exchange() {
+        double h_Delta;		// Change in Q1
+        double i_Delta;		// Change in Q2
 
         // Adjust the external chemical field
-        h_Delta = h_e - grn_state[5];
-        i_Delta = i_e - grn_state[6];
+        h_Delta = externalH - grn_state[5];
+        i_Delta = externalI - grn_state[6];
 
         // TODO: re-scale time units.
-        H_e_field.addQuantity(position, D_H*(-h_Delta)/60.0);
-        I_e_field.addQuantity(position, D_I*(-i_Delta)/60.0);
+        probe.addQuantity(0, position, D_H*(-h_Delta)/60.0);
+        probe.addQuantity(1, position, D_I*(-i_Delta)/60.0);
     }
 
     @Override
@@ -186,6 +283,9 @@ public class RepressorBacterium extends BSimCapsuleBacterium {
         // TODO? Ideally initialise all four co-ordinates, otherwise this operation is order-dependent
         // (this.xi could be overwritten before being passed to child for ex.)
         RepressorBacterium child = new RepressorBacterium(sim, x1_child, new Vector3d(this.x2), H_e_field, I_e_field, child_state);
+        if (population != null) {
+            child.setPopulation(population);
+        }
         this.initialise(L1, this.x1, x2_new);
         ///
         child.L = L2;
@@ -1,6 +1,12 @@
 package BSimDFlipFlopKomac.SynchronousFlipFlop;
 
 import BSimDFlipFlopKomac.SynchronousFlipFlop.ActivatorBacterium;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.MultiSpeciesField;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.SpeciesField;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.ChenPopulationDDE;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.DsysPopulation;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model.GrnCompiler;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model.GrnModels;
 import bsim.BSim;
 import bsim.BSimChemicalField;
 import bsim.BSimTicker;
@@ -22,6 +28,7 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Extended Chen oscillator in microfluidic chamber. Implemented synchronous master-slave D flip-flop
@@ -61,6 +68,57 @@ public class SynchronousFlipFlop {
     public List<Double> qsPars = new ArrayList<>(Arrays.asList(new Double[] {1., 1., 1., 1.}));
 
 
+    // D flip-flop GRN integration
+    @Parameter(names = "-analyticgrn", description = "Advance the D flip-flop GRNs exactly between threshold crossings instead of with RK4.")
+    private boolean analyticGrn = false;
+
+    // Chen GRN rate laws
+    @Parameter(names = "-compiledgrn", description = "Evaluate the activator and repressor GRNs with kernels compiled from their GrnModels (see GrnCompiler).")
+    private boolean compiledGrn = false;
+
+    // Activator and repressor GRN integration
+    @Parameter(names = "-imexgrn", description = "Integrate the activator and repressor GRNs with the IMEX scheme (degradation terms implicit) instead of BS3; not with -compiledgrn.")
+    private boolean imexGrn = false;
+
+    // Quiescence tracking (see QuiescenceTracker)
+    @Parameter(names = "-quiescence", arity = 1, description = "Skip GRNs whose relative rate of change stays below this (per minute); 0 disables.")
+    public double quiescenceTolerance = 0;
+
+    @Parameter(names = "-quiescenceinputs", arity = 1, description = "Relative change of a cell's external levels that wakes a skipped GRN.")
+    public double quiescenceInputTolerance = 1e-3;
+
+    // Multi-rate scheduling (see MultiRateSchedule)
+    @Parameter(names = "-grninterval", arity = 1, description = "Advance the GRNs every n ticks, over n ticks at once (n*dt must be shorter than the 7.5 min GRN lag).")
+    public int grnInterval = 1;
+
+    @Parameter(names = "-fieldsubsteps", arity = 1, description = "Number of chemical field updates per tick.")
+    public int fieldSubsteps = 1;
+
+    @Parameter(names = "-implicitfield", arity = 1, description = "Implicit weight of the chemical field diffusion: 0 = explicit, 0.5 = Crank-Nicolson ADI, 1 = backward Euler ADI.")
+    public double implicitField = 0;
+
+    @Parameter(names = "-fieldthreads", arity = 1, description = "Threads for the chemical field updates (1 = serial, 0 = all cores).")
+    public int fieldThreads = 1;
+
+    @Parameter(names = "-actionthreads", arity = 1, description = "Threads for the cell action phase (1 = serial, 0 = all cores; see ActionPhase).")
+    public int actionThreads = 1;
+
+    @Parameter(names = "-deterministic", arity = 1, description = "Keep the cell gather stage in cell order, so that runs are reproducible with any number of action threads.")
+    public boolean deterministic = true;
+
+    @Parameter(names = "-spectralfield", description = "Integrate the chemical field diffusion exactly in Fourier space (overrides -implicitfield).")
+    public boolean spectralField = false;
+
+    @Parameter(names = "-singlefields", description = "Store the chemical fields in single precision: half the memory, but a slower update (see PrecisionReport).")
+    public boolean singleFields = false;
+
+    @Parameter(names = "-seed", arity = 1, description = "Seed of the initial cell placement (0 = random), e.g. to compare runs with MultiRateErrorReport.")
+    public long seed = 0;
+
+    @Parameter(names = "-immobilized", description = "Fix the cells in place: skip their mechanics and compute their field boxes once (growth must be disabled).")
+    public boolean immobilized = false;
+
+
     /**
      * Whether to enable growth
      */
@@ -76,6 +134,9 @@ public class SynchronousFlipFlop {
     }
 
     public void run() {
+        if(immobilized && WITH_GROWTH) {
+            throw new IllegalArgumentException("Cells cannot be immobilized when growth is enabled");
+        }
 
         double simX = simDimensions.get(0);
         double simY = simDimensions.get(1);
@@ -123,12 +184,30 @@ public class SynchronousFlipFlop {
 
         double external_decay = mu_e/60.0;
 
-        BSimChemicalField h_e_field  = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
-        BSimChemicalField i_e_field  = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
+        // All five species share the grid, diffusivity and decay: one field, updated in one sweep
+        final MultiSpeciesField chemicals = new MultiSpeciesField(sim, 5, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
+        chemicals.setThreads(fieldThreads);
+        chemicals.setImplicit(implicitField);
+        if(spectralField) {
+            chemicals.setSpectral(true);
+        }
+        chemicals.setSinglePrecision(singleFields);
+
+        // Cells only deposit in the exchange phase, after every cell has read the fields: collect the deposits
+        // and apply them sorted by box just before the field update
+        chemicals.setDeferredDeposits(true);
+
+        if(implicitField == 0 && !spectralField && sim.getDt()/fieldSubsteps > chemicals.getStableDt()) {
+            System.out.println("Warning: field step " + sim.getDt()/fieldSubsteps + " s exceeds the explicit stability limit "
+                    + chemicals.getStableDt() + " s; use -implicitfield or more -fieldsubsteps.");
+        }
+
+        BSimChemicalField h_e_field  = chemicals.species(0);
+        BSimChemicalField i_e_field  = chemicals.species(1);
 
-        BSimChemicalField d_e_field  = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
-        BSimChemicalField q_e_field  = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
-        BSimChemicalField qc_e_field = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
+        BSimChemicalField d_e_field  = chemicals.species(2);
+        BSimChemicalField q_e_field  = chemicals.species(3);
+        BSimChemicalField qc_e_field = chemicals.species(4);
 
         // ICs as in Chen paper (as in original DDEs)
         h_e_field.setConc(10.0);
@@ -144,28 +223,53 @@ public class SynchronousFlipFlop {
         final ArrayList<RepressorBacterium> bacteriaRepressors = new ArrayList();
         final ArrayList<BSimDBacterium> bacteriaD = new ArrayList();
 
+        // The GRNs of all D cells are integrated together, in one sweep per tick
+        final DsysPopulation dPopulation = new DsysPopulation();
+        dPopulation.setAnalytic(analyticGrn);
+        // RK4 substeps of at most one tick (in minutes), however long the GRN interval: see DsysPopulation
+        dPopulation.setMaxStep(sim.getDt()/60);
+
+        // Likewise for the activator and repressor GRNs, one population per cell type
+        final ChenPopulationDDE activatorPopulation = compiledGrn
+                ? new ChenPopulationDDE(GrnCompiler.compile(GrnModels.chenActivator()), 8)
+                : ChenPopulationDDE.activators();
+        final ChenPopulationDDE repressorPopulation = compiledGrn
+                ? new ChenPopulationDDE(GrnCompiler.compile(GrnModels.chenRepressor()), 8)
+                : ChenPopulationDDE.repressors();
+        activatorPopulation.setImex(imexGrn);
+        repressorPopulation.setImex(imexGrn);
+
+        // Skip the GRNs of cells at a steady state
+        if(quiescenceTolerance > 0) {
+            dPopulation.enableQuiescence(quiescenceTolerance, quiescenceInputTolerance);
+            activatorPopulation.enableQuiescence(quiescenceTolerance, quiescenceInputTolerance);
+            repressorPopulation.enableQuiescence(quiescenceTolerance, quiescenceInputTolerance);
+        }
+
+        // When the fields and the GRNs are advanced
+        final MultiRateSchedule schedule = new MultiRateSchedule(grnInterval, fieldSubsteps, sim.getTime(), sim.getDt(),
+                60*Math.min(activatorPopulation.getLag(), repressorPopulation.getLag()));
+
+        // Gather, GRN and exchange stages of the cell actions
+        final ActionPhase actionPhase = new ActionPhase(actionThreads, deterministic);
+
         // Track all of the bacteria in the simulation, for use of common methods etc
         final ArrayList<BSimCapsuleBacterium> bacteriaAll = new ArrayList();
 
 
-        Random bacRng = new Random();
+        Random bacRng = (seed != 0) ? new Random(seed) : new Random();
+
+        // Cell centres at least sqrt(4.5) apart, in random order: activators first, then repressors, then D cells
+        List<Vector3d> centres = PopulationGenerator.poissonDisk(nActivatorStart + nRepressorStart + nD1Bacterium,
+                Math.sqrt(4.5), 1.1, 1.1, sim.getBound().x - 1.1, sim.getBound().y - 1.1, bacRng);
+        Iterator<Vector3d> nextCentre = centres.iterator();
 
-        generator:
         while(bacteriaActivators.size() < nActivatorStart) {
             double bL = 1. + 0.1*(bacRng.nextDouble() - 0.5);
             double angle = bacRng.nextDouble()*2*Math.PI;
 
-            Vector3d pos = new Vector3d(1.1 + bacRng.nextDouble()*(sim.getBound().x - 2.2), 1.1 + bacRng.nextDouble()*(sim.getBound().y - 2.2), bacRng.nextDouble()*0.1*(simZ - 0.1)/2.0);
-            // Test intersection
-
-            Vector3d distance = new Vector3d(0,0,0);
-
-            for(BSimCapsuleBacterium otherBac : bacteriaAll){
-                distance.sub(otherBac.position, pos);
-                if(distance.lengthSquared() < 4.5){
-                    continue generator;
-                }
-            }
+            Vector3d pos = nextCentre.next();
+            pos.z = bacRng.nextDouble()*0.1*(simZ - 0.1)/2.0;
 
             double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
@@ -175,27 +279,18 @@ public class SynchronousFlipFlop {
                     h_e_field, i_e_field, ICs);
 
             bac.L = bL;
+            bac.setPopulation(activatorPopulation);
 
             bacteriaActivators.add(bac);
             bacteriaAll.add(bac);
         }
 
-        generator:
         while(bacteriaRepressors.size() < nRepressorStart) {
             double bL = 1. + 0.1*(bacRng.nextDouble() - 0.5);
             double angle = bacRng.nextDouble()*2*Math.PI;
 
-            Vector3d pos = new Vector3d(1.1 + bacRng.nextDouble()*(sim.getBound().x - 2.2), 1.1 + bacRng.nextDouble()*(sim.getBound().y - 2.2), simZ/2.0);
-            // Test intersection
-
-            Vector3d distance = new Vector3d(0,0,0);
-
-            for(BSimCapsuleBacterium otherBac : bacteriaAll){
-                distance.sub(otherBac.position, pos);
-                if(distance.lengthSquared() < 4.5){
-                    continue generator;
-                }
-            }
+            Vector3d pos = nextCentre.next();
+            pos.z = simZ/2.0;
 
             double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
@@ -205,28 +300,19 @@ public class SynchronousFlipFlop {
                     h_e_field, i_e_field, ICs);
 
             bac.L = bL;
+            bac.setPopulation(repressorPopulation);
 
             bacteriaRepressors.add(bac);
             bacteriaAll.add(bac);
         }
 
 
-        generator:
         while(bacteriaD.size() < nD1Bacterium) {
             double bL = 1. + 0.1*(bacRng.nextDouble() - 0.5);
             double angle = bacRng.nextDouble()*2*Math.PI;
 
-            Vector3d pos = new Vector3d(1.1 + bacRng.nextDouble()*(sim.getBound().x - 2.2), 1.1 + bacRng.nextDouble()*(sim.getBound().y - 2.2), simZ/2.0);
-            // Test intersection
-
-            Vector3d distance = new Vector3d(0,0,0);
-
-            for(BSimCapsuleBacterium otherBac : bacteriaAll){
-                distance.sub(otherBac.position, pos);
-                if(distance.lengthSquared() < 4.5){
-                    continue generator;
-                }
-            }
+            Vector3d pos = nextCentre.next();
+            pos.z = simZ/2.0;
 
             BSimDBacterium bac = new BSimDBacterium (sim,
                     new Vector3d(pos.x - bL*Math.sin(angle), pos.y - bL*Math.cos(angle), pos.z),
@@ -234,11 +320,25 @@ public class SynchronousFlipFlop {
                     h_e_field, i_e_field, d_e_field, q_e_field, qc_e_field);
 
             bac.L = bL;
+            bac.setPopulation(dPopulation);
 
             bacteriaD.add(bac);
             bacteriaAll.add(bac);
         }
 
+        // Immobilized cells: no mechanics in action(), and their field boxes computed once, here
+        if(immobilized) {
+            for(ActivatorBacterium b : bacteriaActivators) {
+                b.immobilize();
+            }
+            for(RepressorBacterium b : bacteriaRepressors) {
+                b.immobilize();
+            }
+            for(BSimDBacterium b : bacteriaD) {
+                b.immobilize();
+            }
+        }
+
         // Set up stuff for growth.
         final ArrayList<ActivatorBacterium> act_born = new ArrayList();
         final ArrayList<ActivatorBacterium> act_dead = new ArrayList();
@@ -256,6 +356,88 @@ public class SynchronousFlipFlop {
 
 
 
+        /*********************************************************
+         * Species partitions of the action phase: each loops over its own typed list of cells
+         */
+        final ActionPhase.Partition activators = new ActionPhase.Partition("Activators") {
+            @Override
+            public int size() {
+                return bacteriaActivators.size();
+            }
+
+            @Override
+            protected void gather(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    bacteriaActivators.get(i).action();
+                }
+            }
+
+            @Override
+            protected void compute(double t, double h, ForkJoinPool pool) {
+                activatorPopulation.step(h, pool);
+            }
+
+            @Override
+            protected void scatter() {
+                for (ActivatorBacterium b : bacteriaActivators) {
+                    b.exchange();
+                }
+            }
+        };
+
+        final ActionPhase.Partition repressors = new ActionPhase.Partition("Repressors") {
+            @Override
+            public int size() {
+                return bacteriaRepressors.size();
+            }
+
+            @Override
+            protected void gather(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    bacteriaRepressors.get(i).action();
+                }
+            }
+
+            @Override
+            protected void compute(double t, double h, ForkJoinPool pool) {
+                repressorPopulation.step(h, pool);
+            }
+
+            @Override
+            protected void scatter() {
+                for (RepressorBacterium b : bacteriaRepressors) {
+                    b.exchange();
+                }
+            }
+        };
+
+        final ActionPhase.Partition dCells = new ActionPhase.Partition("D cells") {
+            @Override
+            public int size() {
+                return bacteriaD.size();
+            }
+
+            @Override
+            protected void gather(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    bacteriaD.get(i).action();
+                }
+            }
+
+            @Override
+            protected void compute(double t, double h, ForkJoinPool pool) {
+                dPopulation.step(t, h, pool);
+            }
+
+            @Override
+            protected void scatter() {
+                for (BSimDBacterium b : bacteriaD) {
+                    b.exchange();
+                }
+            }
+        };
+
+
         /*********************************************************
          * Set up the ticker
          */
@@ -269,23 +451,38 @@ public class SynchronousFlipFlop {
                 long startTimeAction = System.nanoTime();
 
 
-                for(BSimCapsuleBacterium b : bacteriaAll) {
-                    b.action();
+                // Movement and gather, in the order the cells were created
+                actionPhase.gather(activators, repressors, dCells);
+
+                // GRNs, on the last tick of each GRN interval (re-scaled time units)
+                if(schedule.isGrnTick(sim)) {
+                    double grnStart = schedule.getGrnTime();
+                    double grnStep = schedule.advanceGrn(sim);
+
+                    actionPhase.compute(grnStart/60, grnStep/60, dCells, activators, repressors);
                 }
 
+                // Exchange with the fields, every tick, in a fixed cell order
+                actionPhase.scatter(dCells, activators, repressors);
+
                 long endTimeAction = System.nanoTime();
                 if((sim.getTimestep() % LOG_INTERVAL) == 0) {
                     System.out.println("Action update for " + bacteriaAll.size() + " bacteria took " + (endTimeAction - startTimeAction)/1e6 + " ms.");
+                    for(ActionPhase.Partition partition : new ActionPhase.Partition[] {activators, repressors, dCells}) {
+                        System.out.println("  " + partition.profile() + " since the last report.");
+                        partition.resetProfile();
+                    }
+                    if(quiescenceTolerance > 0) {
+                        System.out.println("Skipped GRNs: " + dPopulation.getSkipped() + "/" + bacteriaD.size() + " D, "
+                                + activatorPopulation.getSkipped() + "/" + bacteriaActivators.size() + " activators, "
+                                + repressorPopulation.getSkipped() + "/" + bacteriaRepressors.size() + " repressors.");
+                    }
                 }
 
                 // ********************************************** Chemical fields
                 startTimeAction = System.nanoTime();
 
-                h_e_field.update();
-                i_e_field.update();
-                d_e_field.update();
-                q_e_field.update();
-                qc_e_field.update();
+                schedule.updateFields(sim, chemicals);
 
                 endTimeAction = System.nanoTime();
                 if((sim.getTimestep() % LOG_INTERVAL) == 0) {
@@ -358,6 +555,9 @@ public class SynchronousFlipFlop {
                             act_dead.add(b);
                         }
                     }
+                    for (ActivatorBacterium b : act_dead) {
+                        b.leavePopulation();
+                    }
                     bacteriaActivators.removeAll(act_dead);
                     bacteriaAll.removeAll(act_dead);
                     act_dead.clear();
@@ -369,6 +569,9 @@ public class SynchronousFlipFlop {
                             rep_dead.add(b);
                         }
                     }
+                    for (RepressorBacterium b : rep_dead) {
+                        b.leavePopulation();
+                    }
                     bacteriaRepressors.removeAll(rep_dead);
                     bacteriaAll.removeAll(rep_dead);
                     rep_dead.clear();
@@ -379,6 +582,9 @@ public class SynchronousFlipFlop {
                             d_dead.add(b);
                         }
                     }
+                    for (BSimDBacterium b : d_dead) {
+                        b.leavePopulation();
+                    }
                     bacteriaD.removeAll(d_dead);
                     bacteriaAll.removeAll(d_dead);
                     d_dead.clear();
@@ -509,7 +715,22 @@ public class SynchronousFlipFlop {
                                             + "__pr_" + populationRatio
                                             + "__diff_" + diffusivity
                                             + "__deg_" + mu_e
-                                            + "__qs_" + qsPars.get(0) + "_" + qsPars.get(1) + "_" + qsPars.get(2) + "_" + qsPars.get(3);
+                                            + "__qs_" + qsPars.get(0) + "_" + qsPars.get(1) + "_" + qsPars.get(2) + "_" + qsPars.get(3)
+                                            + "__mr_" + grnInterval + "_" + fieldSubsteps;
+
+            if(spectralField) {
+                simParameters += "__spectral";
+            } else if(implicitField > 0) {
+                simParameters += "__implicit_" + implicitField;
+            }
+
+            if(singleFields) {
+                simParameters += "__single";
+            }
+
+            if(immobilized) {
+                simParameters += "__immobilized";
+            }
 
             if(fixedBounds){
                 simParameters += "__fixedBounds";
@@ -546,6 +767,16 @@ public class SynchronousFlipFlop {
                     write("Multiplier D_I: " + qsPars.get(1));
                     write("Multiplier phi_H: " + qsPars.get(2));
                     write("Multiplier phi_I: " + qsPars.get(3));
+                    write("Schedule: " + schedule);
+                    write("Field update threads: " + chemicals.getThreads());
+                    write("Action threads: " + actionPhase.getThreads() + (actionPhase.isDeterministic() ? " (deterministic)" : ""));
+                    write("Field diffusion: " + (spectralField ? "spectral (exact)"
+                            : implicitField > 0 ? "implicit ADI, theta = " + implicitField : "explicit"));
+                    write("Field storage: " + (singleFields ? "single precision" : "double precision"));
+                    write("Cells: " + (immobilized ? "immobilized" : "mobile"));
+                    write("Chen GRN rates: " + (compiledGrn ? "compiled kernels" : "hand-written"));
+                    write("Chen GRN integration: " + (imexGrn ? "IMEX" : "Bogacki-Shampine 3(2)"));
+                    write("Quiescence tolerance: " + quiescenceTolerance + " (inputs " + quiescenceInputTolerance + ")");
                 }
 
                 @Override
@@ -571,50 +802,11 @@ public class SynchronousFlipFlop {
                     String buffer = new String();
                     //Contentration in the middle
 
-                    int[] i_boxes = i_e_field.getBoxes();
-                    //Average concentrations
-                    double i_conc = 0;
-                    for(int i = 0; i < i_boxes[0]; i++) {
-                        for(int j = 0; j < i_boxes[1]; j++) {
-                            i_conc += i_e_field.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] h_boxes = h_e_field.getBoxes();
-                    //Average concentrations
-                    double h_conc = 0;
-                    for(int i = 0; i < i_boxes[0]; i++) {
-                        for(int j = 0; j < i_boxes[1]; j++) {
-                            h_conc += h_e_field.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] q_boxes = q_e_field.getBoxes();
-                    //Average concentrations
-                    double q_conc = 0;
-                    for(int i = 0; i < q_boxes[0]; i++) {
-                        for(int j = 0; j < q_boxes[1]; j++) {
-                            q_conc += q_e_field.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] qc_boxes = qc_e_field.getBoxes();
-                    //Average concentrations
-                    double qc_conc = 0;
-                    for(int i = 0; i < qc_boxes[0]; i++) {
-                        for(int j = 0; j < qc_boxes[1]; j++) {
-                            qc_conc += qc_e_field.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    i_conc /= i_boxes[0] * i_boxes[1];
-                    h_conc /= h_boxes[0] * h_boxes[1];
-                    q_conc /= q_boxes[0] * q_boxes[1];
-                    qc_conc /= qc_boxes[0] * qc_boxes[1];
+                    //Average concentrations, maintained by the fields
+                    double i_conc = SpeciesField.mean(i_e_field);
+                    double h_conc = SpeciesField.mean(h_e_field);
+                    double q_conc = SpeciesField.mean(q_e_field);
+                    double qc_conc = SpeciesField.mean(qc_e_field);
                     write(o + "," + h_conc+ "," + i_conc+ "," + q_conc+ "," + qc_conc);
 
                     if(sim.getSimulationTime()%100 == 0){
@@ -638,6 +830,7 @@ public class SynchronousFlipFlop {
                     write("per Act; per Rep; id, p1x, p1y, p1z, p2x, p2y, p2z");
                 }
 
+
                 @Override
                 public void during() {
                     String buffer = new String();
@@ -691,6 +884,8 @@ public class SynchronousFlipFlop {
 
             sim.export();
 
+            // The preview keeps ticking after preview() returns, so only a finished export releases the threads
+            actionPhase.shutdown();
 
         } else {
             sim.preview();
@@ -699,5 +894,14 @@ public class SynchronousFlipFlop {
         long simulationEndTime = System.nanoTime();
 
         System.out.println("Total simulation time: " + (simulationEndTime - simulationStartTime)/1e9 + " sec.");
+        System.out.println("GRN steps: " + schedule.getGrnSteps() + " (" + schedule + ").");
+
+        // Field updates skipped while a species was uniform
+        String[] species = {"h", "i", "d", "q", "qc"};
+        String elided = "";
+        for (int s = 0; s < species.length; s++) {
+            elided += (s > 0 ? ", " : "") + species[s] + " " + chemicals.getElidedUpdates(s);
+        }
+        System.out.println("Elided field updates: " + elided + " (of " + chemicals.getUpdates() + ").");
     }
 }
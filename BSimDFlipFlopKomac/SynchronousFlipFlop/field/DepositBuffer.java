@@ -0,0 +1,76 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.field;
+
+import java.util.Arrays;
+
+/**
+ * Deposits into a MultiSpeciesField, collected while the cells act and applied later in one pass.
+ *
+ * Each deposit is recorded as (box, species, quantity). apply() sorts them by their position in the
+ * field's storage and adds them in that order, so the field is walked once, forwards. Deposits into the same
+ * box and species keep the order they were made in, and each is clamped at zero like addQuantity, so the
+ * result is exactly that of making the addQuantity calls directly.
+ *
+ * A buffer is not thread-safe: cells acting in parallel need one buffer each.
+ */
+public class DepositBuffer {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final MultiSpeciesField field;
+
+    // keys[i] = (storage index << 32) | i, so that sorting the keys is stable; amounts[i] is the quantity
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private double[] amounts = new double[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // Deposits applied so far
+    private long applied = 0;
+
+    public DepositBuffer(MultiSpeciesField _field) {
+        this.field = _field;
+    }
+
+    public MultiSpeciesField getField() {
+        return field;
+    }
+
+    /**
+     * Record a deposit of quantity q of species s into a box (see MultiSpeciesField.boxIndex).
+     */
+    public void add(int s, int box, double q) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2*size);
+            amounts = Arrays.copyOf(amounts, 2*size);
+        }
+        keys[size] = ((long) (box*field.getNumSpecies() + s) << 32) | size;
+        amounts[size] = q;
+        size++;
+    }
+
+    /**
+     * @return number of deposits waiting to be applied
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of deposits applied so far
+     */
+    public long getApplied() {
+        return applied;
+    }
+
+    /**
+     * Apply the recorded deposits to the field, sorted by storage index, and empty the buffer.
+     */
+    public void apply() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.sort(keys, 0, size);
+        field.applyDeposits(keys, amounts, size);
+        applied += size;
+        size = 0;
+    }
+}
@@ -0,0 +1,135 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.field;
+
+import bsim.BSimChemicalField;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * A cell's access to the chemical fields it reads and writes, with its box index cached.
+ *
+ * If all fields are species of one MultiSpeciesField, the box containing the cell is computed once and kept
+ * until the cell's position changes; every read and deposit in between goes straight to that box. A cell
+ * that gathers and then exchanges at the same position computes its box once per tick instead of once per
+ * field access, and a cell that does not move never recomputes it. Otherwise each access goes through the
+ * field's own getConc/addQuantity at the position.
+ *
+ * A probe of a cell that will never move can be frozen at its position: the box is then used for every access
+ * without comparing positions.
+ */
+public class FieldProbe {
+
+    private final BSimChemicalField[] fields;
+
+    // The field all of them are species of (null if they are not), and their species indices
+    private final MultiSpeciesField parent;
+    private final int[] species;
+
+    // Position the cached box was computed for
+    private double x = Double.NaN;
+    private double y = Double.NaN;
+    private double z = Double.NaN;
+    private int box = -1;
+
+    // The box is fixed (freeze)
+    private boolean frozen = false;
+
+    public FieldProbe(BSimChemicalField... _fields) {
+        this.fields = _fields.clone();
+
+        MultiSpeciesField common = null;
+        for (BSimChemicalField field : fields) {
+            if (!(field instanceof SpeciesField)) {
+                common = null;
+                break;
+            }
+            MultiSpeciesField p = ((SpeciesField) field).getParent();
+            if (common != null && p != common) {
+                common = null;
+                break;
+            }
+            common = p;
+        }
+        this.parent = common;
+
+        if (parent != null) {
+            species = new int[fields.length];
+            for (int k = 0; k < fields.length; k++) {
+                species[k] = ((SpeciesField) fields[k]).getSpecies();
+            }
+        } else {
+            species = null;
+        }
+    }
+
+    /**
+     * @return true if accesses use the cached box index
+     */
+    public boolean isCached() {
+        return parent != null;
+    }
+
+    /**
+     * Fix the box to the one containing a position; later accesses use it whatever position they are given.
+     * Has no effect if the box index is not cached (isCached).
+     */
+    public void freeze(Vector3d position) {
+        if (parent == null) {
+            return;
+        }
+        frozen = false;
+        box(position);
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Concentrations of all fields at a position.
+     * @param out receives the concentration of field k in out[k]
+     */
+    public void gather(Vector3d position, double[] out) {
+        if (parent != null) {
+            int b = box(position);
+            for (int k = 0; k < species.length; k++) {
+                out[k] = parent.getConc(species[k], b);
+            }
+        } else {
+            for (int k = 0; k < fields.length; k++) {
+                out[k] = fields[k].getConc(position);
+            }
+        }
+    }
+
+    /**
+     * @return concentration of field k at a position
+     */
+    public double getConc(int k, Vector3d position) {
+        return (parent != null) ? parent.getConc(species[k], box(position)) : fields[k].getConc(position);
+    }
+
+    /**
+     * Add quantity q of field k at a position.
+     */
+    public void addQuantity(int k, Vector3d position, double q) {
+        if (parent != null) {
+            parent.addQuantity(species[k], box(position), q);
+        } else {
+            fields[k].addQuantity(position, q);
+        }
+    }
+
+    private int box(Vector3d position) {
+        if (frozen) {
+            return box;
+        }
+        if (position.x != x || position.y != y || position.z != z) {
+            box = parent.boxIndex(position);
+            x = position.x;
+            y = position.y;
+            z = position.z;
+        }
+        return box;
+    }
+}
@@ -0,0 +1,92 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.field;
+
+import bsim.BSim;
+
+import java.util.Random;
+
+/**
+ * Times the serial and parallel sweeps of a five-species MultiSpeciesField, and checks that every parallel
+ * sweep gives exactly the same quantities as the serial one.
+ *
+ * The chamber is side x side um with one box per um, one leaky face, as in SynchronousFlipFlop.
+ *
+ * Usage: FieldUpdateBenchmark [side] [updates]
+ */
+public class FieldUpdateBenchmark {
+
+    private static final int SPECIES = 5;
+
+    public static void main(String[] args) {
+        int side = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int updates = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+
+        BSim sim = new BSim();
+        sim.setDt(0.25);
+        sim.setBound(side, side, 1);
+        sim.setSolid(true, true, true);
+        sim.setLeaky(false, false, true, false, false, false);
+        sim.setLeakyRate(0, 0, 0.1/60, 0, 0, 0);
+
+        MultiSpeciesField serial = field(sim, side, 1);
+        double serialTime = run(serial, updates);
+        System.out.println(side + " x " + side + " boxes, " + SPECIES + " species, " + updates + " updates");
+        System.out.println("1 thread: " + String.format("%.2f", serialTime) + " ms/update");
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 2; threads <= cores; threads *= 2) {
+            report(sim, side, updates, threads, serial, serialTime);
+        }
+        if (Integer.bitCount(cores) != 1) {
+            report(sim, side, updates, cores, serial, serialTime);
+        }
+    }
+
+    private static void report(BSim sim, int side, int updates, int threads, MultiSpeciesField serial,
+                               double serialTime) {
+        MultiSpeciesField parallel = field(sim, side, threads);
+        double time = run(parallel, updates);
+        System.out.println(threads + " threads: " + String.format("%.2f", time) + " ms/update, speed-up "
+                + String.format("%.2f", serialTime/time)
+                + (identical(serial, parallel) ? ", identical" : ", DIFFERENT from serial"));
+    }
+
+    private static MultiSpeciesField field(BSim sim, int side, int threads) {
+        MultiSpeciesField field = new MultiSpeciesField(sim, SPECIES, new int[] {side, side, 1}, 0.5, 0.1/60);
+        field.setThreads(threads);
+
+        Random rng = new Random(3);
+        int boxes = side*side;
+        for (int s = 0; s < SPECIES; s++) {
+            for (int b = 0; b < boxes; b++) {
+                field.setConc(s, b, 100*rng.nextDouble());
+            }
+        }
+        return field;
+    }
+
+    /*
+     * @return wall time per update (ms), after a warm-up of a fifth of the updates
+     */
+    private static double run(MultiSpeciesField field, int updates) {
+        for (int n = 0; n < Math.max(1, updates/5); n++) {
+            field.update();
+        }
+        long start = System.nanoTime();
+        for (int n = 0; n < updates; n++) {
+            field.update();
+        }
+        return (System.nanoTime() - start)/1e6/updates;
+    }
+
+    private static boolean identical(MultiSpeciesField a, MultiSpeciesField b) {
+        int boxes = a.getBoxes()[0]*a.getBoxes()[1]*a.getBoxes()[2];
+        for (int s = 0; s < SPECIES; s++) {
+            for (int box = 0; box < boxes; box++) {
+                if (Double.doubleToRawLongBits(a.getConc(s, box)) != Double.doubleToRawLongBits(b.getConc(s, box))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
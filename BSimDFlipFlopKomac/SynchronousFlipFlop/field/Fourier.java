@@ -0,0 +1,160 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.field;
+
+/**
+ * Discrete Fourier transform of complex sequences of any length n, for SpectralDiffusion.
+ *
+ * The forward transform is X[k] = sum_j x[j]*exp(-2*pi*i*j*k/n), the inverse has exp(+2*pi*i*j*k/n); neither
+ * is normalised. A power of two is transformed in place with the iterative radix-2 algorithm. Any other
+ * length uses Bluestein's algorithm: with jk = (j^2 + k^2 - (k - j)^2)/2 the transform becomes a convolution
+ * with the chirp exp(i*pi*j^2/n), evaluated with radix-2 transforms of a power of two m >= 2n - 1.
+ *
+ * The tables are computed once per length; a transform only writes the caller's arrays, including scratch
+ * arrays of scratchLength() values, so one instance can be shared by several threads.
+ */
+final class Fourier {
+
+    private final int n;
+
+    // Length of the radix-2 transforms, their twiddles cos, sin(2*pi*k/m) for k < m/2, and bit reversal
+    private final int m;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] reversed;
+
+    // Bluestein: the chirp exp(-i*pi*j^2/n), and the transform of its conjugate, divided by m
+    private final double[] chirpRe;
+    private final double[] chirpIm;
+    private final double[] kernelRe;
+    private final double[] kernelIm;
+
+    Fourier(int _n) {
+        if (_n < 1) {
+            throw new IllegalArgumentException("Transform length must be at least 1 (got " + _n + ")");
+        }
+        this.n = _n;
+        boolean powerOfTwo = Integer.bitCount(n) == 1;
+        this.m = powerOfTwo ? n : Integer.highestOneBit(2*n - 1) << 1;
+
+        cos = new double[m/2];
+        sin = new double[m/2];
+        for (int k = 0; k < m/2; k++) {
+            cos[k] = Math.cos(2*Math.PI*k/m);
+            sin[k] = Math.sin(2*Math.PI*k/m);
+        }
+        int bits = Integer.numberOfTrailingZeros(m);
+        reversed = new int[m];
+        for (int k = 0; k < m; k++) {
+            reversed[k] = (bits == 0) ? 0 : Integer.reverse(k) >>> (32 - bits);
+        }
+
+        if (powerOfTwo) {
+            chirpRe = chirpIm = kernelRe = kernelIm = null;
+            return;
+        }
+
+        chirpRe = new double[n];
+        chirpIm = new double[n];
+        for (int j = 0; j < n; j++) {
+            // j^2 modulo 2n keeps the angle small and exact
+            double angle = Math.PI*(((long) j*j) % (2L*n))/n;
+            chirpRe[j] = Math.cos(angle);
+            chirpIm[j] = -Math.sin(angle);
+        }
+
+        kernelRe = new double[m];
+        kernelIm = new double[m];
+        kernelRe[0] = chirpRe[0];
+        kernelIm[0] = -chirpIm[0];
+        for (int j = 1; j < n; j++) {
+            kernelRe[j] = kernelRe[m - j] = chirpRe[j];
+            kernelIm[j] = kernelIm[m - j] = -chirpIm[j];
+        }
+        radix2(kernelRe, kernelIm, false);
+        for (int k = 0; k < m; k++) {
+            kernelRe[k] /= m;
+            kernelIm[k] /= m;
+        }
+    }
+
+    int length() {
+        return n;
+    }
+
+    /**
+     * @return length of the scratch arrays transform needs
+     */
+    int scratchLength() {
+        return (chirpRe == null) ? 0 : m;
+    }
+
+    /**
+     * Transform the sequence re[j] + i*im[j], j < n, in place; ar and ai are scratch arrays (scratchLength()).
+     */
+    void transform(double[] re, double[] im, boolean inverse, double[] ar, double[] ai) {
+        if (chirpRe == null) {
+            radix2(re, im, inverse);
+            return;
+        }
+
+        // The inverse is the conjugate of the forward transform of the conjugate
+        final double sign = inverse ? -1 : 1;
+        for (int j = 0; j < n; j++) {
+            final double xr = re[j], xi = sign*im[j];
+            ar[j] = xr*chirpRe[j] - xi*chirpIm[j];
+            ai[j] = xr*chirpIm[j] + xi*chirpRe[j];
+        }
+        for (int j = n; j < m; j++) {
+            ar[j] = 0;
+            ai[j] = 0;
+        }
+
+        radix2(ar, ai, false);
+        for (int k = 0; k < m; k++) {
+            final double r = ar[k]*kernelRe[k] - ai[k]*kernelIm[k];
+            ai[k] = ar[k]*kernelIm[k] + ai[k]*kernelRe[k];
+            ar[k] = r;
+        }
+        radix2(ar, ai, true);
+
+        for (int k = 0; k < n; k++) {
+            re[k] = ar[k]*chirpRe[k] - ai[k]*chirpIm[k];
+            im[k] = sign*(ar[k]*chirpIm[k] + ai[k]*chirpRe[k]);
+        }
+    }
+
+    /*
+     * Radix-2 transform of the first m values, in place.
+     */
+    private void radix2(double[] re, double[] im, boolean inverse) {
+        for (int k = 0; k < m; k++) {
+            final int r = reversed[k];
+            if (r > k) {
+                double t = re[k];
+                re[k] = re[r];
+                re[r] = t;
+                t = im[k];
+                im[k] = im[r];
+                im[r] = t;
+            }
+        }
+
+        final double sign = inverse ? 1 : -1;
+        for (int size = 2; size <= m; size <<= 1) {
+            final int half = size >> 1;
+            final int step = m/size;
+            for (int start = 0; start < m; start += size) {
+                for (int k = 0; k < half; k++) {
+                    final double wr = cos[k*step];
+                    final double wi = sign*sin[k*step];
+                    final int a = start + k, b = a + half;
+                    final double tr = wr*re[b] - wi*im[b];
+                    final double ti = wr*im[b] + wi*re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
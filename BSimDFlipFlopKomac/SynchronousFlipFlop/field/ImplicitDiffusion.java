@@ -0,0 +1,154 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.field;
+
+/**
+ * Implicit diffusion for a MultiSpeciesField: theta-weighted ADI in its locally one-dimensional form.
+ *
+ * Each axis longer than one box is treated in turn with
+ *   (I - theta*c*L) u' = (I + (1 - theta)*c*L) u,    c = D*dt/dx^2,
+ * where L is the 1D Laplacian along the axis: zero flux at a solid boundary, wrapped otherwise. Every line of
+ * boxes along the axis is an independent tridiagonal system (cyclic for a wrapped axis, solved with the
+ * Sherman-Morrison formula). The matrices only depend on dt, so their factorisations are kept until dt or
+ * the boundaries change (see LineDiffusion for the traversal of the lines).
+ *
+ * theta = 0.5 is Crank-Nicolson (second order, unconditionally stable, but steep features decay through
+ * damped oscillations when c is large); theta = 1 is backward Euler (first order, unconditionally stable
+ * and positive).
+ */
+final class ImplicitDiffusion extends LineDiffusion {
+
+    private final double theta;
+
+    ImplicitDiffusion(int[] _boxes, int _nSpecies, double[] _boxSize, double _diffusivity, double _theta) {
+        super(_boxes, _nSpecies, _boxSize, _diffusivity);
+        this.theta = _theta;
+    }
+
+    double getTheta() {
+        return theta;
+    }
+
+    @Override
+    protected Operator operator(int n, double c, boolean periodic) {
+        return new LineSolver(n, c, theta, periodic);
+    }
+
+    /*
+     * (I - theta*c*L) x = (I + (1 - theta)*c*L) u along one line of n boxes, by the Thomas algorithm.
+     * For a wrapped line the corner entries are handled with Sherman-Morrison: A = B + w*v^T, where B is
+     * tridiagonal, w = (gamma, 0, ..., 0, a) and v = (1, 0, ..., 0, a/gamma).
+     */
+    static final class LineSolver extends Operator {
+
+        private final int n;
+        private final boolean periodic;
+        private final double explicitC;
+
+        // Off-diagonal of A, and the Thomas factors of (the tridiagonal part of) A
+        private final double a;
+        private final double[] upper;
+        private final double[] inverse;
+
+        // Sherman-Morrison terms of a wrapped line
+        private final double gamma;
+        private final double[] z;
+        private final double vz;
+
+        LineSolver(int _n, double c, double theta, boolean _periodic) {
+            this.n = _n;
+            this.periodic = _periodic;
+            this.explicitC = (1 - theta)*c;
+            this.a = -theta*c;
+
+            double[] diagonal = new double[n];
+            for (int i = 0; i < n; i++) {
+                // Zero-flux ends only have one neighbour
+                boolean end = !periodic && (i == 0 || i == n - 1);
+                diagonal[i] = 1 + (end ? 1 : 2)*theta*c;
+            }
+
+            if (periodic) {
+                gamma = -diagonal[0];
+                diagonal[0] -= gamma;
+                diagonal[n - 1] -= a*a/gamma;
+            } else {
+                gamma = 0;
+            }
+
+            upper = new double[n];
+            inverse = new double[n];
+            inverse[0] = 1/diagonal[0];
+            upper[0] = a*inverse[0];
+            for (int i = 1; i < n; i++) {
+                inverse[i] = 1/(diagonal[i] - a*upper[i - 1]);
+                upper[i] = a*inverse[i];
+            }
+
+            if (periodic) {
+                z = new double[n];
+                z[0] = gamma;
+                z[n - 1] = a;
+                thomas(z);
+                vz = z[0] + a/gamma*z[n - 1];
+            } else {
+                z = null;
+                vz = 0;
+            }
+        }
+
+        @Override
+        double[][] workspace() {
+            return new double[][] {new double[n]};
+        }
+
+        @Override
+        void apply(double[] u, double[] v, double[][] work) {
+            solve(u, work[0]);
+            System.arraycopy(work[0], 0, u, 0, n);
+            if (v != null) {
+                solve(v, work[0]);
+                System.arraycopy(work[0], 0, v, 0, n);
+            }
+        }
+
+        /*
+         * Solve for the line u; the solution is left in work. Both hold at least n values.
+         */
+        void solve(double[] u, double[] work) {
+            // Right-hand side (I + (1 - theta)*c*L) u
+            for (int i = 0; i < n; i++) {
+                double v = u[i];
+                double lap = 0;
+                if (i > 0) {
+                    lap += u[i - 1] - v;
+                } else if (periodic) {
+                    lap += u[n - 1] - v;
+                }
+                if (i < n - 1) {
+                    lap += u[i + 1] - v;
+                } else if (periodic) {
+                    lap += u[0] - v;
+                }
+                work[i] = v + explicitC*lap;
+            }
+
+            thomas(work);
+
+            if (periodic) {
+                double f = (work[0] + a/gamma*work[n - 1])/(1 + vz);
+                for (int i = 0; i < n; i++) {
+                    work[i] -= f*z[i];
+                }
+            }
+        }
+
+        private void thomas(double[] d) {
+            d[0] *= inverse[0];
+            for (int i = 1; i < n; i++) {
+                d[i] = (d[i] - a*d[i - 1])*inverse[i];
+            }
+            for (int i = n - 2; i >= 0; i--) {
+                d[i] -= upper[i]*d[i + 1];
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.field;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Diffusion of a MultiSpeciesField that treats one axis at a time, line by line.
+ *
+ * The 3D Laplacian of the stencil is the sum of the 1D Laplacians along the axes, so a step of diffusion can be
+ * split into a step along each axis longer than one box in turn. Along an axis every line of boxes is
+ * independent: a subclass provides the operator that advances one line (Operator), built for the coupling
+ * c = D*dt/dx^2 of that axis and its boundary (zero flux at a solid boundary, wrapped otherwise). Operators
+ * only depend on dt and the boundaries, so they are kept until either changes. Lines are processed in
+ * parallel on the field's pool, if it has one.
+ *
+ * Each line is copied out, advanced in double and copied back, so single-precision storage only rounds the
+ * result. The lines of two species are handed to the operator together, for operators that can advance two
+ * lines at the cost of one.
+ */
+abstract class LineDiffusion {
+
+    protected final int[] boxes;
+    protected final int nSpecies;
+    protected final double[] boxSize;
+    protected final double diffusivity;
+
+    // Operators per axis (null for an axis of one box), and the settings they were built for
+    private final Operator[] operators = new Operator[3];
+    private double preparedDt = Double.NaN;
+    private boolean[] preparedSolid = null;
+
+    // Distance between boxes along each axis in the interleaved storage
+    private final int[] stride;
+
+    LineDiffusion(int[] _boxes, int _nSpecies, double[] _boxSize, double _diffusivity) {
+        this.boxes = _boxes;
+        this.nSpecies = _nSpecies;
+        this.boxSize = _boxSize;
+        this.diffusivity = _diffusivity;
+        this.stride = new int[] {boxes[1]*boxes[2]*nSpecies, boxes[2]*nSpecies, nSpecies};
+    }
+
+    /**
+     * Advances the lines of one axis.
+     */
+    abstract static class Operator {
+
+        /**
+         * @return scratch space for apply, one per thread
+         */
+        abstract double[][] workspace();
+
+        /**
+         * Advance line u, and line v if it is not null, in place.
+         */
+        abstract void apply(double[] u, double[] v, double[][] work);
+    }
+
+    /**
+     * @return operator for a line of n boxes with coupling c, wrapped around if periodic
+     */
+    protected abstract Operator operator(int n, double c, boolean periodic);
+
+    /**
+     * Diffuse the given species over dt, in place.
+     */
+    void step(double[] q, int[] species, double dt, boolean[] solid, ForkJoinPool pool) {
+        step(q, null, species, dt, solid, pool);
+    }
+
+    /**
+     * Diffuse the given species of single-precision storage over dt, in place.
+     */
+    void step(float[] q, int[] species, double dt, boolean[] solid, ForkJoinPool pool) {
+        step(null, q, species, dt, solid, pool);
+    }
+
+    private void step(double[] q, float[] q32, int[] species, double dt, boolean[] solid, ForkJoinPool pool) {
+        prepare(dt, solid);
+
+        for (int axis = 0; axis < 3; axis++) {
+            if (operators[axis] == null) {
+                continue;
+            }
+            Lines lines = new Lines(q, q32, axis, species);
+            if (pool == null || lines.count < 2) {
+                lines.solve(0, lines.count);
+            } else {
+                int chunk = Math.max(1, lines.count/(4*pool.getParallelism()));
+                pool.invoke(new Chunk(lines, 0, lines.count, chunk));
+            }
+        }
+    }
+
+    private void prepare(double dt, boolean[] solid) {
+        if (dt == preparedDt && preparedSolid != null && Arrays.equals(solid, preparedSolid)) {
+            return;
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            int n = boxes[axis];
+            double c = diffusivity*dt/(boxSize[axis]*boxSize[axis]);
+            if (n == 1) {
+                operators[axis] = null;
+            } else if (solid[axis] || n == 2) {
+                // Two wrapped boxes are each other's neighbour on both sides: zero flux with twice the coupling
+                operators[axis] = operator(n, (solid[axis] ? 1 : 2)*c, false);
+            } else {
+                operators[axis] = operator(n, c, true);
+            }
+        }
+        preparedDt = dt;
+        preparedSolid = solid.clone();
+    }
+
+    /*
+     * The lines of boxes along one axis: line k starts at the box whose two other coordinates are
+     * (k / nr, k % nr). The storage is q, or q32 in single precision.
+     */
+    private final class Lines {
+
+        final double[] q;
+        final float[] q32;
+        final int[] species;
+        final int axis;
+        final int p, r;
+        final int count;
+
+        Lines(double[] _q, float[] _q32, int _axis, int[] _species) {
+            this.q = _q;
+            this.q32 = _q32;
+            this.axis = _axis;
+            this.species = _species;
+            this.p = (axis == 0) ? 1 : 0;
+            this.r = (axis == 2) ? 1 : 2;
+            this.count = boxes[p]*boxes[r];
+        }
+
+        void solve(int k0, int k1) {
+            Operator operator = operators[axis];
+            final int n = boxes[axis];
+            double[] u = new double[n];
+            double[] v = new double[n];
+            double[][] work = operator.workspace();
+            for (int k = k0; k < k1; k++) {
+                int offset = (k/boxes[r])*stride[p] + (k%boxes[r])*stride[r];
+                for (int j = 0; j < species.length; j += 2) {
+                    final int first = offset + species[j];
+                    final int second = (j + 1 < species.length) ? offset + species[j + 1] : -1;
+
+                    load(first, u);
+                    if (second >= 0) {
+                        load(second, v);
+                    }
+                    operator.apply(u, (second >= 0) ? v : null, work);
+                    store(first, u);
+                    if (second >= 0) {
+                        store(second, v);
+                    }
+                }
+            }
+        }
+
+        private void load(int start, double[] line) {
+            final int step = stride[axis];
+            if (q32 != null) {
+                for (int i = 0; i < line.length; i++) {
+                    line[i] = q32[start + i*step];
+                }
+            } else {
+                for (int i = 0; i < line.length; i++) {
+                    line[i] = q[start + i*step];
+                }
+            }
+        }
+
+        private void store(int start, double[] line) {
+            final int step = stride[axis];
+            if (q32 != null) {
+                for (int i = 0; i < line.length; i++) {
+                    q32[start + i*step] = (float) line[i];
+                }
+            } else {
+                for (int i = 0; i < line.length; i++) {
+                    q[start + i*step] = line[i];
+                }
+            }
+        }
+    }
+
+    private static final class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Lines lines;
+        private final int k0, k1, chunk;
+
+        Chunk(Lines _lines, int _k0, int _k1, int _chunk) {
+            this.lines = _lines;
+            this.k0 = _k0;
+            this.k1 = _k1;
+            this.chunk = _chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (k1 - k0 <= chunk) {
+                lines.solve(k0, k1);
+                return;
+            }
+            int mid = (k0 + k1) >>> 1;
+            invokeAll(new Chunk(lines, k0, mid, chunk), new Chunk(lines, mid, k1, chunk));
+        }
+    }
+}
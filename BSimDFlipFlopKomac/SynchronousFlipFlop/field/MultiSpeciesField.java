@@ -0,0 +1,1006 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.field;
+
+import bsim.BSim;
+
+import javax.vecmath.Vector3d;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Several chemical species diffusing on the same grid with the same diffusivity and decay rate, e.g. the
+ * h, i, d, q and qc fields of the flip-flop simulations.
+ *
+ * The quantities of all species in a box are stored next to each other in one flat array
+ * (index ((x*ny + y)*nz + z)*nSpecies + s), and update() applies the diffusion stencil, the leaky boundaries
+ * and the decay to every species in a single sweep over the grid, instead of one sweep per field.
+ *
+ * Each species is also available as a BSimChemicalField (species(s)), so cells, drawers and loggers that
+ * take a BSimChemicalField work unchanged. The scheme is the explicit one of BSimChemicalField:
+ *   - per axis, quantity += D*dt/dx^2 * (neighbour - quantity) for each neighbour; at a solid boundary
+ *     there is no flux, otherwise the grid wraps around;
+ *   - on a leaky face (BSim order +x, -x, +y, -y, +z, -z) the boxes of that face lose leakyRate*dt of
+ *     their quantity;
+ *   - then quantity *= 1 - decayRate*dt.
+ * Concentrations are quantities divided by the box volume; adding a negative quantity clamps at zero.
+ *
+ * A grid that is one box thick along some axis (a monolayer chamber, boxes {nx, ny, 1}) is swept with a
+ * planar 5-point stencil over the other two axes: the flat axis has no diffusion flux, and the leaky loss of
+ * every box, including both faces of the flat axis, is precomputed (planeLoss). The planar sweep gives the
+ * same quantities as the general one.
+ *
+ * The explicit scheme is only stable for dt <= getStableDt(). setImplicit(theta) replaces it with ADI
+ * diffusion (ImplicitDiffusion: Crank-Nicolson for theta = 0.5, backward Euler for theta = 1), stable for
+ * any dt, followed by the leaky loss and decay applied exactly, quantity *= exp(-(leakyRate + decayRate)*dt).
+ * setSpectral(true) instead integrates the diffusion exactly over dt in Fourier space (SpectralDiffusion: a
+ * DCT along solid axes, a DFT along wrapped ones), followed by the same exact loss and decay. Deposits enter
+ * between updates, as sources. Without leaky faces the update is then exact for any dt; with them the loss
+ * is split from the diffusion, as for ADI.
+ *
+ * Uniform species are tracked: a species set everywhere with setConc(s, c), and never written box by box
+ * since, has the same level in every box. Diffusion leaves it uniform, so while no leaky boundary is active
+ * (or its level is zero, the decay fixed point) its update is elided and the level decays analytically;
+ * its boxes are only filled in (materialised) once it receives a deposit. For the explicit scheme the
+ * elided update gives exactly the same level as a sweep would. getElidedUpdates reports the elided updates.
+ *
+ * With deferred deposits (setDeferredDeposits), addQuantity records into a DepositBuffer instead of writing
+ * to the storage; the deposits are applied, sorted by box, at the next update() (or flushDeposits()). Reads
+ * do not see deposits that are still waiting, so deferral is only exact when the cells do not read the field
+ * between depositing and the update, as with the gather/exchange ticker of SynchronousFlipFlop.
+ *
+ * Aggregates are kept up to date instead of rescanning the grid: the total of each species is summed during
+ * every update and adjusted by every deposit, so getTotal and getMean are O(1). With setTrackExtrema the
+ * minimum and maximum are found during the update as well; they are exact after an update, and deposits
+ * since then only widen them.
+ *
+ * With setSinglePrecision the quantities are stored as floats, halving the memory the grid takes; the
+ * stencil, deposits and aggregates still compute in double and only round when they store a quantity, so
+ * both storages share one row kernel. Concentrations then carry about 7 significant digits, plenty for the
+ * signalling fields, and PrecisionReport measures the difference to double storage. It is a memory option,
+ * not a speed one: the conversions make the sweep slower than with doubles on grids that fit in cache.
+ *
+ * The sweep can run in parallel (setThreads): the grid is split into bands of rows of the outer axis,
+ * processed on a ForkJoinPool. Every box is computed from the previous quantities only, with the same
+ * operations in the same order, so the result is bit-identical to the serial sweep. Aggregates are summed
+ * per row and then over the rows in order, so they do not depend on the number of threads either.
+ */
+public class MultiSpeciesField {
+
+    protected final BSim sim;
+
+    protected final int nSpecies;
+    protected final int[] boxes;
+    protected final double[] boxSize;
+    protected final double boxVolume;
+
+    protected final double diffusivity;
+    protected final double decayRate;
+
+    // quantity[((x*ny + y)*nz + z)*nSpecies + s], and the buffer the next update is written into.
+    // The boxes of a uniform species are not kept up to date. Both are null in single precision, where
+    // singleQuantity and singleNext are used instead.
+    protected double[] quantity;
+    private double[] next;
+    private float[] singleQuantity = null;
+    private float[] singleNext = null;
+
+    // Uniform species and their quantity per box; updates, and updates elided per species
+    private final boolean[] uniform;
+    private final double[] level;
+    private long updates = 0;
+    private final long[] elided;
+
+    // Total quantity of each species tracked box by box; minimum and maximum quantity per box if tracked
+    private final double[] total;
+    private boolean extrema = false;
+    private final double[] min;
+    private final double[] max;
+
+    private final SpeciesField[] views;
+
+    // Pool for the parallel sweep; null for the serial one
+    private ForkJoinPool pool = null;
+
+    // Deposits waiting for the next update; null if addQuantity writes directly
+    private DepositBuffer deposits = null;
+
+    // Implicit or spectral diffusion; null for the explicit scheme
+    private LineDiffusion diffusion = null;
+
+    // Planar grid: the two axes swept (outer, inner); -1 for a 3D grid
+    private final int outerAxis;
+    private final int innerAxis;
+
+    // Leaky loss rate of each box of a planar grid, and the boundary settings it was computed for
+    private double[] planeLoss = null;
+    private boolean[] planeLeaky = null;
+    private double[] planeLeakyRate = null;
+
+    public MultiSpeciesField(BSim _sim, int _nSpecies, int[] _boxes, double _diffusivity, double _decayRate) {
+        this.sim = _sim;
+        this.nSpecies = _nSpecies;
+        this.boxes = _boxes.clone();
+        this.diffusivity = _diffusivity;
+        this.decayRate = _decayRate;
+
+        Vector3d bound = _sim.getBound();
+        this.boxSize = new double[] {bound.x/boxes[0], bound.y/boxes[1], bound.z/boxes[2]};
+        this.boxVolume = boxSize[0]*boxSize[1]*boxSize[2];
+
+        int n = boxes[0]*boxes[1]*boxes[2]*nSpecies;
+        this.quantity = new double[n];
+        this.next = new double[n];
+
+        // Every species starts uniformly empty
+        this.uniform = new boolean[nSpecies];
+        this.level = new double[nSpecies];
+        this.elided = new long[nSpecies];
+        Arrays.fill(uniform, true);
+
+        this.total = new double[nSpecies];
+        this.min = new double[nSpecies];
+        this.max = new double[nSpecies];
+
+        this.views = new SpeciesField[nSpecies];
+        for (int s = 0; s < nSpecies; s++) {
+            views[s] = new SpeciesField(this, s);
+        }
+
+        // The first two axes longer than one box, if the remaining one is flat
+        int outer = -1, inner = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            if (boxes[axis] == 1) {
+                continue;
+            }
+            if (outer < 0) {
+                outer = axis;
+            } else if (inner < 0) {
+                inner = axis;
+            } else {
+                outer = inner = -1;
+            }
+        }
+        if (outer >= 0 && inner < 0) {
+            // A single row: sweep it as a plane with one outer row
+            inner = outer;
+            outer = (inner == 0) ? 1 : 0;
+        }
+        this.outerAxis = (inner < 0) ? -1 : outer;
+        this.innerAxis = (inner < 0) ? -1 : inner;
+    }
+
+    /**
+     * Collect addQuantity deposits and apply them, sorted by box, at the next update (see DepositBuffer).
+     */
+    public void setDeferredDeposits(boolean deferred) {
+        flushDeposits();
+        deposits = deferred ? new DepositBuffer(this) : null;
+    }
+
+    /**
+     * @return the buffer collecting deposits, or null if deposits are written directly
+     */
+    public DepositBuffer getDeposits() {
+        return deposits;
+    }
+
+    /**
+     * Apply the deposits collected so far.
+     */
+    public void flushDeposits() {
+        if (deposits != null) {
+            deposits.apply();
+        }
+    }
+
+    /**
+     * Store the quantities as floats (true) or doubles (false, the default); the current quantities are
+     * converted.
+     */
+    public void setSinglePrecision(boolean single) {
+        if (single == isSinglePrecision()) {
+            return;
+        }
+        flushDeposits();
+
+        int n = numBoxes()*nSpecies;
+        if (single) {
+            singleQuantity = new float[n];
+            singleNext = new float[n];
+            for (int i = 0; i < n; i++) {
+                singleQuantity[i] = (float) quantity[i];
+            }
+            quantity = next = null;
+        } else {
+            quantity = new double[n];
+            next = new double[n];
+            for (int i = 0; i < n; i++) {
+                quantity[i] = singleQuantity[i];
+            }
+            singleQuantity = singleNext = null;
+        }
+
+        // Rounding changes the quantities slightly: recount them
+        for (int s = 0; s < nSpecies; s++) {
+            if (!uniform[s]) {
+                double t = 0;
+                for (int i = s; i < n; i += nSpecies) {
+                    t += load(i);
+                }
+                total[s] = t;
+                if (extrema) {
+                    scanExtrema(s);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the quantities are stored as floats
+     */
+    public boolean isSinglePrecision() {
+        return singleQuantity != null;
+    }
+
+    /*
+     * Quantity at storage index i.
+     */
+    private double load(int i) {
+        return (singleQuantity != null) ? singleQuantity[i] : quantity[i];
+    }
+
+    /*
+     * Store quantity v at storage index i; returns the value stored, rounded in single precision.
+     */
+    private double store(int i, double v) {
+        if (singleQuantity != null) {
+            singleQuantity[i] = (float) v;
+            return singleQuantity[i];
+        }
+        quantity[i] = v;
+        return v;
+    }
+
+    /**
+     * Diffusion scheme: 0 is explicit (the default), 0.5 is Crank-Nicolson ADI, 1 is backward Euler ADI.
+     */
+    public void setImplicit(double theta) {
+        if (theta < 0 || theta > 1) {
+            throw new IllegalArgumentException("Implicit weight must be between 0 and 1 (got " + theta + ")");
+        }
+        diffusion = (theta > 0) ? new ImplicitDiffusion(boxes, nSpecies, boxSize, diffusivity, theta) : null;
+    }
+
+    /**
+     * @return weight of the implicit diffusion, 0 for the explicit and spectral schemes
+     */
+    public double getImplicit() {
+        return (diffusion instanceof ImplicitDiffusion) ? ((ImplicitDiffusion) diffusion).getTheta() : 0;
+    }
+
+    /**
+     * Integrate the diffusion exactly in Fourier space (true), or use the explicit scheme (false, the default).
+     */
+    public void setSpectral(boolean spectral) {
+        diffusion = spectral ? new SpectralDiffusion(boxes, nSpecies, boxSize, diffusivity) : null;
+    }
+
+    /**
+     * @return true if diffusion is integrated in Fourier space
+     */
+    public boolean isSpectral() {
+        return diffusion instanceof SpectralDiffusion;
+    }
+
+    /**
+     * @return the largest time step for which the explicit scheme is stable
+     */
+    public double getStableDt() {
+        double sum = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            if (boxes[axis] > 1) {
+                sum += 1/(boxSize[axis]*boxSize[axis]);
+            }
+        }
+        return (sum == 0 || diffusivity == 0) ? Double.POSITIVE_INFINITY : 1/(2*diffusivity*sum);
+    }
+
+    /**
+     * @return true if updates use the planar 5-point stencil
+     */
+    public boolean isPlanar() {
+        return outerAxis >= 0;
+    }
+
+    /**
+     * Number of threads for the sweep: 1 is serial (the default), 0 uses all available processors.
+     */
+    public void setThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Number of field threads must be at least 0 (got " + threads + ")");
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        pool = (threads > 1) ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * @return number of threads of the sweep
+     */
+    public int getThreads() {
+        return (pool == null) ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * @return species s as a chemical field
+     */
+    public SpeciesField species(int s) {
+        return views[s];
+    }
+
+    public int getNumSpecies() {
+        return nSpecies;
+    }
+
+    public int[] getBoxes() {
+        return boxes;
+    }
+
+    public double getBoxVolume() {
+        return boxVolume;
+    }
+
+    public BSim getSim() {
+        return sim;
+    }
+
+    /**
+     * @return index of the box (x, y, z) in the grid, before interleaving (multiply by the number of species)
+     */
+    public int boxIndex(int x, int y, int z) {
+        return (x*boxes[1] + y)*boxes[2] + z;
+    }
+
+    /**
+     * @return index of the box containing a position; positions outside the grid go to the nearest box
+     */
+    public int boxIndex(Vector3d v) {
+        return boxIndex(coordinate(v.x, 0), coordinate(v.y, 1), coordinate(v.z, 2));
+    }
+
+    private int coordinate(double v, int axis) {
+        int c = (int) (v/boxSize[axis]);
+        if (c < 0) {
+            return 0;
+        }
+        return (c >= boxes[axis]) ? boxes[axis] - 1 : c;
+    }
+
+    /**
+     * Concentrations of all species at a position, in one lookup.
+     * @param out receives the concentration of species s in out[s]
+     */
+    public void gather(Vector3d position, double[] out) {
+        int base = boxIndex(position)*nSpecies;
+        for (int s = 0; s < nSpecies; s++) {
+            out[s] = (uniform[s] ? level[s] : load(base + s))/boxVolume;
+        }
+    }
+
+    public double getConc(int s, int box) {
+        return (uniform[s] ? level[s] : load(box*nSpecies + s))/boxVolume;
+    }
+
+    public void setConc(int s, int box, double c) {
+        flushDeposits();
+        materialise(s);
+        int i = box*nSpecies + s;
+        double before = load(i);
+        double value = store(i, c*boxVolume);
+        total[s] += value - before;
+        widen(s, value);
+    }
+
+    /**
+     * Set the concentration of species s everywhere; the species is uniform until its next deposit.
+     */
+    public void setConc(int s, double c) {
+        flushDeposits();
+        uniform[s] = true;
+        level[s] = c*boxVolume;
+    }
+
+    public void addQuantity(int s, int box, double q) {
+        if (deposits != null) {
+            deposits.add(s, box, q);
+            return;
+        }
+        materialise(s);
+        int i = box*nSpecies + s;
+        double before = load(i);
+        double value = before + q;
+        if (value < 0) {
+            value = 0;
+        }
+        value = store(i, value);
+        total[s] += value - before;
+        widen(s, value);
+    }
+
+    /*
+     * Add sorted deposits: keys[k] >>> 32 is the storage index, (int) keys[k] the position of the quantity.
+     */
+    void applyDeposits(long[] keys, double[] amounts, int n) {
+        for (int k = 0; k < n; k++) {
+            final int i = (int) (keys[k] >>> 32);
+            final int s = i%nSpecies;
+            materialise(s);
+            final double before = load(i);
+            double value = before + amounts[(int) keys[k]];
+            if (value < 0) {
+                value = 0;
+            }
+            value = store(i, value);
+            total[s] += value - before;
+            widen(s, value);
+        }
+    }
+
+    /*
+     * A box of species s was set to quantity v outside an update.
+     */
+    private void widen(int s, double v) {
+        if (extrema) {
+            min[s] = Math.min(min[s], v);
+            max[s] = Math.max(max[s], v);
+        }
+    }
+
+    private void scanExtrema(int s) {
+        double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+        final int n = numBoxes()*nSpecies;
+        for (int i = s; i < n; i += nSpecies) {
+            final double v = load(i);
+            lo = Math.min(lo, v);
+            hi = Math.max(hi, v);
+        }
+        min[s] = lo;
+        max[s] = hi;
+    }
+
+    /**
+     * @return true if species s currently has the same concentration everywhere
+     */
+    public boolean isUniform(int s) {
+        return uniform[s];
+    }
+
+    /**
+     * Also track the minimum and maximum concentration of every species (off by default).
+     */
+    public void setTrackExtrema(boolean track) {
+        extrema = track;
+        if (track) {
+            for (int s = 0; s < nSpecies; s++) {
+                if (!uniform[s]) {
+                    scanExtrema(s);
+                }
+            }
+        }
+    }
+
+    public boolean isTrackExtrema() {
+        return extrema;
+    }
+
+    /**
+     * @return total quantity of species s in the field
+     */
+    public double getTotal(int s) {
+        return uniform[s] ? level[s]*numBoxes() : total[s];
+    }
+
+    /**
+     * @return mean concentration of species s
+     */
+    public double getMean(int s) {
+        return getTotal(s)/(numBoxes()*boxVolume);
+    }
+
+    /**
+     * @return lowest concentration of species s (see setTrackExtrema)
+     */
+    public double getMin(int s) {
+        checkExtrema();
+        return (uniform[s] ? level[s] : min[s])/boxVolume;
+    }
+
+    /**
+     * @return highest concentration of species s (see setTrackExtrema)
+     */
+    public double getMax(int s) {
+        checkExtrema();
+        return (uniform[s] ? level[s] : max[s])/boxVolume;
+    }
+
+    private void checkExtrema() {
+        if (!extrema) {
+            throw new IllegalStateException("Minimum and maximum are not tracked; call setTrackExtrema(true) first");
+        }
+    }
+
+    private int numBoxes() {
+        return boxes[0]*boxes[1]*boxes[2];
+    }
+
+    /**
+     * @return number of update() and update(s) calls so far
+     */
+    public long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * @return number of updates of species s that were elided because it was uniform
+     */
+    public long getElidedUpdates(int s) {
+        return elided[s];
+    }
+
+    /**
+     * Diffusion, leaky boundaries and decay of every species over one time step, in one sweep.
+     */
+    public void update() {
+        step(0, nSpecies);
+    }
+
+    /**
+     * Update a single species; the others are left as they are.
+     */
+    public void update(int s) {
+        step(s, s + 1);
+    }
+
+    /*
+     * Advance species [s0, s1): uniform species analytically where possible, the others with the stencil.
+     */
+    private void step(int s0, int s1) {
+        flushDeposits();
+        updates++;
+
+        final double dt = sim.getDt();
+        final boolean leaking = isLeaking();
+
+        int[] swept = new int[s1 - s0];
+        int n = 0;
+        for (int s = s0; s < s1; s++) {
+            if (uniform[s] && (level[s] == 0 || !leaking)) {
+                // Diffusion leaves a uniform species unchanged; decay as the sweep would
+                level[s] *= (diffusion == null) ? 1 - decayRate*dt : Math.exp(-decayRate*dt);
+                elided[s]++;
+            } else {
+                materialise(s);
+                swept[n++] = s;
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+        swept = Arrays.copyOf(swept, n);
+
+        if (diffusion != null) {
+            lineStep(swept);
+        } else {
+            sweep(swept);
+        }
+    }
+
+    /*
+     * Fill in the boxes of a uniform species, which from now on is tracked box by box.
+     */
+    private void materialise(int s) {
+        if (!uniform[s]) {
+            return;
+        }
+        final int n = numBoxes()*nSpecies;
+        for (int i = s; i < n; i += nSpecies) {
+            store(i, level[s]);
+        }
+        final double v = load(s);
+        total[s] = v*numBoxes();
+        min[s] = max[s] = v;
+        uniform[s] = false;
+    }
+
+    private boolean isLeaking() {
+        final boolean[] leaky = sim.getLeaky();
+        final double[] leakyRate = sim.getLeakyRate();
+        for (int face = 0; face < 6; face++) {
+            if (leaky[face] && leakyRate[face] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * One explicit step of the given species from quantity into next; then the buffers are swapped.
+     */
+    private void sweep(int[] species) {
+        final Stencil stencil = new Stencil(species);
+        final int rows = isPlanar() ? boxes[outerAxis] : boxes[0];
+
+        int tracked = 0;
+        for (int s = 0; s < nSpecies; s++) {
+            if (!uniform[s]) {
+                tracked++;
+            }
+        }
+        if (tracked > species.length) {
+            // Species tracked box by box but not swept are carried over unchanged
+            if (isSinglePrecision()) {
+                System.arraycopy(singleQuantity, 0, singleNext, 0, singleQuantity.length);
+            } else {
+                System.arraycopy(quantity, 0, next, 0, quantity.length);
+            }
+        }
+
+        if (pool == null || rows < 2) {
+            stencil.rows(0, rows);
+        } else {
+            // A few bands per thread, so that uneven bands still balance
+            int band = Math.max(1, rows/(4*pool.getParallelism()));
+            pool.invoke(new Band(stencil, 0, rows, band));
+        }
+        stencil.aggregate();
+
+        if (isSinglePrecision()) {
+            float[] q = singleQuantity;
+            singleQuantity = singleNext;
+            singleNext = q;
+        } else {
+            double[] q = quantity;
+            quantity = next;
+            next = q;
+        }
+    }
+
+    /*
+     * Implicit or spectral diffusion of the given species, in place, then the exact leaky loss and decay.
+     */
+    private void lineStep(int[] species) {
+        final double dt = sim.getDt();
+        if (isSinglePrecision()) {
+            diffusion.step(singleQuantity, species, dt, sim.getSolid(), pool);
+        } else {
+            diffusion.step(quantity, species, dt, sim.getSolid(), pool);
+        }
+
+        final boolean[] leaky = sim.getLeaky();
+        final double[] leakyRate = sim.getLeakyRate();
+        final int nx = boxes[0], ny = boxes[1], nz = boxes[2];
+        final int ns = nSpecies;
+
+        for (final int s : species) {
+            total[s] = 0;
+            min[s] = Double.POSITIVE_INFINITY;
+            max[s] = Double.NEGATIVE_INFINITY;
+        }
+
+        for (int x = 0; x < nx; x++) {
+            final double leakX = leak(leaky, leakyRate, 0, x, nx);
+            for (int y = 0; y < ny; y++) {
+                final double leakXY = leakX + leak(leaky, leakyRate, 2, y, ny);
+                for (int z = 0; z < nz; z++) {
+                    final double rate = leakXY + leak(leaky, leakyRate, 4, z, nz) + decayRate;
+                    final double factor = Math.exp(-rate*dt);
+                    final int base = ((x*ny + y)*nz + z)*ns;
+                    for (final int s : species) {
+                        final double value = store(base + s, load(base + s)*factor);
+                        total[s] += value;
+                        if (extrema) {
+                            min[s] = Math.min(min[s], value);
+                            max[s] = Math.max(max[s], value);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Everything a sweep needs, fixed for its duration: coefficients, neighbour tables and buffers.
+     */
+    private final class Stencil {
+
+        final int[] species;
+        final double dt;
+        final boolean[] leaky;
+        final double[] leakyRate;
+        final double[] c = new double[3];
+        final double decay;
+
+        // Neighbour boxes along each axis: -1 where a solid boundary blocks the flux
+        final int[][] up = new int[3][];
+        final int[][] down = new int[3][];
+
+        // Leaky loss rate per box of a planar grid; null for the general sweep
+        final double[] loss;
+
+        final double[] q = quantity;
+        final double[] out = next;
+        final float[] q32 = singleQuantity;
+        final float[] out32 = singleNext;
+
+        // Totals, and minimum and maximum if tracked, per row of the outer axis: rowTotal[row*ns + s]
+        final double[] rowTotal;
+        final double[] rowMin;
+        final double[] rowMax;
+
+        Stencil(int[] _species) {
+            this.species = _species;
+            this.dt = sim.getDt();
+            this.leaky = sim.getLeaky();
+            this.leakyRate = sim.getLeakyRate();
+
+            for (int axis = 0; axis < 3; axis++) {
+                c[axis] = diffusivity*dt/(boxSize[axis]*boxSize[axis]);
+            }
+            this.decay = 1 - decayRate*dt;
+
+            final boolean[] solid = sim.getSolid();
+            for (int axis = 0; axis < 3; axis++) {
+                int n = boxes[axis];
+                up[axis] = new int[n];
+                down[axis] = new int[n];
+                for (int i = 0; i < n; i++) {
+                    up[axis][i] = (i < n - 1) ? i + 1 : (solid[axis] ? -1 : 0);
+                    down[axis][i] = (i > 0) ? i - 1 : (solid[axis] ? -1 : n - 1);
+                }
+            }
+
+            this.loss = isPlanar() ? planeLoss(leaky, leakyRate) : null;
+
+            int rows = isPlanar() ? boxes[outerAxis] : boxes[0];
+            rowTotal = new double[rows*nSpecies];
+            rowMin = extrema ? new double[rows*nSpecies] : null;
+            rowMax = extrema ? new double[rows*nSpecies] : null;
+            if (extrema) {
+                Arrays.fill(rowMin, Double.POSITIVE_INFINITY);
+                Arrays.fill(rowMax, Double.NEGATIVE_INFINITY);
+            }
+        }
+
+        /*
+         * Combine the row aggregates, in row order.
+         */
+        void aggregate() {
+            final int rows = rowTotal.length/nSpecies;
+            for (final int s : species) {
+                double t = 0;
+                double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+                for (int r = 0; r < rows; r++) {
+                    t += rowTotal[r*nSpecies + s];
+                    if (extrema) {
+                        lo = Math.min(lo, rowMin[r*nSpecies + s]);
+                        hi = Math.max(hi, rowMax[r*nSpecies + s]);
+                    }
+                }
+                total[s] = t;
+                if (extrema) {
+                    min[s] = lo;
+                    max[s] = hi;
+                }
+            }
+        }
+
+        /*
+         * Add a new quantity to the aggregates of its row.
+         */
+        private void count(int row, int s, double value) {
+            final int k = row*nSpecies + s;
+            rowTotal[k] += value;
+            if (rowMin != null) {
+                rowMin[k] = Math.min(rowMin[k], value);
+                rowMax[k] = Math.max(rowMax[k], value);
+            }
+        }
+
+        /*
+         * Rows r0 <= r < r1 of the outer axis: reads q, writes only those rows of out.
+         */
+        void rows(int r0, int r1) {
+            if (loss != null) {
+                planeRows(r0, r1);
+            } else {
+                gridRows(r0, r1);
+            }
+        }
+
+        /*
+         * Previous quantity at storage index i, from whichever precision the field is stored in.
+         */
+        private double in(int i) {
+            return (q32 != null) ? q32[i] : q[i];
+        }
+
+        /*
+         * Store new quantity v at storage index i; returns the value stored, rounded in single precision.
+         */
+        private double out(int i, double v) {
+            if (out32 != null) {
+                out32[i] = (float) v;
+                return out32[i];
+            }
+            out[i] = v;
+            return v;
+        }
+
+        /*
+         * Planar 5-point stencil. Boxes of a row are ns apart along the inner axis, and rows are nb*ns apart.
+         * The neighbours are visited in the order of the general sweep (x, then y, then z), and along the flat
+         * axis a box would only meet itself, so the quantities are the same as gridRows'.
+         */
+        private void planeRows(int r0, int r1) {
+            final int a = outerAxis, b = innerAxis;
+            final int nb = boxes[b];
+            final int ns = nSpecies;
+            final int rowStride = nb*ns;
+
+            // Coefficients in the order the general sweep adds them
+            final boolean innerFirst = b < a;
+            final double cFirst = innerFirst ? c[b] : c[a];
+            final double cSecond = innerFirst ? c[a] : c[b];
+
+            final int[] upA = up[a], downA = down[a], upB = up[b], downB = down[b];
+
+            for (int r = r0; r < r1; r++) {
+                final int row = r*rowStride;
+                final int rowUp = (upA[r] < 0) ? -1 : upA[r]*rowStride;
+                final int rowDown = (downA[r] < 0) ? -1 : downA[r]*rowStride;
+                final int lossRow = r*nb;
+
+                for (int i = 0; i < nb; i++) {
+                    final int base = row + i*ns;
+                    final int au = (rowUp < 0) ? -1 : rowUp + i*ns;
+                    final int ad = (rowDown < 0) ? -1 : rowDown + i*ns;
+                    final int bu = (upB[i] < 0) ? -1 : row + upB[i]*ns;
+                    final int bd = (downB[i] < 0) ? -1 : row + downB[i]*ns;
+
+                    final int firstUp = innerFirst ? bu : au, firstDown = innerFirst ? bd : ad;
+                    final int secondUp = innerFirst ? au : bu, secondDown = innerFirst ? ad : bd;
+                    final double l = loss[lossRow + i]*dt;
+
+                    for (final int s : species) {
+                        final double v = in(base + s);
+                        double dv = 0;
+                        if (firstUp >= 0) dv += cFirst*(in(firstUp + s) - v);
+                        if (firstDown >= 0) dv += cFirst*(in(firstDown + s) - v);
+                        if (secondUp >= 0) dv += cSecond*(in(secondUp + s) - v);
+                        if (secondDown >= 0) dv += cSecond*(in(secondDown + s) - v);
+
+                        count(r, s, out(base + s, (v + dv - l*v)*decay));
+                    }
+                }
+            }
+        }
+
+        /*
+         * General 3D stencil over x rows x0 <= x < x1.
+         */
+        private void gridRows(int x0, int x1) {
+            final int nx = boxes[0], ny = boxes[1], nz = boxes[2];
+            final int ns = nSpecies;
+
+            for (int x = x0; x < x1; x++) {
+                final int xu = up[0][x], xd = down[0][x];
+                final double leakX = leak(leaky, leakyRate, 0, x, nx);
+
+                for (int y = 0; y < ny; y++) {
+                    final int yu = up[1][y], yd = down[1][y];
+                    final double leakXY = leakX + leak(leaky, leakyRate, 2, y, ny);
+
+                    for (int z = 0; z < nz; z++) {
+                        final int zu = up[2][z], zd = down[2][z];
+                        final double loss = (leakXY + leak(leaky, leakyRate, 4, z, nz))*dt;
+
+                        final int base = ((x*ny + y)*nz + z)*ns;
+                        final int bxu = (xu < 0) ? -1 : ((xu*ny + y)*nz + z)*ns;
+                        final int bxd = (xd < 0) ? -1 : ((xd*ny + y)*nz + z)*ns;
+                        final int byu = (yu < 0) ? -1 : ((x*ny + yu)*nz + z)*ns;
+                        final int byd = (yd < 0) ? -1 : ((x*ny + yd)*nz + z)*ns;
+                        final int bzu = (zu < 0) ? -1 : ((x*ny + y)*nz + zu)*ns;
+                        final int bzd = (zd < 0) ? -1 : ((x*ny + y)*nz + zd)*ns;
+
+                        for (final int s : species) {
+                            final double v = in(base + s);
+                            double dv = 0;
+                            if (bxu >= 0) dv += c[0]*(in(bxu + s) - v);
+                            if (bxd >= 0) dv += c[0]*(in(bxd + s) - v);
+                            if (byu >= 0) dv += c[1]*(in(byu + s) - v);
+                            if (byd >= 0) dv += c[1]*(in(byd + s) - v);
+                            if (bzu >= 0) dv += c[2]*(in(bzu + s) - v);
+                            if (bzd >= 0) dv += c[2]*(in(bzd + s) - v);
+
+                            count(x, s, out(base + s, (v + dv - loss*v)*decay));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * A band of rows, split in halves until it is at most band rows long.
+     */
+    private static final class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Stencil stencil;
+        private final int x0, x1, band;
+
+        Band(Stencil _stencil, int _x0, int _x1, int _band) {
+            this.stencil = _stencil;
+            this.x0 = _x0;
+            this.x1 = _x1;
+            this.band = _band;
+        }
+
+        @Override
+        protected void compute() {
+            if (x1 - x0 <= band) {
+                stencil.rows(x0, x1);
+                return;
+            }
+            int mid = (x0 + x1) >>> 1;
+            invokeAll(new Band(stencil, x0, mid, band), new Band(stencil, mid, x1, band));
+        }
+    }
+
+    /*
+     * Leaky loss rate of each box of a planar grid, indexed outer*nb + inner; recomputed when the leaky
+     * boundaries of the simulation change. The rates are summed in the order of the general sweep.
+     */
+    private double[] planeLoss(boolean[] leaky, double[] leakyRate) {
+        if (planeLoss != null && Arrays.equals(leaky, planeLeaky) && Arrays.equals(leakyRate, planeLeakyRate)) {
+            return planeLoss;
+        }
+
+        final int na = boxes[outerAxis], nb = boxes[innerAxis];
+        double[] lossRate = new double[na*nb];
+        int[] coordinate = new int[3];
+        for (int r = 0; r < na; r++) {
+            for (int i = 0; i < nb; i++) {
+                coordinate[outerAxis] = r;
+                coordinate[innerAxis] = i;
+                double rate = leak(leaky, leakyRate, 0, coordinate[0], boxes[0]);
+                rate += leak(leaky, leakyRate, 2, coordinate[1], boxes[1]);
+                lossRate[r*nb + i] = rate + leak(leaky, leakyRate, 4, coordinate[2], boxes[2]);
+            }
+        }
+
+        planeLoss = lossRate;
+        planeLeaky = leaky.clone();
+        planeLeakyRate = leakyRate.clone();
+        return planeLoss;
+    }
+
+    /*
+     * Leaky rate of the boxes at coordinate i along an axis (face index of the + side; the - side follows).
+     */
+    private static double leak(boolean[] leaky, double[] leakyRate, int face, int i, int n) {
+        double rate = 0;
+        if (i == n - 1 && leaky[face]) {
+            rate += leakyRate[face];
+        }
+        if (i == 0 && leaky[face + 1]) {
+            rate += leakyRate[face + 1];
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,146 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.field;
+
+import bsim.BSim;
+
+import java.util.Random;
+
+/**
+ * Accuracy of single-precision field storage (MultiSpeciesField.setSinglePrecision) against double storage.
+ *
+ * Two five-species fields, one of each precision, are run side by side on a monolayer chamber set up as in
+ * SynchronousFlipFlop (1 um boxes, diffusivity 80/60 um^2/s, leaky bottom, dt 0.25 s). A fixed population of
+ * cells produces every species at an oscillating rate and takes it up in proportion to the concentration it
+ * reads, so rounding errors feed back into the deposits as they would in a simulation. Once per simulated
+ * minute the mean concentration of every species is sampled, as written to Concentrations_average.csv.
+ *
+ * Printed per species: the largest absolute error of the mean, that error relative to the range of the
+ * double-precision mean, the RMS error of the mean, and the largest error of a single box at the end
+ * relative to the largest concentration. The time per update of both fields is printed as well.
+ *
+ * For whole simulations, run SynchronousFlipFlop with and without -singlefields and compare the two
+ * Concentrations_average.csv files with MultiRateErrorReport.
+ *
+ * Usage: PrecisionReport [side] [minutes] [theta]
+ */
+public class PrecisionReport {
+
+    private static final int SPECIES = 5;
+    private static final int CELLS = 200;
+
+    // Production (quantity/s), its period (s), and uptake rate (1/s) of the cells
+    private static final double PRODUCTION = 5;
+    private static final double PERIOD = 600;
+    private static final double UPTAKE = 0.05;
+
+    public static void main(String[] args) {
+        int side = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int minutes = (args.length > 1) ? Integer.parseInt(args[1]) : 60;
+        double theta = (args.length > 2) ? Double.parseDouble(args[2]) : 0.5;
+
+        BSim sim = new BSim();
+        sim.setDt(0.25);
+        sim.setBound(side, side, 1);
+        sim.setSolid(true, true, true);
+        sim.setLeaky(false, false, true, false, false, false);
+        sim.setLeakyRate(0, 0, 0.1/60, 0, 0, 0);
+
+        MultiSpeciesField reference = field(sim, side, theta, false);
+        MultiSpeciesField single = field(sim, side, theta, true);
+        if (theta == 0 && sim.getDt() > reference.getStableDt()) {
+            System.out.println("Warning: dt " + sim.getDt() + " s exceeds the explicit stability limit "
+                    + reference.getStableDt() + " s");
+        }
+
+        Random rng = new Random(7);
+        int[] cellBox = new int[CELLS];
+        double[] phase = new double[CELLS];
+        for (int k = 0; k < CELLS; k++) {
+            cellBox[k] = rng.nextInt(side*side);
+            phase[k] = 2*Math.PI*rng.nextDouble();
+        }
+
+        double[] minMean = new double[SPECIES];
+        double[] maxMean = new double[SPECIES];
+        double[] maxError = new double[SPECIES];
+        double[] sumSquares = new double[SPECIES];
+        for (int s = 0; s < SPECIES; s++) {
+            minMean[s] = Double.POSITIVE_INFINITY;
+            maxMean[s] = Double.NEGATIVE_INFINITY;
+        }
+
+        int ticksPerMinute = (int) Math.round(60/sim.getDt());
+        long referenceTime = 0, singleTime = 0;
+        for (int m = 0; m < minutes; m++) {
+            for (int t = 0; t < ticksPerMinute; t++) {
+                double time = (m*ticksPerMinute + t)*sim.getDt();
+                deposit(reference, sim.getDt(), time, cellBox, phase);
+                deposit(single, sim.getDt(), time, cellBox, phase);
+
+                long start = System.nanoTime();
+                reference.update();
+                referenceTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                single.update();
+                singleTime += System.nanoTime() - start;
+            }
+
+            for (int s = 0; s < SPECIES; s++) {
+                double mean = reference.getMean(s);
+                double e = Math.abs(single.getMean(s) - mean);
+                minMean[s] = Math.min(minMean[s], mean);
+                maxMean[s] = Math.max(maxMean[s], mean);
+                maxError[s] = Math.max(maxError[s], e);
+                sumSquares[s] += e*e;
+            }
+        }
+
+        int updates = minutes*ticksPerMinute;
+        System.out.println(side + " x " + side + " boxes, " + SPECIES + " species, " + minutes + " min, "
+                + (theta > 0 ? "implicit theta = " + theta : "explicit"));
+        System.out.println("double: " + String.format("%.3f", referenceTime/1e6/updates) + " ms/update, float: "
+                + String.format("%.3f", singleTime/1e6/updates) + " ms/update");
+        System.out.println("species, max abs error of mean, max error / range of mean, RMS error of mean, "
+                + "max box error / max concentration");
+        for (int s = 0; s < SPECIES; s++) {
+            double range = maxMean[s] - minMean[s];
+            System.out.println(s + ", " + maxError[s] + ", " + ((range > 0) ? maxError[s]/range : 0) + ", "
+                    + Math.sqrt(sumSquares[s]/minutes) + ", " + boxError(reference, single, s));
+        }
+    }
+
+    private static MultiSpeciesField field(BSim sim, int side, double theta, boolean singlePrecision) {
+        MultiSpeciesField field = new MultiSpeciesField(sim, SPECIES, new int[] {side, side, 1}, 80/60.0, 0);
+        field.setImplicit(theta);
+        field.setSinglePrecision(singlePrecision);
+        field.setDeferredDeposits(true);
+        return field;
+    }
+
+    /*
+     * Every cell produces each species at its oscillating rate and takes up UPTAKE of what it reads.
+     */
+    private static void deposit(MultiSpeciesField field, double dt, double time, int[] cellBox, double[] phase) {
+        double volume = field.getBoxVolume();
+        for (int k = 0; k < cellBox.length; k++) {
+            for (int s = 0; s < SPECIES; s++) {
+                double production = PRODUCTION*(1 + Math.sin(2*Math.PI*time/PERIOD + phase[k] + s));
+                double uptake = UPTAKE*field.getConc(s, cellBox[k])*volume;
+                field.addQuantity(s, cellBox[k], (production - uptake)*dt);
+            }
+        }
+    }
+
+    /*
+     * @return largest difference of a box of species s, relative to the largest concentration of the reference
+     */
+    private static double boxError(MultiSpeciesField reference, MultiSpeciesField single, int s) {
+        int boxes = reference.getBoxes()[0]*reference.getBoxes()[1]*reference.getBoxes()[2];
+        double error = 0, largest = 0;
+        for (int box = 0; box < boxes; box++) {
+            double c = reference.getConc(s, box);
+            error = Math.max(error, Math.abs(single.getConc(s, box) - c));
+            largest = Math.max(largest, Math.abs(c));
+        }
+        return (largest > 0) ? error/largest : 0;
+    }
+}
@@ -0,0 +1,147 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.field;
+
+import bsim.BSimChemicalField;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * One species of a MultiSpeciesField, seen as a BSimChemicalField.
+ *
+ * Reads and writes go to the shared interleaved storage. BSimChemicalField itself is given a single box,
+ * filled with NaN, and every public accessor is overridden, so nothing reads or writes it. update() advances
+ * only this species; to advance all species in one sweep call MultiSpeciesField.update() instead.
+ */
+public class SpeciesField extends BSimChemicalField {
+
+    private final MultiSpeciesField parent;
+    private final int species;
+
+    SpeciesField(MultiSpeciesField _parent, int _species) {
+        super(_parent.getSim(), new int[] {1, 1, 1}, _parent.diffusivity, _parent.decayRate);
+        this.parent = _parent;
+        this.species = _species;
+        super.setConc(Double.NaN);
+    }
+
+    public MultiSpeciesField getParent() {
+        return parent;
+    }
+
+    /**
+     * @return index of this species in its MultiSpeciesField
+     */
+    public int getSpecies() {
+        return species;
+    }
+
+    /**
+     * @return total quantity of this species, in O(1)
+     */
+    public double getTotal() {
+        return parent.getTotal(species);
+    }
+
+    /**
+     * @return mean concentration of this species, in O(1)
+     */
+    public double getMean() {
+        return parent.getMean(species);
+    }
+
+    /**
+     * @return lowest concentration of this species (see MultiSpeciesField.setTrackExtrema)
+     */
+    public double getMin() {
+        return parent.getMin(species);
+    }
+
+    /**
+     * @return highest concentration of this species (see MultiSpeciesField.setTrackExtrema)
+     */
+    public double getMax() {
+        return parent.getMax(species);
+    }
+
+    /**
+     * Mean concentration of a field: in O(1) for a species of a MultiSpeciesField, otherwise by scanning
+     * all of its boxes.
+     */
+    public static double mean(BSimChemicalField field) {
+        if (field instanceof SpeciesField) {
+            return ((SpeciesField) field).getMean();
+        }
+        int[] boxes = field.getBoxes();
+        double sum = 0;
+        for (int i = 0; i < boxes[0]; i++) {
+            for (int j = 0; j < boxes[1]; j++) {
+                for (int k = 0; k < boxes[2]; k++) {
+                    sum += field.getConc(i, j, k);
+                }
+            }
+        }
+        return sum/(boxes[0]*boxes[1]*boxes[2]);
+    }
+
+    @Override
+    public int[] getBoxes() {
+        return parent.getBoxes();
+    }
+
+    @Override
+    public double[] getBox() {
+        return parent.boxSize;
+    }
+
+    @Override
+    public double getConc(int x, int y, int z) {
+        return parent.getConc(species, parent.boxIndex(x, y, z));
+    }
+
+    @Override
+    public double getConc(Vector3d v) {
+        return parent.getConc(species, parent.boxIndex(v));
+    }
+
+    @Override
+    public void setConc(double c) {
+        parent.setConc(species, c);
+    }
+
+    @Override
+    public void setConc(int x, int y, int z, double c) {
+        parent.setConc(species, parent.boxIndex(x, y, z), c);
+    }
+
+    @Override
+    public void addQuantity(int x, int y, int z, double q) {
+        parent.addQuantity(species, parent.boxIndex(x, y, z), q);
+    }
+
+    @Override
+    public void addQuantity(Vector3d v, double q) {
+        parent.addQuantity(species, parent.boxIndex(v), q);
+    }
+
+    @Override
+    public double totalQuantity() {
+        return parent.getTotal(species);
+    }
+
+    @Override
+    public double maxConc() {
+        if (parent.isTrackExtrema()) {
+            return parent.getMax(species);
+        }
+        int[] boxes = parent.getBoxes();
+        double max = Double.NEGATIVE_INFINITY;
+        for (int box = 0; box < boxes[0]*boxes[1]*boxes[2]; box++) {
+            max = Math.max(max, parent.getConc(species, box));
+        }
+        return max;
+    }
+
+    @Override
+    public void update() {
+        parent.update(species);
+    }
+}
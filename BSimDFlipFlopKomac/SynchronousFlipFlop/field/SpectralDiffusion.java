@@ -0,0 +1,96 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.field;
+
+/**
+ * Exact diffusion for a MultiSpeciesField, in Fourier space.
+ *
+ * Between deposits the quantities follow du/dt = D*L u, with L the Laplacian of the stencil, whose solution
+ * after dt is exp(D*dt*L) u. The 1D Laplacians along the axes commute, so this is the product of
+ * exp(c*L) along each axis, c = D*dt/dx^2 (see LineDiffusion), and along a line exp(c*L) is diagonal in
+ * Fourier space:
+ *   - wrapped line of n boxes: the DFT of length n; L has eigenvalues -4*sin^2(pi*k/n);
+ *   - zero-flux line (solid boundary): the line mirrored at its end is a wrapped line of 2n boxes with the
+ *     same Laplacian, so its DFT of length 2n (a DCT of the line) has eigenvalues -4*sin^2(pi*k/(2n)).
+ * A line is transformed (Fourier), multiplied by exp(-4*c*sin^2(pi*k/N)) and transformed back. The result is
+ * the stencil's diffusion integrated exactly over any dt: it is stable, has no time-step error, and the total
+ * quantity is only changed by rounding. The lines of two species are packed into one complex transform, as
+ * real and imaginary parts.
+ *
+ * A step costs O(n log n) per line whatever dt is, several times an ADI step, so it pays off when dt is large:
+ * fast-diffusing species, or long intervals without deposits. Transform lengths (n along a wrapped axis, 2n
+ * along a solid one) that are powers of two are the fastest; other lengths go through Bluestein's algorithm
+ * at about four times the cost.
+ */
+final class SpectralDiffusion extends LineDiffusion {
+
+    SpectralDiffusion(int[] _boxes, int _nSpecies, double[] _boxSize, double _diffusivity) {
+        super(_boxes, _nSpecies, _boxSize, _diffusivity);
+    }
+
+    @Override
+    protected Operator operator(int n, double c, boolean periodic) {
+        return new LineFilter(n, c, periodic);
+    }
+
+    /*
+     * exp(c*L) along one line of n boxes.
+     */
+    static final class LineFilter extends Operator {
+
+        private final int n;
+        private final boolean periodic;
+        private final Fourier fourier;
+
+        // exp(-4*c*sin^2(pi*k/N)), divided by N for the inverse transform
+        private final double[] filter;
+
+        LineFilter(int _n, double c, boolean _periodic) {
+            this.n = _n;
+            this.periodic = _periodic;
+            int length = periodic ? n : 2*n;
+            this.fourier = new Fourier(length);
+
+            filter = new double[length];
+            for (int k = 0; k < length; k++) {
+                double s = Math.sin(Math.PI*k/length);
+                filter[k] = Math.exp(-4*c*s*s)/length;
+            }
+        }
+
+        @Override
+        double[][] workspace() {
+            int length = filter.length, scratch = fourier.scratchLength();
+            return new double[][] {new double[length], new double[length], new double[scratch], new double[scratch]};
+        }
+
+        @Override
+        void apply(double[] u, double[] v, double[][] work) {
+            final int length = filter.length;
+            final double[] re = work[0], im = work[1];
+
+            for (int i = 0; i < n; i++) {
+                re[i] = u[i];
+                im[i] = (v != null) ? v[i] : 0;
+            }
+            if (!periodic) {
+                for (int i = 0; i < n; i++) {
+                    re[length - 1 - i] = re[i];
+                    im[length - 1 - i] = im[i];
+                }
+            }
+
+            fourier.transform(re, im, false, work[2], work[3]);
+            for (int k = 0; k < length; k++) {
+                re[k] *= filter[k];
+                im[k] *= filter[k];
+            }
+            fourier.transform(re, im, true, work[2], work[3]);
+
+            for (int i = 0; i < n; i++) {
+                u[i] = re[i];
+                if (v != null) {
+                    v[i] = im[i];
+                }
+            }
+        }
+    }
+}
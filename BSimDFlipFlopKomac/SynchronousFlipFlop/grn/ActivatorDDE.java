@@ -1,12 +1,11 @@
 package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
 
 import BSimDFlipFlopKomac.SynchronousFlipFlop.ChenParameters;
-import org.opensourcephysics.numerics.ode_interpolation.StateHistory;
-import org.opensourcephysics.numerics.ode_solvers.DelayDifferentialEquation;
+import org.opensourcephysics.numerics.ODE;
 
 /**
  */
-public class ActivatorDDE implements DelayDifferentialEquation{
+public class ActivatorDDE implements ODE, ChenSplitRates {
 
     private double H_external = 10.0;
     private double I_external = 10.0;
@@ -33,13 +32,25 @@ public class ActivatorDDE implements DelayDifferentialEquation{
     private double[] mState = new double[8];
     public double[] initialConditions = new double[8];
 
-    private StateHistory mHistory;
+    // Created on first use: a GRN integrated by a ChenPopulationDDE never reads its own history
+    private DelayRingBuffer mHistory;
+    private final double[] historyRate = new double[8];
+    private final double[] delayed = new double[8];
 
     // Implementation of ODE
 
     public double[] getState() { return mState; }
 
     public void getRate(double[] state, double[] rate){
+        // One history lookup for all delayed components
+        getHistory().interpolate(state[7] - lag, delayed);
+
+        rates(state, delayed, H_external, I_external, rate);
+    }
+
+    // Implementation of ChenRates
+
+    public void rates(double[] state, double[] delayed, double H_ext, double I_ext, double[] rate){
         double R_a = state[0];
         double L_a = state[1];
         double A_a = state[2];
@@ -55,20 +66,20 @@ public class ActivatorDDE implements DelayDifferentialEquation{
 //        double M_r = state[9];
 
         double H_a = state[5];
-        double H_e = H_external; //state[11];
+        double H_e = H_ext; //state[11];
 //        double H_r = state[12];
 
 //        double I_r = state[13];
-        double I_e = I_external; //state[14];
+        double I_e = I_ext; //state[14];
         double I_a = state[6];
 
-        double H_a_tau = mHistory.interpolate(state[7] - lag, 5);
-        double I_a_tau = mHistory.interpolate(state[7] - lag, 6);
+        double H_a_tau = delayed[5];
+        double I_a_tau = delayed[6];
 
 //        double H_r_tau = mHistory.interpolate(state[16] - lag, 12);
 //        double I_r_tau = mHistory.interpolate(state[16] - lag, 13);
 
-        double L_a_tau = mHistory.interpolate(state[7] - lag, 1);
+        double L_a_tau = delayed[1];
 //        double L_r_tau = mHistory.interpolate(state[16] - lag, 4);
 
         double deg_a_pref = d_C/(K_C + R_a + A_a + L_a + F_a + M_a);
@@ -116,33 +127,81 @@ public class ActivatorDDE implements DelayDifferentialEquation{
         rate[7] = 1; // time
     }
 
-    // Implementation of DelayDifferentialEquation
+    // Implementation of ChenSplitRates
+
+    public void productionLoss(double[] state, double[] delayed, double H_ext, double I_ext, double[] production, double[] loss){
+        double R_a = state[0];
+        double L_a = state[1];
+        double A_a = state[2];
+        double F_a = state[3];
+        double M_a = state[4];
+        double H_a = state[5];
+        double I_a = state[6];
+
+        double H_a_tau = delayed[5];
+        double I_a_tau = delayed[6];
+        double L_a_tau = delayed[1];
 
-    public void setStateHistory(StateHistory memory) { mHistory = memory; }
+        double deg_a_pref = d_C/(K_C + R_a + A_a + L_a + F_a + M_a);
+        double aiia = d_A*A_a/(K_A + I_a + H_a);
 
-    public double getMaximumDelay() { return lag; }
+        // R_a
+        production[0] = (eta_R0 + eta_R1*Math.pow((H_a_tau/K_H_s), n_H))/( 1 + Math.pow((H_a_tau/K_H_s), n_H) + Math.pow((L_a_tau/K_L), n_L) );
+        loss[0] = deg_a_pref + d;
+        // L_a
+        production[1] = (eta_L0 + eta_L1*Math.pow((I_a_tau/K_I_w), n_I))/( 1 + Math.pow((I_a_tau/K_I_w), n_I) );
+        loss[1] = deg_a_pref + d;
+        // A_a
+        production[2] = (eta_A0 + eta_A1*Math.pow((I_a_tau/K_I_m), n_I))/( 1 + Math.pow((I_a_tau/K_I_m), n_I) );
+        loss[2] = deg_a_pref + d;
+        // F_a
+        production[3] = (eta_F0 + eta_F1*Math.pow((H_a_tau/K_H_s), n_H))/( 1 + Math.pow((H_a_tau/K_H_s), n_H) + Math.pow((L_a_tau/K_L), n_L) );
+        loss[3] = deg_a_pref + d + m;
+        // M_a
+        production[4] = m*F_a;
+        loss[4] = deg_a_pref + d;
+        // H_a
+        production[5] = phi_H*R_a + D_H*H_ext;
+        loss[5] = D_H + aiia + d;
+        // I_a
+        production[6] = D_I*I_ext;
+        loss[6] = D_I + aiia + d;
+
+        production[7] = 1; // time
+        loss[7] = 0;
+    }
 
-    public double[] getDelays(double[] state) { return new double[] { lag }; }
-
-    public void getInitialCondition(double time, double state[]){
-//        state[0] = 10;
-//        state[1] = 1;
-//        state[2] = 10;
-//        state[3] = 10;
-//        state[4] = 10;
-//        state[5] = 10;
-//        state[6] = 10;
-        System.arraycopy(initialConditions, 0, state, 0, initialConditions.length - 1);
-        state[7] = time;
+    // Delay history
+
+    /**
+     * Store the current state in the delay history; called after every solver step.
+     */
+    public void recordHistory() {
+        getRate(mState, historyRate);
+        getHistory().record(mState[7], mState, historyRate);
     }
 
-    public double[] getInitialConditionDiscontinuities(){
-        return null;
+    public DelayRingBuffer getHistory() {
+        if (mHistory == null) {
+            // Only the delayed components are kept; the history is constant (the ICs) before the start
+            mHistory = new DelayRingBuffer(getDelayedComponents(), historyLength);
+            mHistory.setInitialHistory(initialConditions);
+        }
+        return mHistory;
     }
 
+    public double getMaximumDelay() { return lag; }
+
+    public double getHistoryLength() { return historyLength; }
+
+    public int[] getDelayedComponents() { return new int[] {1, 5, 6}; }
+
     // Delay
     private double lag = 7.5;
 
+    // Length of the delay history (the lag plus some slack for the solver's internal steps)
+    private double historyLength = 8.0;
+
     /**
      * PARAMETERS
      */
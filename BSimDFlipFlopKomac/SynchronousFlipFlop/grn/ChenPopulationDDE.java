@@ -0,0 +1,1001 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Population-level integrator for the Chen oscillator GRNs (ActivatorDDE or RepressorDDE) of every cell
+ * of one type in a simulation.
+ *
+ * All cells share the lag and the right-hand side, so they are advanced together with the adaptive
+ * Bogacki-Shampine 3(2) pair that each cell used through InterpolatorEventSolver, but with one step size
+ * for the whole population. The error is controlled on the maximum norm over all cells, so every cell is
+ * integrated at least as accurately as it would be on its own.
+ *
+ * A history row is recorded after every accepted internal step, and no internal step is longer than the lag,
+ * so the delayed time of every stage lies within the recorded history and the delayed values are always
+ * interpolated, never extrapolated past the newest row. step() can therefore be called with any h.
+ *
+ * States, stages and the delay history are stored in columnar primitive arrays (one column per state
+ * component, indexed by slot). Because all cells advance in lock-step, the delayed time t - lag is the
+ * same for every cell: the history bracket and the Hermite weights are found once per stage and the
+ * delayed values of all cells are filled in one loop.
+ *
+ * Each cell's own state array (grn_state) is registered with add() and updated after every step, so the
+ * drawers and loggers that read it keep working. A cell added later sees its initial conditions as
+ * constant pre-history, as a freshly created DDE does.
+ *
+ * Cells are independent within a stage, so step() can split the slots over a ForkJoinPool: each stage of
+ * a step is one pass over the cells (stage values, delayed values, rates, and for the last stage the error
+ * norm, reduced with a maximum over the chunks). Every cell is advanced with the same operations either
+ * way, so the result does not depend on the number of threads.
+ *
+ * With setImex(true) the population is instead advanced with a second-order IMEX scheme on the
+ * production/loss split of the model (ChenSplitRates, y' = P - L*y). The loss terms (ClpXP and AiiA
+ * degradation, dilution, maturation, export) are integrated exactly for coefficients frozen over the step,
+ * the production terms explicitly:
+ *
+ *   predictor  y* = y*exp(-h*L0) + h*phi(h*L0)*P0,                     phi(x) = (1 - exp(-x))/x
+ *   corrector  y1 = y*exp(-h*Lm) + h*phi(h*Lm)*Pm,  Pm = (P0 + P*)/2, Lm = (L0 + L*)/2
+ *
+ * The corrector is second order and, like the predictor, unconditionally stable and positivity preserving
+ * for the loss terms. Each step is also taken as two half steps, which are kept; the difference between the
+ * two results estimates the corrector's error and controls the step size (step doubling). ChenSolverComparison
+ * compares the two integrators.
+ *
+ * With quiescence tracking enabled, a cell at a steady state (small rates, and its state equal to its
+ * delayed state) whose H and I levels stay put is put to sleep: its rates are not evaluated and its
+ * state is held, with only its clock advancing, until its inputs move (see QuiescenceTracker). Its
+ * history then holds the constant state, so it restarts from a consistent pre-history.
+ */
+public class ChenPopulationDDE {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Fewest cells worth a task of their own in a parallel step (a cell's rates take a dozen Math.pow calls)
+    private static final int MIN_CHUNK = 64;
+
+    // Passes over the cells in a step
+    private static final int WAKE = 0;
+    private static final int FIRST_STAGE = 1;
+    private static final int SECOND_STAGE = 2;
+    private static final int THIRD_STAGE = 3;
+    private static final int SOLUTION = 4;
+    private static final int OBSERVE = 5;
+    private static final int WRITE_BACK = 6;
+    private static final int IMEX_START = 7;
+    private static final int IMEX_FIRST_HALF = 8;
+    private static final int IMEX_SECOND_HALF = 9;
+
+    // Number of history rows kept per history length
+    private static final int SAMPLES_PER_LENGTH = 128;
+    private static final int MARGIN = 4;
+
+    // Tolerances, as used for the per-cell solvers
+    private static final double ABS_TOL = 1.0e-6;
+    private static final double REL_TOL = 1.0e-3;
+
+    // Step size controller limits
+    private static final double SAFETY = 0.9;
+    private static final double MIN_SCALE = 0.2;
+    private static final double MAX_SCALE = 5.0;
+    private static final double MIN_STEP = 1.0e-9;
+
+    // The model, shared by all cells
+    private final ChenRates odesys;
+    private final double lag;
+    private final double historyLength;
+    private final double historySpacing;
+
+    // Number of state components (the last one is the cell's time)
+    private final int numEq;
+    private final int timeIndex;
+
+    // Delayed components, and their position in the history columns
+    private final int[] delayedComponents;
+    private final int nDelayed;
+
+    // Columns: y[component][slot]
+    private double[][] y;
+    private double[][] yStage;
+    private double[][] yNew;
+    private double[][] k1;
+    private double[][] k2;
+    private double[][] k3;
+    private double[][] k4;
+
+    // External H and I levels seen by each cell during the current step
+    private double[] H;
+    private double[] I;
+
+    // Delayed values of all cells at the current stage: delayedValues[j][slot] for delayedComponents[j]
+    private double[][] delayedValues;
+
+    // Where the delayed values of the current stage come from: the current state (no history recorded yet),
+    // or the Hermite weights of history rows row0 and row1
+    private boolean delayedFromState;
+    private int delayedRow0, delayedRow1;
+    private double w00, w10, w01, w11;
+
+    // Cell state arrays updated after each step
+    private double[][] views;
+
+    private boolean[] active;
+    private int[] freeSlots;
+    private int nFree = 0;
+    private int size = 0;
+    private int capacity;
+
+    // Delay history: a ring of rows, rowTimes[row] and histValues/histRates[j][row*capacity + slot]
+    private final int rowCapacity;
+    private final double[] rowTimes;
+    private double[][] histValues;
+    private double[][] histRates;
+    private int rowHead = 0;
+    private int rowCount = 0;
+
+    // Population time (each cell's own time is kept in its state) and the current step size
+    private double time = 0;
+    private double stepSize = -1;
+
+    // Statistics of the last call to step()
+    private int acceptedSteps = 0;
+    private int rejectedSteps = 0;
+
+    // Number of population-wide right-hand side evaluations so far
+    private long rateEvaluations = 0;
+
+    // IMEX scheme: the split model (null if the model has no production/loss split), and the production and
+    // loss columns at the start and at the midpoint of a step (allocated by setImex)
+    private boolean imex = false;
+    private final ChenSplitRates splitOdesys;
+    private double[][] production0;
+    private double[][] loss0;
+    private double[][] productionMid;
+    private double[][] lossMid;
+
+    // Skips cells at a steady state (null: disabled)
+    private QuiescenceTracker quiescence = null;
+
+    // Pool of the current step (null: serial)
+    private ForkJoinPool pool = null;
+
+    // Scratch of the passes, one per thread, kept between steps
+    private final ThreadLocal<Scratch> threadScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    public ChenPopulationDDE(ChenRates _odesys, int _numEq) {
+        this.odesys = _odesys;
+        this.splitOdesys = (_odesys instanceof ChenSplitRates) ? (ChenSplitRates) _odesys : null;
+        this.lag = _odesys.getMaximumDelay();
+        this.historyLength = _odesys.getHistoryLength();
+        this.historySpacing = historyLength/SAMPLES_PER_LENGTH;
+
+        this.numEq = _numEq;
+        this.timeIndex = _numEq - 1;
+
+        this.delayedComponents = _odesys.getDelayedComponents();
+        this.nDelayed = delayedComponents.length;
+
+        this.capacity = INITIAL_CAPACITY;
+        y = new double[numEq][capacity];
+        yStage = new double[numEq][capacity];
+        yNew = new double[numEq][capacity];
+        k1 = new double[numEq][capacity];
+        k2 = new double[numEq][capacity];
+        k3 = new double[numEq][capacity];
+        k4 = new double[numEq][capacity];
+        H = new double[capacity];
+        I = new double[capacity];
+        delayedValues = new double[nDelayed][capacity];
+        views = new double[capacity][];
+        active = new boolean[capacity];
+        freeSlots = new int[capacity];
+
+        rowCapacity = SAMPLES_PER_LENGTH + MARGIN;
+        rowTimes = new double[rowCapacity];
+        histValues = new double[nDelayed][rowCapacity*capacity];
+        histRates = new double[nDelayed][rowCapacity*capacity];
+    }
+
+    /**
+     * A population of activator GRNs.
+     */
+    public static ChenPopulationDDE activators() {
+        return new ChenPopulationDDE(new ActivatorDDE(new double[8]), 8);
+    }
+
+    /**
+     * A population of repressor GRNs.
+     */
+    public static ChenPopulationDDE repressors() {
+        return new ChenPopulationDDE(new RepressorDDE(new double[8]), 8);
+    }
+
+    /**
+     * Add a cell to the population.
+     * @param state the cell's state array; holds the initial conditions, and is kept up to date from now on
+     * @return the slot holding the cell's state
+     */
+    public int add(double[] state) {
+        int slot;
+        if (nFree > 0) {
+            slot = freeSlots[--nFree];
+        } else {
+            if (size == capacity) {
+                grow(2*capacity);
+            }
+            slot = size++;
+        }
+
+        for (int c = 0; c < numEq; c++) {
+            y[c][slot] = state[c];
+        }
+        H[slot] = 0;
+        I[slot] = 0;
+        views[slot] = state;
+        active[slot] = true;
+        if (quiescence != null) {
+            quiescence.reset(slot);
+        }
+
+        // Constant pre-history: the initial conditions, with zero rate, in every row
+        for (int j = 0; j < nDelayed; j++) {
+            double value = state[delayedComponents[j]];
+            double[] values = histValues[j];
+            double[] rates = histRates[j];
+            for (int row = 0; row < rowCapacity; row++) {
+                values[row*capacity + slot] = value;
+                rates[row*capacity + slot] = 0;
+            }
+        }
+
+        return slot;
+    }
+
+    /**
+     * Remove a cell from the population; its slot will be reused.
+     */
+    public void remove(int slot) {
+        active[slot] = false;
+        if (quiescence != null) {
+            quiescence.reset(slot);
+        }
+        views[slot] = null;
+        freeSlots[nFree++] = slot;
+    }
+
+    /**
+     * Set the external H and I levels seen by a cell during the next step.
+     */
+    public void setExternalLevel(int slot, double _H, double _I) {
+        H[slot] = _H;
+        I[slot] = _I;
+    }
+
+    public int getNumEq() {
+        return numEq;
+    }
+
+    /**
+     * @return the delay of the model (minutes)
+     */
+    public double getLag() {
+        return lag;
+    }
+
+    /**
+     * @return number of accepted and rejected population steps in the last call to step()
+     */
+    public int getAcceptedSteps() {
+        return acceptedSteps;
+    }
+
+    public int getRejectedSteps() {
+        return rejectedSteps;
+    }
+
+    /**
+     * @return number of right-hand side evaluations of the whole population so far
+     */
+    public long getRateEvaluations() {
+        return rateEvaluations;
+    }
+
+    /**
+     * Choose between the explicit Bogacki-Shampine 3(2) integrator (default) and the IMEX scheme.
+     * The IMEX scheme needs a model with a production/loss split (ChenSplitRates).
+     */
+    public void setImex(boolean _imex) {
+        if (_imex && splitOdesys == null) {
+            throw new IllegalArgumentException("IMEX integration needs a ChenSplitRates model");
+        }
+        if (_imex && production0 == null) {
+            production0 = new double[numEq][capacity];
+            loss0 = new double[numEq][capacity];
+            productionMid = new double[numEq][capacity];
+            lossMid = new double[numEq][capacity];
+        }
+        if (_imex != imex) {
+            stepSize = -1;
+        }
+        this.imex = _imex;
+    }
+
+    public boolean isImex() {
+        return imex;
+    }
+
+    /**
+     * Skip cells at a steady state.
+     * @param rateTolerance  largest relative rate of change (per minute) of a cell put to sleep
+     * @param inputTolerance relative change of H or I that wakes a sleeping cell
+     */
+    public void enableQuiescence(double rateTolerance, double inputTolerance) {
+        quiescence = new QuiescenceTracker(capacity, rateTolerance, inputTolerance);
+    }
+
+    /**
+     * @return number of cells skipped by the last step (0 if quiescence tracking is disabled)
+     */
+    public int getSkipped() {
+        return (quiescence == null) ? 0 : quiescence.getSkipped();
+    }
+
+    /**
+     * Advance every cell in the population by h, then write the new states back into the cells.
+     */
+    public void step(double h) {
+        step(h, null);
+    }
+
+    /**
+     * Advance every cell in the population by h, splitting the cells over a pool (serially if null), then
+     * write the new states back into the cells.
+     */
+    public void step(double h, ForkJoinPool _pool) {
+        this.pool = _pool;
+        acceptedSteps = 0;
+        rejectedSteps = 0;
+
+        if (stepSize <= 0) {
+            stepSize = h;
+        }
+
+        final double tEnd = time + h;
+
+        // Wake the sleeping cells whose inputs have moved
+        if (quiescence != null) {
+            quiescence.beginStep();
+            pass(WAKE, 0);
+        }
+
+        if (imex) {
+            stepImex(tEnd);
+        } else {
+            stepExplicit(tEnd);
+        }
+
+        if (quiescence != null) {
+            pass(OBSERVE, 0);
+        }
+        pass(WRITE_BACK, 0);
+        this.pool = null;
+    }
+
+    /*
+     * Bogacki-Shampine 3(2) steps up to tEnd, recording a history row after each.
+     */
+    private void stepExplicit(double tEnd) {
+        // The external levels have changed since the last step, so the first stage is evaluated afresh
+        prepareDelayed(time - lag);
+        pass(FIRST_STAGE, 0);
+        rateEvaluations++;
+        if (rowCount == 0) {
+            record(time);
+        }
+
+        while (tEnd - time > MIN_STEP) {
+            double hs = Math.min(Math.min(stepSize, lag), tEnd - time);
+
+            // Bogacki-Shampine 3(2)
+            prepareDelayed(time + 0.5*hs - lag);
+            pass(SECOND_STAGE, hs);
+
+            prepareDelayed(time + 0.75*hs - lag);
+            pass(THIRD_STAGE, hs);
+
+            prepareDelayed(time + hs - lag);
+            double err = pass(SOLUTION, hs);
+            rateEvaluations += 3;
+
+            if (err <= 1 || hs <= MIN_STEP) {
+                time += hs;
+
+                double[][] swap = y; y = yNew; yNew = swap;
+                swap = k1; k1 = k4; k4 = swap;
+                record(time);
+
+                acceptedSteps++;
+            } else {
+                rejectedSteps++;
+            }
+
+            double scale = (err == 0) ? MAX_SCALE : SAFETY*Math.pow(err, -1.0/3.0);
+            stepSize = hs*Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale));
+        }
+    }
+
+    /*
+     * IMEX predictor-corrector steps up to tEnd, recording a history row after each. Every step is taken
+     * both whole and as two halves; the halves are kept, and their difference from the whole step estimates
+     * the error of the second-order corrector (step doubling, Richardson: err = |y_halves - y_whole|/3).
+     * The midpoint goes to k3, which the scheme does not otherwise use.
+     */
+    private void stepImex(double tEnd) {
+        // The external levels have changed since the last step, so the production and loss are evaluated afresh
+        prepareDelayed(time - lag);
+        pass(IMEX_START, 0);
+        rateEvaluations++;
+        if (rowCount == 0) {
+            record(time);
+        }
+
+        while (tEnd - time > MIN_STEP) {
+            double hs = Math.min(Math.min(stepSize, lag), tEnd - time);
+
+            // First half, and the production and loss at the midpoint
+            prepareDelayed(time + 0.5*hs - lag);
+            pass(IMEX_FIRST_HALF, hs);
+
+            // Whole step and second half, both ending at time + hs
+            prepareDelayed(time + hs - lag);
+            double err = pass(IMEX_SECOND_HALF, hs);
+            rateEvaluations += 4;
+
+            if (err <= 1 || hs <= MIN_STEP) {
+                time += hs;
+
+                double[][] swap = y; y = yNew; yNew = swap;
+                prepareDelayed(time - lag);
+                pass(IMEX_START, 0);
+                rateEvaluations++;
+                record(time);
+
+                acceptedSteps++;
+            } else {
+                rejectedSteps++;
+            }
+
+            double scale = (err == 0) ? MAX_SCALE : SAFETY*Math.pow(err, -1.0/3.0);
+            stepSize = hs*Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale));
+        }
+    }
+
+    /*
+     * One pass over all cells, split over the pool if there is one and the population is large enough.
+     * Returns the error norm of a SOLUTION pass (0 for the others).
+     */
+    private double pass(int phase, double hs) {
+        if (pool == null || size < 2*MIN_CHUNK) {
+            return pass(phase, hs, 0, size, threadScratch.get());
+        }
+        int chunk = Math.max(MIN_CHUNK, size/(4*pool.getParallelism()));
+        Chunk task = new Chunk(phase, hs, 0, size, chunk);
+        pool.invoke(task);
+        return task.err;
+    }
+
+    /*
+     * One pass over the cells in slots [from, to). The delayed values have been prepared for the stage.
+     */
+    private double pass(int phase, double hs, int from, int to, Scratch scratch) {
+        switch (phase) {
+            case WAKE:
+                for (int i = from; i < to; i++) {
+                    if (active[i]) {
+                        quiescence.sleeps(i, H[i], I[i]);
+                    }
+                }
+                return 0;
+            case FIRST_STAGE:
+                fillDelayed(from, to);
+                rates(y, k1, from, to, scratch);
+                return 0;
+            case SECOND_STAGE:
+                stage(y, k1, 0.5*hs, yStage, from, to);
+                fillDelayed(from, to);
+                rates(yStage, k2, from, to, scratch);
+                return 0;
+            case THIRD_STAGE:
+                stage(y, k2, 0.75*hs, yStage, from, to);
+                fillDelayed(from, to);
+                rates(yStage, k3, from, to, scratch);
+                return 0;
+            case SOLUTION:
+                for (int c = 0; c < numEq; c++) {
+                    double[] yc = y[c], yn = yNew[c], k1c = k1[c], k2c = k2[c], k3c = k3[c];
+                    for (int i = from; i < to; i++) {
+                        yn[i] = yc[i] + hs*(2.0/9.0*k1c[i] + 1.0/3.0*k2c[i] + 4.0/9.0*k3c[i]);
+                    }
+                }
+                fillDelayed(from, to);
+                rates(yNew, k4, from, to, scratch);
+                return errorNorm(hs, from, to);
+            case OBSERVE:
+                observe(from, to);
+                return 0;
+            case IMEX_START:
+                fillDelayed(from, to);
+                imexStart(from, to, scratch);
+                return 0;
+            case IMEX_FIRST_HALF:
+                fillDelayed(from, to);
+                imexFirstHalf(0.5*hs, from, to, scratch);
+                return 0;
+            case IMEX_SECOND_HALF:
+                fillDelayed(from, to);
+                return imexSecondHalf(hs, from, to, scratch);
+            default:
+                writeBack(from, to);
+                return 0;
+        }
+    }
+
+    /*
+     * Report the activity of the awake cells in [from, to) at the end of a step: the rates in k1, and the
+     * difference between the delayed components and their delayed values (from the last evaluation, at the
+     * end time).
+     */
+    private void observe(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!active[i] || quiescence.isAsleep(i)) {
+                continue;
+            }
+            double activity = 0;
+            for (int c = 0; c < timeIndex; c++) {
+                activity = Math.max(activity, QuiescenceTracker.relativeRate(k1[c][i], y[c][i]));
+            }
+            for (int j = 0; j < nDelayed; j++) {
+                double value = y[delayedComponents[j]][i];
+                activity = Math.max(activity, QuiescenceTracker.relativeRate((value - delayedValues[j][i])/lag, value));
+            }
+            quiescence.observe(i, activity, H[i], I[i]);
+        }
+    }
+
+    /*
+     * A sleeping cell holds its state; only its clock advances.
+     */
+    private boolean holdAsleep(int i, double[][] rate) {
+        if (quiescence == null || !quiescence.isAsleep(i)) {
+            return false;
+        }
+        for (int c = 0; c < numEq; c++) {
+            rate[c][i] = 0;
+        }
+        rate[timeIndex][i] = 1;
+        return true;
+    }
+
+    /*
+     * out = y + a*k for the cells in [from, to).
+     */
+    private void stage(double[][] y0, double[][] k, double a, double[][] out, int from, int to) {
+        for (int c = 0; c < numEq; c++) {
+            double[] yc = y0[c], kc = k[c], oc = out[c];
+            for (int i = from; i < to; i++) {
+                oc[i] = yc[i] + a*kc[i];
+            }
+        }
+    }
+
+    /*
+     * Maximum over the cells in [from, to) and all components of the scaled difference between the 3rd and
+     * 2nd order solutions.
+     */
+    private double errorNorm(double hs, int from, int to) {
+        double err = 0;
+        for (int c = 0; c < timeIndex; c++) {
+            double[] yc = y[c], yn = yNew[c], k1c = k1[c], k2c = k2[c], k3c = k3[c], k4c = k4[c];
+            for (int i = from; i < to; i++) {
+                if (!active[i]) {
+                    continue;
+                }
+                double e = hs*(-5.0/72.0*k1c[i] + 1.0/12.0*k2c[i] + 1.0/9.0*k3c[i] - 1.0/8.0*k4c[i]);
+                double scale = ABS_TOL + REL_TOL*Math.max(Math.abs(yc[i]), Math.abs(yn[i]));
+                err = Math.max(err, Math.abs(e)/scale);
+            }
+        }
+        return err;
+    }
+
+    /*
+     * Right-hand side of the active cells in [from, to), with the delayed values of the stage.
+     */
+    private void rates(double[][] state, double[][] rate, int from, int to, Scratch scratch) {
+        final double[] cellState = scratch.state, cellDelayed = scratch.delayed, cellRate = scratch.rate;
+        for (int i = from; i < to; i++) {
+            if (!active[i] || holdAsleep(i, rate)) {
+                continue;
+            }
+
+            for (int c = 0; c < numEq; c++) {
+                cellState[c] = state[c][i];
+            }
+            for (int j = 0; j < nDelayed; j++) {
+                cellDelayed[delayedComponents[j]] = delayedValues[j][i];
+            }
+
+            odesys.rates(cellState, cellDelayed, H[i], I[i], cellRate);
+
+            for (int c = 0; c < numEq; c++) {
+                rate[c][i] = cellRate[c];
+            }
+        }
+    }
+
+    /*
+     * Production and loss at the start of an IMEX step for the active cells in [from, to); also k1 = P - L*y.
+     */
+    private void imexStart(int from, int to, Scratch scratch) {
+        final double[] cellState = scratch.state, production = scratch.production, loss = scratch.loss;
+        for (int i = from; i < to; i++) {
+            if (!active[i]) {
+                continue;
+            }
+            for (int c = 0; c < numEq; c++) {
+                cellState[c] = y[c][i];
+            }
+            productionLoss(i, cellState, scratch);
+            for (int c = 0; c < numEq; c++) {
+                production0[c][i] = production[c];
+                loss0[c][i] = loss[c];
+                k1[c][i] = production[c] - loss[c]*cellState[c];
+            }
+        }
+    }
+
+    /*
+     * First half step (of length hh) of the active cells in [from, to), into k3, and the production and loss at
+     * its end.
+     */
+    private void imexFirstHalf(double hh, int from, int to, Scratch scratch) {
+        final double[] cellState = scratch.state, production = scratch.production, loss = scratch.loss;
+        final double[][] yMid = k3;
+        for (int i = from; i < to; i++) {
+            if (!active[i]) {
+                continue;
+            }
+
+            // Predictor, then corrector with the coefficients averaged over the half step
+            for (int c = 0; c < numEq; c++) {
+                cellState[c] = exponentialStep(y[c][i], production0[c][i], loss0[c][i], hh);
+            }
+            productionLoss(i, cellState, scratch);
+            for (int c = 0; c < numEq; c++) {
+                yMid[c][i] = exponentialStep(y[c][i], 0.5*(production0[c][i] + production[c]),
+                        0.5*(loss0[c][i] + loss[c]), hh);
+                cellState[c] = yMid[c][i];
+            }
+
+            productionLoss(i, cellState, scratch);
+            for (int c = 0; c < numEq; c++) {
+                productionMid[c][i] = production[c];
+                lossMid[c][i] = loss[c];
+            }
+        }
+    }
+
+    /*
+     * Whole step and second half step of the active cells in [from, to), the halves into yNew.
+     * Returns the largest scaled difference between the two, the error estimate of the halves.
+     */
+    private double imexSecondHalf(double hs, int from, int to, Scratch scratch) {
+        final double[] cellState = scratch.state, production = scratch.production, loss = scratch.loss;
+        final double[] whole = scratch.whole;
+        final double[][] yMid = k3;
+        final double hh = 0.5*hs;
+        double err = 0;
+        for (int i = from; i < to; i++) {
+            if (!active[i]) {
+                continue;
+            }
+
+            // Whole step
+            for (int c = 0; c < numEq; c++) {
+                cellState[c] = exponentialStep(y[c][i], production0[c][i], loss0[c][i], hs);
+            }
+            productionLoss(i, cellState, scratch);
+            for (int c = 0; c < numEq; c++) {
+                whole[c] = exponentialStep(y[c][i], 0.5*(production0[c][i] + production[c]),
+                        0.5*(loss0[c][i] + loss[c]), hs);
+            }
+
+            // Second half, from the midpoint
+            for (int c = 0; c < numEq; c++) {
+                cellState[c] = exponentialStep(yMid[c][i], productionMid[c][i], lossMid[c][i], hh);
+            }
+            productionLoss(i, cellState, scratch);
+            for (int c = 0; c < numEq; c++) {
+                yNew[c][i] = exponentialStep(yMid[c][i], 0.5*(productionMid[c][i] + production[c]),
+                        0.5*(lossMid[c][i] + loss[c]), hh);
+            }
+
+            for (int c = 0; c < timeIndex; c++) {
+                double scale = ABS_TOL + REL_TOL*Math.max(Math.abs(y[c][i]), Math.abs(yNew[c][i]));
+                err = Math.max(err, Math.abs(yNew[c][i] - whole[c])/(3*scale));
+            }
+        }
+        return err;
+    }
+
+    /*
+     * Production and loss of cell i in the given state, with the delayed values of the stage, into the scratch.
+     * A sleeping cell holds its state: no production or loss, only its clock advances.
+     */
+    private void productionLoss(int i, double[] cellState, Scratch scratch) {
+        final double[] production = scratch.production, loss = scratch.loss;
+        if (quiescence != null && quiescence.isAsleep(i)) {
+            Arrays.fill(production, 0);
+            Arrays.fill(loss, 0);
+            production[timeIndex] = 1;
+            return;
+        }
+
+        final double[] cellDelayed = scratch.delayed;
+        for (int j = 0; j < nDelayed; j++) {
+            cellDelayed[delayedComponents[j]] = delayedValues[j][i];
+        }
+        splitOdesys.productionLoss(cellState, cellDelayed, H[i], I[i], production, loss);
+    }
+
+    /*
+     * Exact solution of y' = p - l*y over h, for constant p and l >= 0.
+     */
+    private static double exponentialStep(double y0, double p, double l, double h) {
+        double x = l*h;
+        double phi;
+        if (x < 1e-5) {
+            phi = 1 - x*(0.5 - x/6.0);
+        } else {
+            phi = -Math.expm1(-x)/x;
+        }
+        return y0*Math.exp(-x) + h*phi*p;
+    }
+
+    /*
+     * Where the delayed values at population time td come from: one bracket search, one set of Hermite weights
+     * for all cells.
+     */
+    private void prepareDelayed(double td) {
+        // Nothing recorded yet: the constant pre-history is the current state
+        delayedFromState = (rowCount == 0);
+        if (delayedFromState) {
+            return;
+        }
+
+        int first = rowIndex(0);
+        if (rowCount == 1 || td <= rowTimes[first]) {
+            delayedRow0 = first;
+            delayedRow1 = first;
+            w00 = 1;
+            w10 = 0;
+            w01 = 0;
+            w11 = 0;
+            return;
+        }
+
+        int r = bracket(td);
+        int r0 = rowIndex(r);
+        int r1 = rowIndex(r + 1);
+
+        double h = rowTimes[r1] - rowTimes[r0];
+        double x = (td - rowTimes[r0])/h;
+        double x2 = x*x;
+        double x3 = x2*x;
+
+        delayedRow0 = r0;
+        delayedRow1 = r1;
+        w00 = 2*x3 - 3*x2 + 1;
+        w10 = (x3 - 2*x2 + x)*h;
+        w01 = -2*x3 + 3*x2;
+        w11 = (x3 - x2)*h;
+    }
+
+    /*
+     * Delayed values of the cells in [from, to), as prepared by prepareDelayed().
+     */
+    private void fillDelayed(int from, int to) {
+        if (delayedFromState) {
+            for (int j = 0; j < nDelayed; j++) {
+                System.arraycopy(y[delayedComponents[j]], from, delayedValues[j], from, to - from);
+            }
+            return;
+        }
+
+        final double h00 = w00, h10 = w10, h01 = w01, h11 = w11;
+        int b0 = delayedRow0*capacity;
+        int b1 = delayedRow1*capacity;
+        for (int j = 0; j < nDelayed; j++) {
+            double[] v = histValues[j], d = histRates[j], out = delayedValues[j];
+            for (int i = from; i < to; i++) {
+                out[i] = h00*v[b0 + i] + h10*d[b0 + i] + h01*v[b1 + i] + h11*d[b1 + i];
+            }
+        }
+    }
+
+    /*
+     * Logical row r with rowTimes[r] <= td < rowTimes[r + 1] (clamped to the last interval).
+     */
+    private int bracket(double td) {
+        double t0 = rowTimes[rowIndex(0)];
+        double tN = rowTimes[rowIndex(rowCount - 1)];
+        if (td >= tN) {
+            return rowCount - 2;
+        }
+
+        int r = (int) ((td - t0)/(tN - t0)*(rowCount - 1));
+        if (r > rowCount - 2) {
+            r = rowCount - 2;
+        }
+        while (r > 0 && rowTimes[rowIndex(r)] > td) {
+            r--;
+        }
+        while (r < rowCount - 2 && rowTimes[rowIndex(r + 1)] <= td) {
+            r++;
+        }
+        return r;
+    }
+
+    /*
+     * Store the current state and rate (k1) of all cells as a history row. While the newest row is closer
+     * than the spacing to the one before it, it is overwritten; once it is not, it is kept and a new row is
+     * added. Kept rows are therefore at least the spacing apart, whatever the step size, and the ring covers
+     * the history length. Rows older than the history length are dropped.
+     */
+    private void record(double t) {
+        int row;
+        if (rowCount > 1 && rowTimes[rowIndex(rowCount - 1)] - rowTimes[rowIndex(rowCount - 2)] < historySpacing) {
+            row = rowIndex(rowCount - 1);
+        } else {
+            if (rowCount == rowCapacity) {
+                rowHead = rowIndex(1);
+                rowCount--;
+            }
+            row = rowIndex(rowCount);
+            rowCount++;
+        }
+
+        rowTimes[row] = t;
+        int base = row*capacity;
+        for (int j = 0; j < nDelayed; j++) {
+            System.arraycopy(y[delayedComponents[j]], 0, histValues[j], base, size);
+            System.arraycopy(k1[delayedComponents[j]], 0, histRates[j], base, size);
+        }
+
+        while (rowCount > 2 && rowTimes[rowIndex(1)] <= t - historyLength) {
+            rowHead = rowIndex(1);
+            rowCount--;
+        }
+    }
+
+    private int rowIndex(int logical) {
+        int r = rowHead + logical;
+        return (r >= rowCapacity) ? r - rowCapacity : r;
+    }
+
+    private void writeBack(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!active[i]) {
+                continue;
+            }
+            double[] view = views[i];
+            for (int c = 0; c < numEq; c++) {
+                view[c] = y[c][i];
+            }
+        }
+    }
+
+    /*
+     * Right-hand side scratch of the cells advanced by one thread (production, loss and whole are used by the
+     * IMEX scheme only).
+     */
+    private final class Scratch {
+        final double[] state = new double[numEq];
+        final double[] delayed = new double[numEq];
+        final double[] rate = new double[numEq];
+        final double[] production = new double[numEq];
+        final double[] loss = new double[numEq];
+        final double[] whole = new double[numEq];
+    }
+
+    /*
+     * One pass over slots [from, to), split in halves until at most chunk long; err is the largest error norm
+     * of its chunks.
+     */
+    private final class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int phase;
+        private final double hs;
+        private final int from, to, chunk;
+        private double err = 0;
+
+        Chunk(int _phase, double _hs, int _from, int _to, int _chunk) {
+            this.phase = _phase;
+            this.hs = _hs;
+            this.from = _from;
+            this.to = _to;
+            this.chunk = _chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                err = pass(phase, hs, from, to, threadScratch.get());
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            Chunk left = new Chunk(phase, hs, from, mid, chunk);
+            Chunk right = new Chunk(phase, hs, mid, to, chunk);
+            invokeAll(left, right);
+            err = Math.max(left.err, right.err);
+        }
+    }
+
+    private void grow(int newCapacity) {
+        y = growColumns(y, newCapacity);
+        yStage = growColumns(yStage, newCapacity);
+        yNew = growColumns(yNew, newCapacity);
+        k1 = growColumns(k1, newCapacity);
+        k2 = growColumns(k2, newCapacity);
+        k3 = growColumns(k3, newCapacity);
+        k4 = growColumns(k4, newCapacity);
+        H = Arrays.copyOf(H, newCapacity);
+        I = Arrays.copyOf(I, newCapacity);
+        delayedValues = growColumns(delayedValues, newCapacity);
+        if (production0 != null) {
+            production0 = growColumns(production0, newCapacity);
+            loss0 = growColumns(loss0, newCapacity);
+            productionMid = growColumns(productionMid, newCapacity);
+            lossMid = growColumns(lossMid, newCapacity);
+        }
+        views = Arrays.copyOf(views, newCapacity);
+        active = Arrays.copyOf(active, newCapacity);
+        freeSlots = Arrays.copyOf(freeSlots, newCapacity);
+        if (quiescence != null) {
+            quiescence.grow(newCapacity);
+        }
+
+        // History rows are laid out with the old capacity as stride
+        for (int j = 0; j < nDelayed; j++) {
+            histValues[j] = growRows(histValues[j], newCapacity);
+            histRates[j] = growRows(histRates[j], newCapacity);
+        }
+
+        capacity = newCapacity;
+    }
+
+    private static double[][] growColumns(double[][] columns, int newCapacity) {
+        double[][] grown = new double[columns.length][];
+        for (int c = 0; c < columns.length; c++) {
+            grown[c] = Arrays.copyOf(columns[c], newCapacity);
+        }
+        return grown;
+    }
+
+    private double[] growRows(double[] rows, int newCapacity) {
+        double[] grown = new double[rowCapacity*newCapacity];
+        for (int row = 0; row < rowCapacity; row++) {
+            System.arraycopy(rows, row*capacity, grown, row*newCapacity, capacity);
+        }
+        return grown;
+    }
+}
@@ -0,0 +1,29 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+/**
+ * Right-hand side of a Chen oscillator GRN (ActivatorDDE, RepressorDDE), separated from the delay
+ * history so that it can be evaluated for many cells by a population-level integrator.
+ */
+public interface ChenRates {
+
+    /**
+     * @param state   current state (the last component is time)
+     * @param delayed state at time - lag; only the delayed components are read
+     * @param H_ext   external H level
+     * @param I_ext   external I level
+     * @param rate    output, same length as state
+     */
+    void rates(double[] state, double[] delayed, double H_ext, double I_ext, double[] rate);
+
+    double getMaximumDelay();
+
+    /**
+     * @return how far back the delay history has to reach (the lag plus some slack for the solver steps)
+     */
+    double getHistoryLength();
+
+    /**
+     * @return the state components that are read with a delay
+     */
+    int[] getDelayedComponents();
+}
@@ -0,0 +1,115 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+import java.util.Random;
+
+/**
+ * Compares the explicit Bogacki-Shampine 3(2) integrator of ChenPopulationDDE with its IMEX scheme:
+ * steps and right-hand side evaluations per tick, wall time, and the largest difference between the two
+ * solutions, sampled once per minute.
+ *
+ * Cells start from scattered initial conditions and see constant, scattered external H and I levels.
+ *
+ * Usage: ChenSolverComparison [cells] [minutes] [ticks per GRN step]
+ * (a tick is 0.25 s; more ticks per GRN step corresponds to SynchronousFlipFlop -grninterval)
+ */
+public class ChenSolverComparison {
+
+    private static final double TICK = 0.25/60.0;
+
+    public static void main(String[] args) {
+        int cells = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        double minutes = (args.length > 1) ? Double.parseDouble(args[1]) : 120;
+        int interval = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+
+        Random rng = new Random(7);
+        double[][] ICs = new double[cells][8];
+        double[][] levels = new double[cells][2];
+        for (int i = 0; i < cells; i++) {
+            double[] base = {10, 1, 10, 10, 10, 10, 10, 0};
+            for (int c = 0; c < 7; c++) {
+                ICs[i][c] = base[c]*(1 + 100*rng.nextDouble());
+            }
+            levels[i][0] = 50*rng.nextDouble();
+            levels[i][1] = 50*rng.nextDouble();
+        }
+
+        System.out.println(cells + " cells, " + minutes + " min, GRN step of " + interval + " tick(s)");
+        compare("activator", ChenPopulationDDE.activators(), ChenPopulationDDE.activators(), ICs, levels, minutes, interval);
+        compare("repressor", ChenPopulationDDE.repressors(), ChenPopulationDDE.repressors(), ICs, levels, minutes, interval);
+    }
+
+    private static void compare(String name, ChenPopulationDDE explicit, ChenPopulationDDE imex,
+                                double[][] ICs, double[][] levels, double minutes, int interval) {
+        imex.setImex(true);
+
+        double h = interval*TICK;
+        int steps = (int) Math.round(minutes/h);
+        int sampleEvery = Math.max(1, (int) Math.round(1.0/h));
+        int samples = steps/sampleEvery;
+
+        double[][][] explicitSamples = new double[samples][][];
+        double[][][] imexSamples = new double[samples][][];
+
+        Run e = run(explicit, ICs, levels, h, steps, sampleEvery, explicitSamples);
+        Run i = run(imex, ICs, levels, h, steps, sampleEvery, imexSamples);
+
+        // Largest difference, relative to the size of the explicit solution (at least 1)
+        double maxDiff = 0;
+        for (int s = 0; s < samples; s++) {
+            for (int cell = 0; cell < ICs.length; cell++) {
+                for (int c = 0; c < 7; c++) {
+                    double a = explicitSamples[s][cell][c];
+                    double b = imexSamples[s][cell][c];
+                    maxDiff = Math.max(maxDiff, Math.abs(a - b)/Math.max(1, Math.abs(a)));
+                }
+            }
+        }
+
+        report(name + " explicit BS3", e, steps);
+        report(name + " IMEX        ", i, steps);
+        System.out.println(name + " max relative difference (sampled every minute): " + maxDiff);
+    }
+
+    private static Run run(ChenPopulationDDE population, double[][] ICs, double[][] levels,
+                           double h, int steps, int sampleEvery, double[][][] samples) {
+        double[][] states = new double[ICs.length][];
+        for (int i = 0; i < ICs.length; i++) {
+            states[i] = ICs[i].clone();
+            int slot = population.add(states[i]);
+            population.setExternalLevel(slot, levels[i][0], levels[i][1]);
+        }
+
+        Run run = new Run();
+        long start = System.nanoTime();
+        for (int n = 0; n < steps; n++) {
+            population.step(h);
+            run.accepted += population.getAcceptedSteps();
+            run.rejected += population.getRejectedSteps();
+
+            if ((n + 1) % sampleEvery == 0 && (n + 1)/sampleEvery <= samples.length) {
+                double[][] copy = new double[states.length][];
+                for (int i = 0; i < states.length; i++) {
+                    copy[i] = states[i].clone();
+                }
+                samples[(n + 1)/sampleEvery - 1] = copy;
+            }
+        }
+        run.seconds = (System.nanoTime() - start)/1e9;
+        run.evaluations = population.getRateEvaluations();
+        return run;
+    }
+
+    private static void report(String name, Run run, int steps) {
+        System.out.println(name + ": " + String.format("%.2f", run.accepted/(double) steps) + " steps/GRN step ("
+                + run.rejected + " rejected), "
+                + String.format("%.2f", run.evaluations/(double) steps) + " rate evaluations/GRN step, "
+                + String.format("%.2f", run.seconds) + " s");
+    }
+
+    private static class Run {
+        long accepted = 0;
+        long rejected = 0;
+        long evaluations = 0;
+        double seconds = 0;
+    }
+}
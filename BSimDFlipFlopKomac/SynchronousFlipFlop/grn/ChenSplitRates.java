@@ -0,0 +1,22 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+/**
+ * Right-hand side of a Chen oscillator GRN split into production and first-order loss:
+ *
+ *   rate[c] = production[c] - loss[c]*state[c],   loss[c] >= 0
+ *
+ * The loss coefficients hold the stiff terms (ClpXP degradation, AiiA degradation of H and I, dilution,
+ * maturation and export across the cell wall), so that an IMEX integrator can treat them implicitly.
+ */
+public interface ChenSplitRates extends ChenRates {
+
+    /**
+     * @param state      current state (the last component is time)
+     * @param delayed    state at time - lag; only the delayed components are read
+     * @param H_ext      external H level
+     * @param I_ext      external I level
+     * @param production output, same length as state
+     * @param loss       output, same length as state
+     */
+    void productionLoss(double[] state, double[] delayed, double H_ext, double I_ext, double[] production, double[] loss);
+}
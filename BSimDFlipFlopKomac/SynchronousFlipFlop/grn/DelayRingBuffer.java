@@ -0,0 +1,271 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-lag delay history for the Chen DDEs.
+ *
+ * Only the state components that are read back with a delay are stored, together with their rates, in
+ * primitive circular arrays. Values between samples are obtained by cubic Hermite interpolation, which
+ * is of the same order as the dense output of the solver. Samples are thinned to a minimum spacing, so
+ * the memory per cell depends on the history length and not on the solver step size: kept samples are at
+ * least the spacing apart, and only the newest one may be closer to its predecessor.
+ *
+ * Before the first sample the history is the constant initial condition, as in getInitialCondition()
+ * of the DDEs. Queries older than the history length return the oldest sample kept.
+ */
+public class DelayRingBuffer {
+
+    // Number of samples per history length kept by default
+    private static final int SAMPLES_PER_LENGTH = 128;
+
+    // Extra samples beyond the history length, so that the oldest query is always bracketed
+    private static final int MARGIN = 4;
+
+    // Which state components are stored, and where (-1: not stored)
+    private final int[] components;
+    private final int[] slotOf;
+    private final int n;
+
+    private final double length;
+    private final double spacing;
+
+    // Circular storage: times[cap], values/rates[cap*n]
+    private double[] times;
+    private double[] values;
+    private double[] rates;
+
+    // Index of the oldest sample and number of samples held
+    private int head = 0;
+    private int count = 0;
+    private boolean discarded = false;
+
+    // Constant history before the first sample
+    private final double[] initial;
+
+    /**
+     * @param _components state components to keep (e.g. {1, 5, 6})
+     * @param _length     how far back the history reaches (the lag plus the longest solver step)
+     */
+    public DelayRingBuffer(int[] _components, double _length) {
+        this(_components, _length, _length/SAMPLES_PER_LENGTH);
+    }
+
+    /**
+     * @param _components state components to keep
+     * @param _length     how far back the history reaches
+     * @param _spacing    minimum time between two stored samples
+     */
+    public DelayRingBuffer(int[] _components, double _length, double _spacing) {
+        this.components = _components.clone();
+        this.n = components.length;
+
+        int maxComponent = 0;
+        for (int c : components) {
+            maxComponent = Math.max(maxComponent, c);
+        }
+        slotOf = new int[maxComponent + 1];
+        Arrays.fill(slotOf, -1);
+        for (int i = 0; i < n; i++) {
+            slotOf[components[i]] = i;
+        }
+
+        this.length = _length;
+        this.spacing = _spacing;
+
+        int capacity = (int) Math.ceil(length/spacing) + MARGIN;
+        times = new double[capacity];
+        values = new double[capacity*n];
+        rates = new double[capacity*n];
+
+        initial = new double[n];
+    }
+
+    /**
+     * Set the constant history used before the first sample.
+     */
+    public void setInitialHistory(double[] state) {
+        for (int i = 0; i < n; i++) {
+            initial[i] = state[components[i]];
+        }
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Store the state and rate at time t. While the newest sample is closer than the minimum spacing to
+     * the one before it, it is overwritten; once it is not, it is kept and a new sample is added (the
+     * first and the most recent sample are always the exact ones passed in).
+     */
+    public void record(double t, double[] state, double[] rate) {
+        int slot;
+        if (count > 1 && times[index(count - 1)] - times[index(count - 2)] < spacing) {
+            // The newest sample is not a full spacing from the previous one yet: overwrite it
+            slot = index(count - 1);
+        } else {
+            if (count == times.length) {
+                grow();
+            }
+            slot = index(count);
+            count++;
+        }
+
+        times[slot] = t;
+        int base = slot*n;
+        for (int i = 0; i < n; i++) {
+            values[base + i] = state[components[i]];
+            rates[base + i] = rate[components[i]];
+        }
+
+        // Drop samples that can no longer be reached, keeping the one that brackets t - length
+        while (count > 2 && times[index(1)] <= t - length) {
+            head = index(1);
+            count--;
+            discarded = true;
+        }
+    }
+
+    /**
+     * @return component i of the state at time t
+     */
+    public double interpolate(double t, int component) {
+        int c = slotOf[component];
+
+        if (count == 0) {
+            return initial[c];
+        }
+        if (t <= times[head]) {
+            return (t < times[head] && !discarded) ? initial[c] : values[head*n + c];
+        }
+
+        int j = bracket(t);
+        return hermite(t, j, c);
+    }
+
+    /**
+     * Interpolate all stored components at time t into out (indexed by state component). The bracketing
+     * interval and the Hermite weights are worked out once for all components.
+     */
+    public double[] interpolate(double t, double[] out) {
+        if (count == 0 || t <= times[head]) {
+            boolean before = (count == 0) || (t < times[head] && !discarded);
+            for (int i = 0; i < n; i++) {
+                out[components[i]] = before ? initial[i] : values[head*n + i];
+            }
+            return out;
+        }
+
+        int j = bracket(t);
+        int s0 = index(j);
+        int b0 = s0*n;
+
+        if (count == 1) {
+            double dt = t - times[s0];
+            for (int i = 0; i < n; i++) {
+                out[components[i]] = values[b0 + i] + dt*rates[b0 + i];
+            }
+            return out;
+        }
+
+        int s1 = index(j + 1);
+        int b1 = s1*n;
+
+        double h = times[s1] - times[s0];
+        double x = (t - times[s0])/h;
+        double x2 = x*x;
+        double x3 = x2*x;
+
+        double h00 = 2*x3 - 3*x2 + 1;
+        double h10 = (x3 - 2*x2 + x)*h;
+        double h01 = -2*x3 + 3*x2;
+        double h11 = (x3 - x2)*h;
+
+        for (int i = 0; i < n; i++) {
+            out[components[i]] = h00*values[b0 + i] + h10*rates[b0 + i] + h01*values[b1 + i] + h11*rates[b1 + i];
+        }
+        return out;
+    }
+
+    /*
+     * Logical index j of the sample at or before t, with j + 1 < count where possible.
+     * Samples are close to uniformly spaced, so start from a guess and walk.
+     */
+    private int bracket(double t) {
+        if (count == 1) {
+            return 0;
+        }
+
+        double t0 = times[head];
+        double tN = times[index(count - 1)];
+        if (t >= tN) {
+            return count - 2;
+        }
+
+        int j = (int) ((t - t0)/(tN - t0)*(count - 1));
+        if (j > count - 2) {
+            j = count - 2;
+        }
+        while (j > 0 && times[index(j)] > t) {
+            j--;
+        }
+        while (j < count - 2 && times[index(j + 1)] <= t) {
+            j++;
+        }
+        return j;
+    }
+
+    /*
+     * Cubic Hermite interpolation of component slot c on the interval starting at logical sample j.
+     * Past the newest sample the last interval is extrapolated.
+     */
+    private double hermite(double t, int j, int c) {
+        int s0 = index(j);
+        if (count == 1) {
+            return values[s0*n + c] + (t - times[s0])*rates[s0*n + c];
+        }
+        int s1 = index(j + 1);
+
+        double h = times[s1] - times[s0];
+        double x = (t - times[s0])/h;
+        double x2 = x*x;
+        double x3 = x2*x;
+
+        double h00 = 2*x3 - 3*x2 + 1;
+        double h10 = x3 - 2*x2 + x;
+        double h01 = -2*x3 + 3*x2;
+        double h11 = x3 - x2;
+
+        return h00*values[s0*n + c] + h10*h*rates[s0*n + c] + h01*values[s1*n + c] + h11*h*rates[s1*n + c];
+    }
+
+    private int index(int logical) {
+        int i = head + logical;
+        return (i >= times.length) ? i - times.length : i;
+    }
+
+    /*
+     * Safety net. With the thinning in record() the kept samples within the history length are at least
+     * the spacing apart, so there are at most length/spacing of them, plus the newest sample and the one
+     * bracketing t - length: the initial capacity is enough.
+     */
+    private void grow() {
+        int capacity = 2*times.length;
+        double[] newTimes = new double[capacity];
+        double[] newValues = new double[capacity*n];
+        double[] newRates = new double[capacity*n];
+
+        for (int j = 0; j < count; j++) {
+            int s = index(j);
+            newTimes[j] = times[s];
+            System.arraycopy(values, s*n, newValues, j*n, n);
+            System.arraycopy(rates, s*n, newRates, j*n, n);
+        }
+
+        times = newTimes;
+        values = newValues;
+        rates = newRates;
+        head = 0;
+    }
+}
@@ -2,10 +2,13 @@ package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
 
 import bsim.ode.BSimOdeSystem;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /*
      * Representation of the ODE system
      */
-public class Dsys implements BSimOdeSystem {
+public class Dsys implements BSimOdeSystem, InPlaceOdeSystem {
     int numEq = 4;				// System of 4 equations
 
     private double D = 0;				// External D chemical level
@@ -33,24 +36,76 @@ public class Dsys implements BSimOdeSystem {
 
     public double[] derivativeSystem(double t, double[] y) {
         double[] dy = new double[numEq];
+        derivative(t, y, dy);
+        return dy;
+    }
 
+    public void derivative(double t, double[] y, double[] dy) {
+        rates(t, D, CLK, y[0], y[1], y[2], y[3], dy);
+    }
 
+    /**
+     * Right-hand side at time t for the external levels d and clk and the state (a, ac, q, qc), written into dy.
+     * The model is written only here: derivative() and DsysPopulation both evaluate it through this method.
+     */
+    public void rates(double t, double d, double clk, double a, double ac, double q, double qc, double[] dy) {
         //a
-        dy[0] =  a1 * unitStep(D - Kd1) * unitStep(Kd2 - CLK) + a2 * unitStep(Kd3 - y[1]) - dt1 * y[0];
+        dy[0] =  a1 * unitStep(d - Kd1) * unitStep(Kd2 - clk) + a2 * unitStep(Kd3 - ac) - dt1 * a;
         //ac
-        dy[1] =  a1 * unitStep(Kd1 - D) * unitStep(Kd2 - CLK) + a2 * unitStep(Kd3 - y[0]) - dt1 * y[1];
+        dy[1] =  a1 * unitStep(Kd1 - d) * unitStep(Kd2 - clk) + a2 * unitStep(Kd3 - a) - dt1 * ac;
 
         //q
-        dy[2] =  a3 * unitStep(y[0] - Kd4) * unitStep(CLK - Kd5) * unitStep(Kd7 - y[2]) + a4 * unitStep(Kd6 - y[3]) * unitStep(Kd7 - y[2]) - dt2 * y[2];
+        dy[2] =  a3 * unitStep(a - Kd4) * unitStep(clk - Kd5) * unitStep(Kd7 - q) + a4 * unitStep(Kd6 - qc) * unitStep(Kd7 - q) - dt2 * q;
         //qc
-        dy[3] =  a3 * unitStep(y[1] - Kd4) * unitStep(CLK - Kd5) * unitStep(Kd7 - y[3]) + a4 * unitStep(Kd6 - y[2]) * unitStep(Kd7 - y[3]) - dt2 * y[3];
+        dy[3] =  a3 * unitStep(ac - Kd4) * unitStep(clk - Kd5) * unitStep(Kd7 - qc) + a4 * unitStep(Kd6 - q) * unitStep(Kd7 - qc) - dt2 * qc;
 
 		dy[0] *= t;
 		dy[1] *= t;
 		dy[2] *= t;
 		dy[3] *= t;
+    }
 
-        return dy;
+    /**
+     * @return the sides of the input thresholds the levels d and clk are on, as bits: d above Kd1, clk below
+     * Kd2, clk above Kd5. The rates depend on the inputs only through these.
+     */
+    public int inputMode(double d, double clk) {
+        return (d < Kd1 ? 0 : 1) | (clk > Kd2 ? 0 : 2) | (clk < Kd5 ? 0 : 4);
+    }
+
+    /**
+     * @return the level (Kd7) at which q and qc stop being produced
+     */
+    public double getCap() {
+        return Kd7;
+    }
+
+    /**
+     * @return the parameters by name, e.g. for writing the model as a GrnModel
+     */
+    public Map<String, Double> getParameters() {
+        Map<String, Double> p = new LinkedHashMap<String, Double>();
+        p.put("a1", a1);
+        p.put("a2", a2);
+        p.put("a3", a3);
+        p.put("a4", a4);
+        p.put("Kd1", Kd1);
+        p.put("Kd2", Kd2);
+        p.put("Kd3", Kd3);
+        p.put("Kd4", Kd4);
+        p.put("Kd5", Kd5);
+        p.put("Kd6", Kd6);
+        p.put("Kd7", Kd7);
+        p.put("dt1", dt1);
+        p.put("dt2", dt2);
+        return p;
+    }
+
+    /**
+     * @return a stepper that advances this system exactly between threshold crossings
+     */
+    public DsysAnalyticStepper analyticStepper() {
+        return new DsysAnalyticStepper(a1, a2, a3, a4, Kd1, Kd2, Kd3, Kd4, Kd5, Kd6, Kd7, dt1, dt2);
     }
 
     // Set up external chemical level
@@ -0,0 +1,237 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+/**
+ * Exact, event-driven stepping of the piecewise-linear D flip-flop model (Dsys).
+ *
+ * Between unitStep threshold crossings every equation of Dsys has the form dy/dt = t*(c - k*y) with
+ * constant forcing c and rate k > 0. Substituting s = t^2/2 turns this into dy/ds = c - k*y, which is
+ * solved in closed form: y(s) = c/k + (y0 - c/k)*exp(-k*s). The stepper jumps from threshold crossing to
+ * threshold crossing (or to the end of the step), so the switching instants are located exactly instead
+ * of being smeared over a Runge-Kutta step.
+ *
+ * When q (or qc) reaches its Kd7 cap while its production would push it further up, the model switches
+ * back and forth at an infinite rate (unitStep(Kd7 - q) chatters). The same happens when a and ac (or q
+ * and qc) sit on their mutual repression threshold together. The stepper holds such variables on the
+ * threshold for as long as no consistent mode exists, which is the limit fixed-step integration chatters
+ * around.
+ *
+ * The time t is assumed to be non-negative, as it is in BSim.
+ */
+public class DsysAnalyticStepper {
+
+    // Safety net against pathological event cascades: the rest of the step is taken in the current mode
+    private static final int MAX_EVENTS = 64;
+
+    // Crossings this close (relative) to the earliest one are treated as simultaneous
+    private static final double SIMULTANEOUS = 1e-12;
+
+    private final double a1, a2, a3, a4;
+    private final double Kd1, Kd2, Kd3, Kd4, Kd5, Kd6, Kd7;
+    private final double[] k;
+
+    // Thresholds that affect the right-hand side, per state variable
+    private final double[][] thresholds;
+
+    // Working storage (one stepper per thread)
+    private final double[] c = new double[4];
+    private final int[] dir = new int[4];
+    private final int[] newDir = new int[4];
+    private final boolean[] pinned = new boolean[4];
+    private final boolean[] flipped = new boolean[4];
+
+    private int events = 0;
+
+    public DsysAnalyticStepper(double _a1, double _a2, double _a3, double _a4,
+                               double _Kd1, double _Kd2, double _Kd3, double _Kd4, double _Kd5, double _Kd6, double _Kd7,
+                               double _dt1, double _dt2) {
+        a1 = _a1; a2 = _a2; a3 = _a3; a4 = _a4;
+        Kd1 = _Kd1; Kd2 = _Kd2; Kd3 = _Kd3; Kd4 = _Kd4; Kd5 = _Kd5; Kd6 = _Kd6; Kd7 = _Kd7;
+        k = new double[] {_dt1, _dt1, _dt2, _dt2};
+
+        thresholds = new double[][] {
+                {Kd3, Kd4},     // a:  switches ac (Kd3) and q (Kd4)
+                {Kd3, Kd4},     // ac: switches a (Kd3) and qc (Kd4)
+                {Kd6, Kd7},     // q:  switches qc (Kd6) and itself (Kd7)
+                {Kd6, Kd7}      // qc: switches q (Kd6) and itself (Kd7)
+        };
+    }
+
+    /**
+     * @return number of threshold crossings handled by the last call to advance()
+     */
+    public int getEvents() {
+        return events;
+    }
+
+    /**
+     * Advance y (a, ac, q, qc) in place from t0 to t1, with external levels D and CLK held constant.
+     */
+    public void advance(double D, double CLK, double[] y, double t0, double t1) {
+        double clkLow  = (Kd2 - CLK < 0) ? 0 : 1;
+        double clkHigh = (CLK - Kd5 < 0) ? 0 : 1;
+        double inputA  = a1 * ((D - Kd1 < 0) ? 0 : 1) * clkLow;
+        double inputAc = a1 * ((Kd1 - D < 0) ? 0 : 1) * clkLow;
+
+        // Remaining rescaled time s = (t1^2 - t0^2)/2
+        double remaining = 0.5*(t1*t1 - t0*t0);
+
+        for (int i = 0; i < 4; i++) {
+            dir[i] = 0;
+        }
+
+        events = 0;
+        while (remaining > 0) {
+            resolveMode(inputA, inputAc, clkHigh, y);
+
+            // Earliest threshold crossing within the current mode
+            double sEvent = remaining;
+            boolean event = false;
+
+            if (events < MAX_EVENTS) {
+                for (int i = 0; i < 4; i++) {
+                    for (double threshold : thresholds[i]) {
+                        double s = crossing(i, threshold, y[i]);
+                        if (s < sEvent) {
+                            sEvent = s;
+                            event = true;
+                        }
+                    }
+                }
+            }
+
+            // Variables crossing (together) at sEvent land exactly on their threshold, so that the next mode
+            // is decided by the direction of motion rather than by round-off
+            double sLand = sEvent*(1 + SIMULTANEOUS);
+            for (int i = 0; i < 4; i++) {
+                if (pinned[i]) {
+                    continue;
+                }
+
+                double landing = Double.NaN;
+                if (event) {
+                    for (double threshold : thresholds[i]) {
+                        if (crossing(i, threshold, y[i]) <= sLand) {
+                            landing = threshold;
+                        }
+                    }
+                }
+
+                if (!Double.isNaN(landing)) {
+                    y[i] = landing;
+                } else {
+                    double target = c[i]/k[i];
+                    y[i] = target + (y[i] - target)*Math.exp(-k[i]*sEvent);
+                }
+            }
+
+            if (!event) {
+                break;
+            }
+
+            remaining -= sEvent;
+            events++;
+        }
+    }
+
+    /*
+     * Rescaled time until variable i crosses the threshold in the current mode (infinite if it does not).
+     * Only thresholds strictly between the current value and the target are crossed.
+     */
+    private double crossing(int i, double threshold, double yi) {
+        if (pinned[i]) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double target = c[i]/k[i];
+        if ((yi < threshold && threshold < target) || (target < threshold && threshold < yi)) {
+            return -Math.log((threshold - target)/(yi - target))/k[i];
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /*
+     * Work out the forcing c of every variable in the current mode. Variables sitting exactly on a threshold
+     * are placed on the side they are moving towards; this is iterated until the directions are consistent.
+     * Variables that keep flipping direction on a threshold are held there (sliding mode).
+     */
+    private void resolveMode(double inputA, double inputAc, double clkHigh, double[] y) {
+        for (int i = 0; i < 4; i++) {
+            pinned[i] = false;
+            flipped[i] = false;
+        }
+
+        for (int iteration = 0; iteration < 4; iteration++) {
+            c[0] = inputA  + a2 * (below(y[1], Kd3, dir[1]) ? 1 : 0);
+            c[1] = inputAc + a2 * (below(y[0], Kd3, dir[0]) ? 1 : 0);
+
+            double qOn  = a3 * (atLeast(y[0], Kd4, dir[0]) ? 1 : 0) * clkHigh + a4 * (below(y[3], Kd6, dir[3]) ? 1 : 0);
+            double qcOn = a3 * (atLeast(y[1], Kd4, dir[1]) ? 1 : 0) * clkHigh + a4 * (below(y[2], Kd6, dir[2]) ? 1 : 0);
+
+            c[2] = capped(2, qOn, y[2]);
+            c[3] = capped(3, qcOn, y[3]);
+
+            boolean consistent = true;
+            for (int i = 0; i < 4; i++) {
+                double target = c[i]/k[i];
+                newDir[i] = pinned[i] ? 0 : (target > y[i] ? 1 : (target < y[i] ? -1 : 0));
+                if (newDir[i] != dir[i]) {
+                    consistent = false;
+                    if (iteration >= 2) {
+                        flipped[i] = true;
+                    }
+                }
+                dir[i] = newDir[i];
+            }
+
+            if (consistent) {
+                return;
+            }
+        }
+
+        for (int i = 0; i < 4; i++) {
+            if (flipped[i] && !pinned[i] && onThreshold(i, y[i])) {
+                pinned[i] = true;
+                c[i] = k[i]*y[i];
+                dir[i] = 0;
+            }
+        }
+    }
+
+    private boolean onThreshold(int i, double yi) {
+        for (double threshold : thresholds[i]) {
+            if (yi == threshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Forcing of q/qc given its production when below the Kd7 cap; detects the sliding mode at the cap.
+     */
+    private double capped(int i, double on, double yi) {
+        pinned[i] = false;
+        if (yi < Kd7) {
+            return on;
+        }
+        if (yi > Kd7) {
+            return 0;
+        }
+        if (on/k[i] > Kd7) {
+            // Held at the cap: the forcing exactly balances degradation
+            pinned[i] = true;
+            return k[i]*Kd7;
+        }
+        return on;
+    }
+
+    // unitStep(threshold - y) at y, resolving y == threshold by the direction of motion
+    private static boolean below(double y, double threshold, int direction) {
+        return (y != threshold) ? (y < threshold) : (direction <= 0);
+    }
+
+    // unitStep(y - threshold) at y, resolving y == threshold by the direction of motion
+    private static boolean atLeast(double y, double threshold, int direction) {
+        return (y != threshold) ? (y > threshold) : (direction >= 0);
+    }
+}
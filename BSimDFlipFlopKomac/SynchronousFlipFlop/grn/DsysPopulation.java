@@ -0,0 +1,387 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Population-level integrator for the D flip-flop GRN (Dsys) of every D cell in a simulation.
+ *
+ * The four state variables of all cells are stored in contiguous primitive arrays indexed by a slot,
+ * and the whole population is advanced with a single Runge-Kutta sweep per tick. The scheme is the
+ * classic fourth-order one used by BSimOdeSolver.rungeKutta45, including the time-scaling factor t
+ * that Dsys applies to its derivative. That factor makes the decay stiffer as time goes on (a rate of
+ * -dt1*t), so RK4 is only stable for steps below about 2.78/(dt1*t); setMaxStep() splits longer steps into
+ * equal substeps.
+ *
+ * In analytic mode the cells are instead advanced exactly between threshold crossings (see DsysAnalyticStepper).
+ *
+ * With quiescence tracking enabled, latched cells whose state has settled and whose D and CLK levels stay put
+ * are skipped until their inputs move, or cross one of the Dsys input thresholds (see QuiescenceTracker).
+ *
+ * Cells are independent, so step() can split the slots over a ForkJoinPool; every cell is advanced with the
+ * same operations either way, so the result does not depend on the number of threads.
+ */
+public class DsysPopulation {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Fewest cells worth a task of their own in a parallel step
+    private static final int MIN_CHUNK = 256;
+
+    // Parameters of the ODE system, shared by all cells
+    private final Dsys odesys;
+
+    // State variables: a, ac, q, qc
+    private double[] a;
+    private double[] ac;
+    private double[] q;
+    private double[] qc;
+
+    // External chemical levels seen by each cell during the current tick
+    private double[] D;
+    private double[] CLK;
+
+    private boolean[] active;
+
+    // Slots freed by removed cells, reused by the next add()
+    private int[] freeSlots;
+    private int nFree = 0;
+
+    // Number of slots in use (including freed ones)
+    private int size = 0;
+
+    // Exact stepping between threshold crossings instead of RK4
+    private boolean analytic = false;
+
+    // Longest RK4 step; longer steps are split into equal substeps
+    private double maxStep = Double.POSITIVE_INFINITY;
+
+    // Skips cells at a steady state (null: disabled)
+    private QuiescenceTracker quiescence = null;
+
+    // Scratch of the steps, one per thread, kept between steps
+    private final ThreadLocal<Scratch> threadScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    public DsysPopulation() {
+        this(new Dsys());
+    }
+
+    public DsysPopulation(Dsys _odesys) {
+        this.odesys = _odesys;
+
+        a = new double[INITIAL_CAPACITY];
+        ac = new double[INITIAL_CAPACITY];
+        q = new double[INITIAL_CAPACITY];
+        qc = new double[INITIAL_CAPACITY];
+        D = new double[INITIAL_CAPACITY];
+        CLK = new double[INITIAL_CAPACITY];
+        active = new boolean[INITIAL_CAPACITY];
+        freeSlots = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Add a cell to the population.
+     * @param ics initial state (a, ac, q, qc) of the cell
+     * @return the slot holding the cell's state
+     */
+    public int add(double[] ics) {
+        int slot;
+        if (nFree > 0) {
+            slot = freeSlots[--nFree];
+        } else {
+            if (size == a.length) {
+                grow(2 * size);
+            }
+            slot = size++;
+        }
+
+        a[slot] = ics[0];
+        ac[slot] = ics[1];
+        q[slot] = ics[2];
+        qc[slot] = ics[3];
+        D[slot] = 0;
+        CLK[slot] = 0;
+        active[slot] = true;
+        if (quiescence != null) {
+            quiescence.reset(slot);
+        }
+
+        return slot;
+    }
+
+    /**
+     * Remove a cell from the population; its slot will be reused.
+     */
+    public void remove(int slot) {
+        active[slot] = false;
+        if (quiescence != null) {
+            quiescence.reset(slot);
+        }
+        freeSlots[nFree++] = slot;
+    }
+
+    /**
+     * Set the external D and CLK levels seen by a cell during the next step.
+     */
+    public void setExternalLevel(int slot, double _d, double _clk) {
+        D[slot] = _d;
+        CLK[slot] = _clk;
+    }
+
+    /**
+     * @return state variable i (0: a, 1: ac, 2: q, 3: qc) of the cell in the given slot
+     */
+    public double get(int slot, int i) {
+        switch (i) {
+            case 0: return a[slot];
+            case 1: return ac[slot];
+            case 2: return q[slot];
+            case 3: return qc[slot];
+            default: throw new IndexOutOfBoundsException("Dsys has no state variable " + i);
+        }
+    }
+
+    /**
+     * Copy the state of the cell in the given slot into out.
+     */
+    public void getState(int slot, double[] out) {
+        out[0] = a[slot];
+        out[1] = ac[slot];
+        out[2] = q[slot];
+        out[3] = qc[slot];
+    }
+
+    public int getNumEq() {
+        return odesys.getNumEq();
+    }
+
+    /**
+     * Switch between fixed-step RK4 (false, the default) and exact event-driven stepping (true).
+     */
+    public void setAnalytic(boolean _analytic) {
+        this.analytic = _analytic;
+    }
+
+    public boolean isAnalytic() {
+        return analytic;
+    }
+
+    /**
+     * Split RK4 steps longer than maxStep into equal substeps (analytic steps are exact at any length).
+     */
+    public void setMaxStep(double _maxStep) {
+        if (!(_maxStep > 0)) {
+            throw new IllegalArgumentException("Maximum D GRN step must be positive (got " + _maxStep + ")");
+        }
+        this.maxStep = _maxStep;
+    }
+
+    public double getMaxStep() {
+        return maxStep;
+    }
+
+    /**
+     * Skip cells at a steady state.
+     * @param rateTolerance  largest relative rate of change (per unit time) of a cell put to sleep
+     * @param inputTolerance relative change of D or CLK that wakes a sleeping cell
+     */
+    public void enableQuiescence(double rateTolerance, double inputTolerance) {
+        quiescence = new QuiescenceTracker(a.length, rateTolerance, inputTolerance);
+    }
+
+    /**
+     * @return number of cells skipped by the last step (0 if quiescence tracking is disabled)
+     */
+    public int getSkipped() {
+        return (quiescence == null) ? 0 : quiescence.getSkipped();
+    }
+
+    /**
+     * Advance every cell in the population from t to t + h.
+     */
+    public void step(double t, double h) {
+        step(t, h, null);
+    }
+
+    /**
+     * Advance every cell in the population from t to t + h, splitting the cells over a pool (serially if null).
+     */
+    public void step(double t, double h, ForkJoinPool pool) {
+        if (quiescence != null) {
+            quiescence.beginStep();
+        }
+
+        if (pool == null || size < 2*MIN_CHUNK) {
+            advance(0, size, t, h, threadScratch.get());
+        } else {
+            int chunk = Math.max(MIN_CHUNK, size/(4*pool.getParallelism()));
+            pool.invoke(new Chunk(0, size, chunk, t, h));
+        }
+    }
+
+    /*
+     * Advance the cells in slots [from, to), in substeps of at most maxStep.
+     */
+    private void advance(int from, int to, double t, double h, Scratch scratch) {
+        if (analytic) {
+            advanceAnalytic(from, to, t, h, scratch);
+            return;
+        }
+
+        final int substeps = (h > maxStep) ? (int) Math.ceil(h/maxStep) : 1;
+        final double hs = h/substeps;
+        final double half = 0.5*hs;
+        final double[] k1 = scratch.k1, k2 = scratch.k2, k3 = scratch.k3, k4 = scratch.k4;
+
+        for (int i = from; i < to; i++) {
+            if (!active[i] || sleeps(i)) {
+                continue;
+            }
+
+            final double d = D[i];
+            final double clk = CLK[i];
+            double y0 = a[i], y1 = ac[i], y2 = q[i], y3 = qc[i];
+
+            for (int s = 0; s < substeps; s++) {
+                final double ts = t + s*hs;
+                final double tHalf = ts + half;
+                final double tEnd = ts + hs;
+
+                odesys.rates(ts, d, clk, y0, y1, y2, y3, k1);
+                odesys.rates(tHalf, d, clk, y0 + half*k1[0], y1 + half*k1[1], y2 + half*k1[2], y3 + half*k1[3], k2);
+                odesys.rates(tHalf, d, clk, y0 + half*k2[0], y1 + half*k2[1], y2 + half*k2[2], y3 + half*k2[3], k3);
+                odesys.rates(tEnd, d, clk, y0 + hs*k3[0], y1 + hs*k3[1], y2 + hs*k3[2], y3 + hs*k3[3], k4);
+
+                y0 += (hs/6.0)*(k1[0] + 2*k2[0] + 2*k3[0] + k4[0]);
+                y1 += (hs/6.0)*(k1[1] + 2*k2[1] + 2*k3[1] + k4[1]);
+                y2 += (hs/6.0)*(k1[2] + 2*k2[2] + 2*k3[2] + k4[2]);
+                y3 += (hs/6.0)*(k1[3] + 2*k2[3] + 2*k3[3] + k4[3]);
+            }
+
+            a[i] = y0;
+            ac[i] = y1;
+            q[i] = y2;
+            qc[i] = y3;
+
+            observe(i, t + h, hs, scratch);
+        }
+    }
+
+    private void advanceAnalytic(int from, int to, double t, double h, Scratch scratch) {
+        final double[] yCell = scratch.yCell;
+        for (int i = from; i < to; i++) {
+            if (!active[i] || sleeps(i)) {
+                continue;
+            }
+
+            yCell[0] = a[i];
+            yCell[1] = ac[i];
+            yCell[2] = q[i];
+            yCell[3] = qc[i];
+
+            scratch.analyticStepper.advance(D[i], CLK[i], yCell, t, t + h);
+
+            a[i] = yCell[0];
+            ac[i] = yCell[1];
+            q[i] = yCell[2];
+            qc[i] = yCell[3];
+
+            observe(i, t + h, h, scratch);
+        }
+    }
+
+    private boolean sleeps(int i) {
+        return quiescence != null && quiescence.sleeps(i, D[i], CLK[i], odesys.inputMode(D[i], CLK[i]));
+    }
+
+    /*
+     * Report the activity of a cell after a step ending at t. The time-scaling factor is left out of the
+     * rates, as it would make every cell look quiescent near t = 0. A q or qc held at its cap Kd7 chatters
+     * around it by up to one step's worth of change; it counts as settled.
+     */
+    private void observe(int i, double t, double h, Scratch scratch) {
+        if (quiescence == null) {
+            return;
+        }
+        final double[] dy = scratch.k1;
+        odesys.rates(1.0, D[i], CLK[i], a[i], ac[i], q[i], qc[i], dy);
+
+        double activity = Math.max(QuiescenceTracker.relativeRate(dy[0], a[i]), QuiescenceTracker.relativeRate(dy[1], ac[i]));
+        if (!atCap(q[i], dy[2], t*h)) {
+            activity = Math.max(activity, QuiescenceTracker.relativeRate(dy[2], q[i]));
+        }
+        if (!atCap(qc[i], dy[3], t*h)) {
+            activity = Math.max(activity, QuiescenceTracker.relativeRate(dy[3], qc[i]));
+        }
+        quiescence.observe(i, activity, D[i], CLK[i], odesys.inputMode(D[i], CLK[i]));
+    }
+
+    /*
+     * True if y is within one step (of scaled length th) of Kd7 and moving towards it.
+     */
+    private boolean atCap(double y, double dy, double th) {
+        double distance = odesys.getCap() - y;
+        return Math.abs(distance) <= th*Math.abs(dy) && distance*dy >= 0;
+    }
+
+    /*
+     * Runge-Kutta stages and analytic stepper of the cells advanced by one thread.
+     */
+    private final class Scratch {
+        final double[] k1 = new double[4];
+        final double[] k2 = new double[4];
+        final double[] k3 = new double[4];
+        final double[] k4 = new double[4];
+        final double[] yCell = new double[4];
+        final DsysAnalyticStepper analyticStepper = odesys.analyticStepper();
+    }
+
+    /*
+     * Slots [from, to), split in halves until at most chunk long.
+     */
+    private final class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to, chunk;
+        private final double t, h;
+
+        Chunk(int _from, int _to, int _chunk, double _t, double _h) {
+            this.from = _from;
+            this.to = _to;
+            this.chunk = _chunk;
+            this.t = _t;
+            this.h = _h;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                advance(from, to, t, h, threadScratch.get());
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Chunk(from, mid, chunk, t, h), new Chunk(mid, to, chunk, t, h));
+        }
+    }
+
+    private void grow(int capacity) {
+        a = Arrays.copyOf(a, capacity);
+        ac = Arrays.copyOf(ac, capacity);
+        q = Arrays.copyOf(q, capacity);
+        qc = Arrays.copyOf(qc, capacity);
+        D = Arrays.copyOf(D, capacity);
+        CLK = Arrays.copyOf(CLK, capacity);
+        active = Arrays.copyOf(active, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+        if (quiescence != null) {
+            quiescence.grow(capacity);
+        }
+    }
+}
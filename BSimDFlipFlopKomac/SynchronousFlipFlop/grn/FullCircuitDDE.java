@@ -11,6 +11,7 @@ public class FullCircuitDDE implements DelayDifferentialEquation {
     // Obviously time (state[16]) wasn't present in matlab and its IC is 0
     private double[] mState = {10, 1, 10, 10, 1, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 0};
     private StateHistory mHistory;
+    private final double[] delayed = new double[17];
 
     // Implementation of ODE
 
@@ -39,14 +40,17 @@ public class FullCircuitDDE implements DelayDifferentialEquation {
         double I_e = state[14];
         double I_a = state[15];
 
-        double H_a_tau = mHistory.interpolate(state[16] - lag, 10);
-        double I_a_tau = mHistory.interpolate(state[16] - lag, 15);
+        // One history lookup for all delayed components
+        mHistory.interpolate(state[16] - lag, delayed);
 
-        double H_r_tau = mHistory.interpolate(state[16] - lag, 12);
-        double I_r_tau = mHistory.interpolate(state[16] - lag, 13);
+        double H_a_tau = delayed[10];
+        double I_a_tau = delayed[15];
 
-        double L_a_tau = mHistory.interpolate(state[16] - lag, 1);
-        double L_r_tau = mHistory.interpolate(state[16] - lag, 4);
+        double H_r_tau = delayed[12];
+        double I_r_tau = delayed[13];
+
+        double L_a_tau = delayed[1];
+        double L_r_tau = delayed[4];
 
         double deg_a_pref = d_C/(K_C + R_a + A_a + L_a + F_a + M_a);
         double deg_r_pref = d_C/(K_C + C_r + A_r + L_r + Y_r + M_r);
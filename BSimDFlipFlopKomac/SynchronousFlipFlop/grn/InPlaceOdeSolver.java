@@ -0,0 +1,94 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+import bsim.ode.BSimOdeSystem;
+
+/**
+ * Allocation-free counterpart of BSimOdeSolver for InPlaceOdeSystems.
+ *
+ * The Runge-Kutta stage buffers are kept per thread and reused between calls, and the state is
+ * updated in place, so a step allocates nothing once the buffers have been sized.
+ */
+public class InPlaceOdeSolver {
+
+    /*
+     * Runge-Kutta stage buffers of one thread.
+     */
+    private static class Stages {
+        double[] k1 = new double[0];
+        double[] k2 = new double[0];
+        double[] k3 = new double[0];
+        double[] k4 = new double[0];
+        double[] yTemp = new double[0];
+
+        void ensureCapacity(int numEq) {
+            if (k1.length < numEq) {
+                k1 = new double[numEq];
+                k2 = new double[numEq];
+                k3 = new double[numEq];
+                k4 = new double[numEq];
+                yTemp = new double[numEq];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Stages> stages = new ThreadLocal<Stages>() {
+        @Override
+        protected Stages initialValue() {
+            return new Stages();
+        }
+    };
+
+    /**
+     * Advance y from t to t + h in place, using the classic fourth-order scheme of BSimOdeSolver.rungeKutta45.
+     */
+    public static void rungeKutta45(InPlaceOdeSystem ode, double t, double[] y, double h) {
+        int numEq = ode.getNumEq();
+
+        Stages s = stages.get();
+        s.ensureCapacity(numEq);
+        double[] k1 = s.k1, k2 = s.k2, k3 = s.k3, k4 = s.k4, yTemp = s.yTemp;
+
+        ode.derivative(t, y, k1);
+        for (int i = 0; i < numEq; i++) {
+            yTemp[i] = y[i] + 0.5*h*k1[i];
+        }
+
+        ode.derivative(t + 0.5*h, yTemp, k2);
+        for (int i = 0; i < numEq; i++) {
+            yTemp[i] = y[i] + 0.5*h*k2[i];
+        }
+
+        ode.derivative(t + 0.5*h, yTemp, k3);
+        for (int i = 0; i < numEq; i++) {
+            yTemp[i] = y[i] + h*k3[i];
+        }
+
+        ode.derivative(t + h, yTemp, k4);
+        for (int i = 0; i < numEq; i++) {
+            y[i] += (h/6.0)*(k1[i] + 2*k2[i] + 2*k3[i] + k4[i]);
+        }
+    }
+
+    /**
+     * Wrap an existing BSimOdeSystem so that it can be stepped by this solver.
+     * The wrapped system still allocates in derivativeSystem(); only the solver side is allocation-free.
+     */
+    public static InPlaceOdeSystem adapt(final BSimOdeSystem ode) {
+        if (ode instanceof InPlaceOdeSystem) {
+            return (InPlaceOdeSystem) ode;
+        }
+
+        return new InPlaceOdeSystem() {
+            @Override
+            public void derivative(double t, double[] y, double[] dyOut) {
+                double[] dy = ode.derivativeSystem(t, y);
+                System.arraycopy(dy, 0, dyOut, 0, dy.length);
+            }
+
+            @Override
+            public int getNumEq() {
+                return ode.getNumEq();
+            }
+        };
+    }
+}
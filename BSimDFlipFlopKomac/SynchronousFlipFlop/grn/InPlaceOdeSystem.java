@@ -0,0 +1,20 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+/**
+ * ODE system whose derivative is written into a caller-supplied array, so that evaluating it allocates nothing.
+ *
+ * Systems that also implement BSimOdeSystem can keep derivativeSystem() as a thin allocating wrapper
+ * around derivative(); existing BSimOdeSystems can be used here through InPlaceOdeSolver.adapt().
+ */
+public interface InPlaceOdeSystem {
+
+    /**
+     * Evaluate the derivative of the system.
+     * @param t     time
+     * @param y     current state (not modified)
+     * @param dyOut receives the derivative; must hold at least getNumEq() values
+     */
+    void derivative(double t, double[] y, double[] dyOut);
+
+    int getNumEq();
+}
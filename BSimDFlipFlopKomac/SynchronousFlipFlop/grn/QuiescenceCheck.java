@@ -0,0 +1,87 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+import java.util.Map;
+
+/**
+ * Checks that quiescence tracking does not let a sleeping D cell miss a clock edge.
+ *
+ * A latched D cell is left to fall asleep with CLK just short of a threshold, then CLK is moved slowly across
+ * it and held there, by less than the relative input tolerance in total. The cell must wake and switch as a
+ * cell integrated without quiescence tracking does. Two cases: CLK rising across Kd5 (q takes a), and CLK
+ * falling across Kd2 (a and ac take D).
+ *
+ * Usage: QuiescenceCheck [rate tolerance] [input tolerance]
+ */
+public class QuiescenceCheck {
+
+    // Simulation tick (minutes), as in SynchronousFlipFlop
+    private static final double DT = 0.25/60;
+
+    // How far CLK starts and ends from the threshold (nM), and how long it takes to cross (minutes)
+    private static final double OFFSET = 0.5;
+    private static final double RAMP = 1.0;
+
+    private static final double SETTLE = 100;
+    private static final double HOLD = 30;
+
+    public static void main(String[] args) {
+        double rateTolerance = (args.length > 0) ? Double.parseDouble(args[0]) : 1e-3;
+        double inputTolerance = (args.length > 1) ? Double.parseDouble(args[1]) : 1e-3;
+
+        Map<String, Double> p = new Dsys().getParameters();
+        double Kd1 = p.get("Kd1"), Kd2 = p.get("Kd2"), Kd5 = p.get("Kd5");
+
+        // a latched high, qc latched high; CLK rises across Kd5, so q should take a and latch high
+        boolean ok = check("CLK rising across Kd5", new double[] {425, 0, 0, 99}, 2*Kd1,
+                Kd5 - OFFSET, Kd5 + OFFSET, 2, rateTolerance, inputTolerance);
+
+        // a latched high with D low; CLK falls across Kd2, so ac should take D and latch high
+        ok &= check("CLK falling across Kd2", new double[] {425, 0, 0, 99}, 0,
+                Kd2 + OFFSET, Kd2 - OFFSET, 1, rateTolerance, inputTolerance);
+
+        System.out.println(ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Settle one cell with and one without quiescence tracking at clkFrom, ramp CLK to clkTo and hold it, and
+     * compare state variable i. Fails if the tracked cell never fell asleep or ends up in another state.
+     */
+    private static boolean check(String name, double[] ics, double d, double clkFrom, double clkTo, int i,
+                                 double rateTolerance, double inputTolerance) {
+        DsysPopulation tracked = new DsysPopulation();
+        tracked.enableQuiescence(rateTolerance, inputTolerance);
+        DsysPopulation reference = new DsysPopulation();
+        int slot = tracked.add(ics);
+        reference.add(ics);
+
+        double t = 1;
+        boolean slept = false;
+        for (; t < SETTLE; t += DT) {
+            step(tracked, reference, slot, d, clkFrom, t);
+            slept |= tracked.getSkipped() > 0;
+        }
+        for (double t0 = t; t < t0 + RAMP; t += DT) {
+            step(tracked, reference, slot, d, clkFrom + (clkTo - clkFrom)*(t - t0)/RAMP, t);
+        }
+        for (double t0 = t; t < t0 + HOLD; t += DT) {
+            step(tracked, reference, slot, d, clkTo, t);
+        }
+
+        double y = tracked.get(slot, i);
+        double yRef = reference.get(slot, i);
+        boolean ok = slept && Math.abs(y - yRef) <= 1e-3*Math.max(1, Math.abs(yRef));
+        System.out.println(name + ": " + (slept ? "slept" : "never slept") + ", state " + i + " = " + y
+                + " (without quiescence " + yRef + ")" + (ok ? "" : " <- mismatch"));
+        return ok;
+    }
+
+    private static void step(DsysPopulation tracked, DsysPopulation reference, int slot, double d, double clk, double t) {
+        tracked.setExternalLevel(slot, d, clk);
+        reference.setExternalLevel(slot, d, clk);
+        tracked.step(t, DT);
+        reference.step(t, DT);
+    }
+}
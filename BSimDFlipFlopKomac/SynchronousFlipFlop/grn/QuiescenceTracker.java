@@ -0,0 +1,155 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Detects cells whose GRN sits at a steady state, so that a population integrator can skip them.
+ *
+ * After each step the integrator reports every awake cell's activity (the largest rate of change of its
+ * state relative to its size, per unit time) and the two external levels it saw. A cell whose activity
+ * stays below the rate tolerance, with inputs that move less than the input tolerance, for QUIET_STEPS
+ * consecutive steps is put to sleep, and its inputs are remembered. A sleeping cell keeps its state and is
+ * woken as soon as one of its inputs moves away from the remembered value by more than the input tolerance.
+ *
+ * A model whose rates depend on an input only through thresholds on it (Dsys) can also pass an input mode,
+ * e.g. the sides of the thresholds as bits. A cell then also wakes when its mode differs from the one it fell
+ * asleep in, however small the move: a level that drifts across a threshold by less than the input tolerance
+ * changes the rates all the same.
+ *
+ * Slots are those of the population integrator that owns the tracker. Different slots may be handled by
+ * different threads during a step.
+ */
+public class QuiescenceTracker {
+
+    // Consecutive quiet steps before a cell is put to sleep
+    public static final int QUIET_STEPS = 4;
+
+    // Absolute floor of the relative tolerances
+    private static final double ABS_TOL = 1.0e-6;
+
+    private final double rateTolerance;
+    private final double inputTolerance;
+
+    private boolean[] asleep;
+    private int[] quietSteps;
+    private double[] input0;
+    private double[] input1;
+    private int[] mode;
+
+    // Cells asleep during the last step
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    public QuiescenceTracker(int capacity, double _rateTolerance, double _inputTolerance) {
+        this.rateTolerance = _rateTolerance;
+        this.inputTolerance = _inputTolerance;
+
+        asleep = new boolean[capacity];
+        quietSteps = new int[capacity];
+        input0 = new double[capacity];
+        input1 = new double[capacity];
+        mode = new int[capacity];
+    }
+
+    /**
+     * Forget the cell in the given slot (added, removed or restarted).
+     */
+    public void reset(int slot) {
+        asleep[slot] = false;
+        quietSteps[slot] = 0;
+    }
+
+    public boolean isAsleep(int slot) {
+        return asleep[slot];
+    }
+
+    /**
+     * Before a step: wake a sleeping cell if its inputs have moved, and count it as skipped otherwise.
+     * @return true if the cell sleeps through the step
+     */
+    public boolean sleeps(int slot, double in0, double in1) {
+        return sleeps(slot, in0, in1, 0);
+    }
+
+    /**
+     * As sleeps(slot, in0, in1), also waking the cell if its input mode has changed.
+     */
+    public boolean sleeps(int slot, double in0, double in1, int inputMode) {
+        if (!asleep[slot]) {
+            return false;
+        }
+        if (moved(input0[slot], in0) || moved(input1[slot], in1) || mode[slot] != inputMode) {
+            asleep[slot] = false;
+            quietSteps[slot] = 0;
+            input0[slot] = in0;
+            input1[slot] = in1;
+            mode[slot] = inputMode;
+            return false;
+        }
+        skipped.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * After a step: record the activity of an awake cell and the inputs it saw.
+     * @return true if the cell has just been put to sleep
+     */
+    public boolean observe(int slot, double activity, double in0, double in1) {
+        return observe(slot, activity, in0, in1, 0);
+    }
+
+    /**
+     * As observe(slot, activity, in0, in1), for a model with input modes.
+     */
+    public boolean observe(int slot, double activity, double in0, double in1, int inputMode) {
+        boolean quiet = activity <= rateTolerance && !moved(input0[slot], in0) && !moved(input1[slot], in1)
+                && mode[slot] == inputMode;
+
+        input0[slot] = in0;
+        input1[slot] = in1;
+        mode[slot] = inputMode;
+
+        if (!quiet) {
+            quietSteps[slot] = 0;
+            return false;
+        }
+        if (++quietSteps[slot] >= QUIET_STEPS) {
+            asleep[slot] = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Start counting the cells skipped by the next step.
+     */
+    public void beginStep() {
+        skipped.set(0);
+    }
+
+    /**
+     * @return number of cells that slept through the last step
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return relative rate of change of a state component, for the activity of a cell
+     */
+    public static double relativeRate(double rate, double value) {
+        return Math.abs(rate)/(ABS_TOL + Math.abs(value));
+    }
+
+    public void grow(int capacity) {
+        asleep = Arrays.copyOf(asleep, capacity);
+        quietSteps = Arrays.copyOf(quietSteps, capacity);
+        input0 = Arrays.copyOf(input0, capacity);
+        input1 = Arrays.copyOf(input1, capacity);
+        mode = Arrays.copyOf(mode, capacity);
+    }
+
+    private boolean moved(double reference, double value) {
+        return Math.abs(value - reference) > inputTolerance*(ABS_TOL + Math.abs(reference));
+    }
+}
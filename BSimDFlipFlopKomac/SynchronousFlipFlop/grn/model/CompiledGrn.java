@@ -0,0 +1,149 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model;
+
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.ChenRates;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.InPlaceOdeSystem;
+
+/**
+ * A GRN kernel compiled from a GrnModel (see GrnCompiler). The rate laws are evaluated by a class generated
+ * for the model at startup or, when that is not possible (no JDK compiler at run time, or an interpreted
+ * kernel was requested), by walking the compiled expression trees.
+ *
+ * It can stand in for a hand-written model: as ChenRates (inputs H and I, in that order) in
+ * ChenPopulationDDE (see -compiledgrn in SynchronousFlipFlop), and as InPlaceOdeSystem (inputs set with
+ * setInputs()) wherever Dsys is integrated. The rates() methods keep their working storage per thread, so
+ * one kernel can serve the parallel passes of a population; derivative() reads the inputs last set with
+ * setInputs(), so as an InPlaceOdeSystem use one kernel per thread.
+ */
+public class CompiledGrn implements ChenRates, InPlaceOdeSystem {
+
+    private final String name;
+    private final int numEq;
+
+    private final GrnKernel kernel;
+
+    private final int[] delayedComponents;
+    private final double delay;
+    private final double historyLength;
+
+    private final double[] inputs;
+
+    // H and I of the ChenRates calls, per thread
+    private final ThreadLocal<double[]> chenInputs = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[2];
+        }
+    };
+
+    CompiledGrn(String _name, int _numEq, int nInputs, GrnKernel _kernel,
+                int[] _delayedComponents, double _delay, double _historyLength) {
+        this.name = _name;
+        this.numEq = _numEq;
+        this.kernel = _kernel;
+        this.delayedComponents = _delayedComponents;
+        this.delay = _delay;
+        this.historyLength = _historyLength;
+
+        this.inputs = new double[nInputs];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Evaluate the rate laws.
+     * @param t       current time (ignored if the model has a clock species)
+     * @param y       state
+     * @param delayed state at t - delay (indexed like y; only the delayed components are read), may be null
+     * @param in      external inputs, in the order declared in the model
+     * @param rate    output
+     */
+    public void rates(double t, double[] y, double[] delayed, double[] in, double[] rate) {
+        kernel.rates(t, y, delayed, in, rate);
+    }
+
+    /**
+     * @return true if the rate laws run as a generated class, false if they are interpreted
+     */
+    public boolean isGenerated() {
+        return !(kernel instanceof TreeKernel);
+    }
+
+    /**
+     * Set the external inputs used by derivative().
+     */
+    public void setInputs(double... values) {
+        System.arraycopy(values, 0, inputs, 0, inputs.length);
+    }
+
+    // Implementation of InPlaceOdeSystem
+
+    public void derivative(double t, double[] y, double[] dyOut) {
+        rates(t, y, null, inputs, dyOut);
+    }
+
+    public int getNumEq() {
+        return numEq;
+    }
+
+    // Implementation of ChenRates
+
+    public void rates(double[] state, double[] delayed, double H_ext, double I_ext, double[] rate) {
+        double[] in = chenInputs.get();
+        in[0] = H_ext;
+        in[1] = I_ext;
+        rates(0, state, delayed, in, rate);
+    }
+
+    public double getMaximumDelay() {
+        return delay;
+    }
+
+    public double getHistoryLength() {
+        return historyLength;
+    }
+
+    public int[] getDelayedComponents() {
+        return delayedComponents.clone();
+    }
+
+    /**
+     * Evaluates the compiled expression trees directly, with one frame of locals per thread.
+     */
+    static final class TreeKernel implements GrnKernel {
+        private final int clock;
+        private final Node[] locals;
+        private final Node[] rateLaws;
+        private final ThreadLocal<Node.Frame> frame;
+
+        TreeKernel(int _clock, Node[] _locals, Node[] _rateLaws) {
+            this.clock = _clock;
+            this.locals = _locals;
+            this.rateLaws = _rateLaws;
+            final int nLocals = _locals.length;
+            this.frame = new ThreadLocal<Node.Frame>() {
+                @Override
+                protected Node.Frame initialValue() {
+                    return new Node.Frame(nLocals);
+                }
+            };
+        }
+
+        public void rates(double t, double[] y, double[] delayed, double[] in, double[] rate) {
+            final Node.Frame f = frame.get();
+            f.t = (clock < 0) ? t : y[clock];
+            f.y = y;
+            f.delayed = delayed;
+            f.inputs = in;
+
+            final double[] v = f.locals;
+            for (int i = 0; i < locals.length; i++) {
+                v[i] = locals[i].eval(f);
+            }
+            for (int i = 0; i < rateLaws.length; i++) {
+                rate[i] = rateLaws[i].eval(f);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Syntax tree of a rate law expression, and its parser.
+ */
+abstract class Expr {
+
+    static final class Num extends Expr {
+        final double value;
+        Num(double _value) { value = _value; }
+    }
+
+    static final class Ref extends Expr {
+        final String name;
+        Ref(String _name) { name = _name; }
+    }
+
+    static final class Neg extends Expr {
+        final Expr arg;
+        Neg(Expr _arg) { arg = _arg; }
+    }
+
+    static final class Bin extends Expr {
+        final char op;
+        final Expr left, right;
+        Bin(char _op, Expr _left, Expr _right) { op = _op; left = _left; right = _right; }
+    }
+
+    static final class Call extends Expr {
+        final String function;
+        final List<Expr> args;
+        Call(String _function, List<Expr> _args) { function = _function; args = _args; }
+    }
+
+    /**
+     * Parse an expression. Grammar (usual precedence, ^ is right-associative and binds tighter than unary minus):
+     *
+     *   expr    := term (('+' | '-') term)*
+     *   term    := unary (('*' | '/') unary)*
+     *   unary   := '-' unary | power
+     *   power   := primary ('^' unary)?
+     *   primary := number | name | name '(' expr (',' expr)* ')' | '(' expr ')'
+     */
+    static Expr parse(String text) {
+        Parser p = new Parser(text);
+        Expr e = p.expr();
+        p.skipSpace();
+        if (p.pos != text.length()) {
+            throw p.error("Unexpected '" + text.charAt(p.pos) + "'");
+        }
+        return e;
+    }
+
+    private static final class Parser {
+        final String text;
+        int pos = 0;
+
+        Parser(String _text) { text = _text; }
+
+        Expr expr() {
+            Expr e = term();
+            while (true) {
+                if (accept('+')) {
+                    e = new Bin('+', e, term());
+                } else if (accept('-')) {
+                    e = new Bin('-', e, term());
+                } else {
+                    return e;
+                }
+            }
+        }
+
+        Expr term() {
+            Expr e = unary();
+            while (true) {
+                if (accept('*')) {
+                    e = new Bin('*', e, unary());
+                } else if (accept('/')) {
+                    e = new Bin('/', e, unary());
+                } else {
+                    return e;
+                }
+            }
+        }
+
+        Expr unary() {
+            if (accept('-')) {
+                return new Neg(unary());
+            }
+            return power();
+        }
+
+        Expr power() {
+            Expr base = primary();
+            if (accept('^')) {
+                return new Bin('^', base, unary());
+            }
+            return base;
+        }
+
+        Expr primary() {
+            skipSpace();
+            if (pos >= text.length()) {
+                throw error("Unexpected end of expression");
+            }
+
+            char c = text.charAt(pos);
+            if (accept('(')) {
+                Expr e = expr();
+                expect(')');
+                return e;
+            }
+            if (Character.isDigit(c) || c == '.') {
+                return number();
+            }
+            if (Character.isLetter(c) || c == '_') {
+                String name = name();
+                if (accept('(')) {
+                    List<Expr> args = new ArrayList<Expr>();
+                    args.add(expr());
+                    while (accept(',')) {
+                        args.add(expr());
+                    }
+                    expect(')');
+                    return new Call(name, args);
+                }
+                return new Ref(name);
+            }
+            throw error("Unexpected '" + c + "'");
+        }
+
+        Expr number() {
+            int start = pos;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                pos++;
+            }
+            if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                pos++;
+                if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) {
+                    pos++;
+                }
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+            try {
+                return new Num(Double.parseDouble(text.substring(start, pos)));
+            } catch (NumberFormatException e) {
+                throw error("Malformed number '" + text.substring(start, pos) + "'");
+            }
+        }
+
+        String name() {
+            int start = pos;
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        boolean accept(char c) {
+            skipSpace();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!accept(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos + " in \"" + text + "\"");
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the compiled expression trees of a GRN into Java source for a GrnKernel, and compiles and loads it
+ * in memory. Constants are written as exact hexadecimal literals, definitions become local variables and
+ * integer powers become calls to small static helpers that the JIT inlines.
+ *
+ * Needs a JDK at run time (javax.tools); without one generate() returns null and the caller falls back to
+ * evaluating the expression trees.
+ */
+class GrnCodeGenerator {
+
+    private static final String PACKAGE = GrnCodeGenerator.class.getPackage().getName();
+
+    private static int generated = 0;
+
+    /**
+     * @return the source of a GrnKernel class with the given name
+     */
+    static String source(String className, String modelName, int clock, Node[] locals, Node[] rates) {
+        StringBuilder s = new StringBuilder();
+        s.append("package ").append(PACKAGE).append(";\n\n");
+        s.append("// Generated from GRN model ").append(modelName).append("\n");
+        s.append("public final class ").append(className).append(" implements GrnKernel {\n\n");
+
+        s.append("    public void rates(double time, double[] y, double[] d, double[] in, double[] rate) {\n");
+        s.append("        final double t = ").append((clock < 0) ? "time" : "y[" + clock + "]").append(";\n");
+        for (int i = 0; i < locals.length; i++) {
+            s.append("        final double v").append(i).append(" = ").append(emit(locals[i])).append(";\n");
+        }
+        for (int i = 0; i < rates.length; i++) {
+            s.append("        rate[").append(i).append("] = ").append(emit(rates[i])).append(";\n");
+        }
+        s.append("    }\n\n");
+
+        s.append("    private static double sq(double x) { return x*x; }\n");
+        s.append("    private static double cube(double x) { return x*x*x; }\n");
+        s.append("    private static double p4(double x) { double x2 = x*x; return x2*x2; }\n");
+        s.append("    private static double powi(double x, int n) { double r = 1; for (; n > 0; n >>= 1) { if ((n & 1) != 0) r *= x; x *= x; } return r; }\n");
+        s.append("    private static double step(double x) { return (x < 0) ? 0 : 1; }\n");
+        s.append("}\n");
+        return s.toString();
+    }
+
+    /**
+     * Generate, compile and instantiate a kernel.
+     * @return the kernel, or null if no compiler is available or compilation failed
+     */
+    static GrnKernel generate(String modelName, int clock, Node[] locals, Node[] rates) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            return null;
+        }
+
+        String className = "GeneratedGrnKernel" + nextId() + "_" + modelName.replaceAll("[^A-Za-z0-9_]", "_");
+        String code = source(className, modelName, clock, locals, rates);
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, null);
+        MemoryFileManager files = new MemoryFileManager(standard);
+
+        List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"));
+        JavaFileObject unit = new SourceFile(PACKAGE.replace('.', '/') + "/" + className, code);
+        boolean ok = compiler.getTask(null, files, diagnostics, options, null, Arrays.asList(unit)).call();
+
+        if (!ok) {
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+                System.err.println("GRN kernel " + modelName + ": " + d.getMessage(null));
+            }
+            return null;
+        }
+
+        try {
+            ClassLoader loader = new MemoryClassLoader(files.classes, GrnKernel.class.getClassLoader());
+            Class<?> c = loader.loadClass(PACKAGE + "." + className);
+            return (GrnKernel) c.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            System.err.println("GRN kernel " + modelName + ": " + e);
+            return null;
+        }
+    }
+
+    private static synchronized int nextId() {
+        return generated++;
+    }
+
+    private static String emit(Node n) {
+        if (n instanceof Node.Const) {
+            return literal(((Node.Const) n).value);
+        }
+        if (n instanceof Node.State) {
+            return "y[" + ((Node.State) n).i + "]";
+        }
+        if (n instanceof Node.Delayed) {
+            return "d[" + ((Node.Delayed) n).i + "]";
+        }
+        if (n instanceof Node.Input) {
+            return "in[" + ((Node.Input) n).i + "]";
+        }
+        if (n instanceof Node.Local) {
+            return "v" + ((Node.Local) n).i;
+        }
+        if (n instanceof Node.Time) {
+            return "t";
+        }
+        if (n instanceof Node.Neg) {
+            return "(-" + emit(((Node.Neg) n).a) + ")";
+        }
+        if (n instanceof Node.Add) {
+            return "(" + emit(((Node.Add) n).a) + " + " + emit(((Node.Add) n).b) + ")";
+        }
+        if (n instanceof Node.Sub) {
+            return "(" + emit(((Node.Sub) n).a) + " - " + emit(((Node.Sub) n).b) + ")";
+        }
+        if (n instanceof Node.Mul) {
+            return "(" + emit(((Node.Mul) n).a) + " * " + emit(((Node.Mul) n).b) + ")";
+        }
+        if (n instanceof Node.Div) {
+            return "(" + emit(((Node.Div) n).a) + " / " + emit(((Node.Div) n).b) + ")";
+        }
+        if (n instanceof Node.AddConst) {
+            return "(" + literal(((Node.AddConst) n).c) + " + " + emit(((Node.AddConst) n).a) + ")";
+        }
+        if (n instanceof Node.MulConst) {
+            return "(" + literal(((Node.MulConst) n).c) + " * " + emit(((Node.MulConst) n).a) + ")";
+        }
+        if (n instanceof Node.ConstDiv) {
+            return "(" + literal(((Node.ConstDiv) n).c) + " / " + emit(((Node.ConstDiv) n).a) + ")";
+        }
+        if (n instanceof Node.Square) {
+            return "sq(" + emit(((Node.Square) n).a) + ")";
+        }
+        if (n instanceof Node.Cube) {
+            return "cube(" + emit(((Node.Cube) n).a) + ")";
+        }
+        if (n instanceof Node.Fourth) {
+            return "p4(" + emit(((Node.Fourth) n).a) + ")";
+        }
+        if (n instanceof Node.PowInt) {
+            return "powi(" + emit(((Node.PowInt) n).a) + ", " + ((Node.PowInt) n).n + ")";
+        }
+        if (n instanceof Node.Pow) {
+            return "Math.pow(" + emit(((Node.Pow) n).a) + ", " + emit(((Node.Pow) n).b) + ")";
+        }
+        if (n instanceof Node.Exp) {
+            return "Math.exp(" + emit(((Node.Exp) n).a) + ")";
+        }
+        if (n instanceof Node.Step) {
+            return "step(" + emit(((Node.Step) n).a) + ")";
+        }
+        throw new IllegalStateException("No code for " + n.getClass().getSimpleName());
+    }
+
+    // Exact double literal
+    private static String literal(double value) {
+        if (Double.isNaN(value)) {
+            return "Double.NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return (value > 0) ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        }
+        return "(" + Double.toHexString(value) + ")";
+    }
+
+    private static final class SourceFile extends SimpleJavaFileObject {
+        private final String code;
+
+        SourceFile(String path, String _code) {
+            super(URI.create("string:///" + path + Kind.SOURCE.extension), Kind.SOURCE);
+            code = _code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    private static final class ClassFile extends SimpleJavaFileObject {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ClassFile(String name) {
+            super(URI.create("bytes:///" + name.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+    }
+
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+        final Map<String, ClassFile> classes = new HashMap<String, ClassFile>();
+
+        MemoryFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+            ClassFile file = new ClassFile(className);
+            classes.put(className, file);
+            return file;
+        }
+    }
+
+    private static final class MemoryClassLoader extends ClassLoader {
+        private final Map<String, ClassFile> classes;
+
+        MemoryClassLoader(Map<String, ClassFile> _classes, ClassLoader parent) {
+            super(parent);
+            classes = _classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            ClassFile file = classes.get(name);
+            if (file == null) {
+                throw new ClassNotFoundException(name);
+            }
+            byte[] b = file.bytes.toByteArray();
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Compiles a GrnModel into a CompiledGrn kernel.
+ *
+ * Names are resolved once (species, inputs and definitions to array slots; parameters to constants), and
+ * the expression trees are simplified while they are built:
+ *   - operations on constants are folded, as are x + 0, x*1, c1*(c2*x), ...
+ *   - x/c becomes x*(1/c) with the reciprocal computed here
+ *   - x^n for a constant integer n is unrolled into multiplications, and (c*x)^n becomes c^n * x^n,
+ *     so a Hill term (x/K)^n costs a multiply by the precomputed 1/K^n and two or three multiplies.
+ *
+ * The simplified trees are then emitted as Java source and compiled into a class at startup (see
+ * GrnCodeGenerator); compileInterpreted() skips that step and evaluates the trees directly.
+ */
+public class GrnCompiler {
+
+    // Largest integer exponent that is unrolled rather than passed to Math.pow
+    private static final int MAX_UNROLLED_POWER = 16;
+
+    private final GrnModel model;
+    private final boolean generate;
+
+    private final Map<String, Integer> speciesIndex = new HashMap<String, Integer>();
+    private final Map<String, Integer> inputIndex = new HashMap<String, Integer>();
+    private final Map<String, Integer> localIndex = new HashMap<String, Integer>();
+    private final Map<String, Double> constants = new HashMap<String, Double>();
+    private final TreeSet<Integer> delayedComponents = new TreeSet<Integer>();
+
+    private GrnCompiler(GrnModel _model, boolean _generate) {
+        this.model = _model;
+        this.generate = _generate;
+    }
+
+    /**
+     * Compile to a generated kernel class, falling back to the interpreted kernel if no Java compiler is available.
+     */
+    public static CompiledGrn compile(GrnModel model) {
+        return new GrnCompiler(model, true).compile();
+    }
+
+    /**
+     * Compile to an interpreted kernel (no code generation).
+     */
+    public static CompiledGrn compileInterpreted(GrnModel model) {
+        return new GrnCompiler(model, false).compile();
+    }
+
+    private CompiledGrn compile() {
+        List<String> species = model.getSpecies();
+        for (int i = 0; i < species.size(); i++) {
+            speciesIndex.put(species.get(i), i);
+        }
+        List<String> inputs = model.getInputs();
+        for (int i = 0; i < inputs.size(); i++) {
+            inputIndex.put(inputs.get(i), i);
+        }
+
+        // Parameters must reduce to constants
+        for (Map.Entry<String, String> p : model.getParameters().entrySet()) {
+            Node value = compile(Expr.parse(p.getValue()), p.getKey());
+            if (!value.isConst()) {
+                throw new IllegalArgumentException("Parameter " + p.getKey() + " of model " + model.getName() + " is not a constant");
+            }
+            constants.put(p.getKey(), ((Node.Const) value).value);
+        }
+
+        // Definitions, in order; constant ones are folded away
+        List<Node> locals = new ArrayList<Node>();
+        for (Map.Entry<String, String> d : model.getDefinitions().entrySet()) {
+            Node value = compile(Expr.parse(d.getValue()), d.getKey());
+            if (value.isConst()) {
+                constants.put(d.getKey(), ((Node.Const) value).value);
+            } else {
+                localIndex.put(d.getKey(), locals.size());
+                locals.add(value);
+            }
+        }
+
+        Node[] rates = new Node[species.size()];
+        for (int i = 0; i < species.size(); i++) {
+            String law = model.getRates().get(species.get(i));
+            rates[i] = (law == null) ? new Node.Const(0) : compile(Expr.parse(law), species.get(i));
+        }
+
+        int[] delayed = new int[delayedComponents.size()];
+        int k = 0;
+        for (int c : delayedComponents) {
+            delayed[k++] = c;
+        }
+        if (delayed.length > 0 && model.getDelay() <= 0) {
+            throw new IllegalArgumentException("Model " + model.getName() + " uses delayed() but has no delay");
+        }
+
+        int clock = (model.getClock() == null) ? -1 : speciesIndex.get(model.getClock());
+
+        Node[] localNodes = locals.toArray(new Node[locals.size()]);
+        GrnKernel kernel = generate ? GrnCodeGenerator.generate(model.getName(), clock, localNodes, rates) : null;
+        if (kernel == null) {
+            kernel = new CompiledGrn.TreeKernel(clock, localNodes, rates);
+        }
+
+        return new CompiledGrn(model.getName(), species.size(), inputs.size(), kernel,
+                delayed, model.getDelay(), model.getHistoryLength());
+    }
+
+    private Node compile(Expr e, String context) {
+        if (e instanceof Expr.Num) {
+            return new Node.Const(((Expr.Num) e).value);
+        }
+
+        if (e instanceof Expr.Ref) {
+            return resolve(((Expr.Ref) e).name, context);
+        }
+
+        if (e instanceof Expr.Neg) {
+            Node a = compile(((Expr.Neg) e).arg, context);
+            if (a.isConst()) {
+                return new Node.Const(-value(a));
+            }
+            if (a instanceof Node.MulConst) {
+                return new Node.MulConst(-((Node.MulConst) a).c, ((Node.MulConst) a).a);
+            }
+            return new Node.Neg(a);
+        }
+
+        if (e instanceof Expr.Bin) {
+            Expr.Bin b = (Expr.Bin) e;
+            Node l = compile(b.left, context);
+            Node r = compile(b.right, context);
+            switch (b.op) {
+                case '+': return add(l, r);
+                case '-': return sub(l, r);
+                case '*': return mul(l, r);
+                case '/': return div(l, r);
+                case '^': return pow(l, r);
+                default: throw new IllegalStateException("Unknown operator " + b.op);
+            }
+        }
+
+        Expr.Call call = (Expr.Call) e;
+        String f = call.function;
+        if (f.equals("delayed")) {
+            if (call.args.size() != 1 || !(call.args.get(0) instanceof Expr.Ref)
+                    || !speciesIndex.containsKey(((Expr.Ref) call.args.get(0)).name)) {
+                throw new IllegalArgumentException("delayed() takes a single species, in " + context + " of model " + model.getName());
+            }
+            int i = speciesIndex.get(((Expr.Ref) call.args.get(0)).name);
+            delayedComponents.add(i);
+            return new Node.Delayed(i);
+        }
+
+        List<Node> args = new ArrayList<Node>();
+        for (Expr a : call.args) {
+            args.add(compile(a, context));
+        }
+        if (f.equals("pow") && args.size() == 2) {
+            return pow(args.get(0), args.get(1));
+        }
+        if (f.equals("exp") && args.size() == 1) {
+            Node a = args.get(0);
+            return a.isConst() ? new Node.Const(Math.exp(value(a))) : new Node.Exp(a);
+        }
+        if (f.equals("log") && args.size() == 1) {
+            Node a = args.get(0);
+            if (!a.isConst()) {
+                throw new IllegalArgumentException("log() is only supported on constants, in " + context + " of model " + model.getName());
+            }
+            return new Node.Const(Math.log(value(a)));
+        }
+        if (f.equals("step") && args.size() == 1) {
+            Node a = args.get(0);
+            return a.isConst() ? new Node.Const(value(a) < 0 ? 0 : 1) : new Node.Step(a);
+        }
+        throw new IllegalArgumentException("Unknown function " + f + "/" + args.size() + " in " + context + " of model " + model.getName());
+    }
+
+    private Node resolve(String name, String context) {
+        if (localIndex.containsKey(name)) {
+            return new Node.Local(localIndex.get(name));
+        }
+        if (constants.containsKey(name)) {
+            return new Node.Const(constants.get(name));
+        }
+        if (speciesIndex.containsKey(name)) {
+            return new Node.State(speciesIndex.get(name));
+        }
+        if (inputIndex.containsKey(name)) {
+            return new Node.Input(inputIndex.get(name));
+        }
+        if (name.equals("t")) {
+            return new Node.Time();
+        }
+        throw new IllegalArgumentException("Unknown name " + name + " in " + context + " of model " + model.getName());
+    }
+
+    private static double value(Node n) {
+        return ((Node.Const) n).value;
+    }
+
+    private static Node add(Node l, Node r) {
+        if (l.isConst() && r.isConst()) {
+            return new Node.Const(value(l) + value(r));
+        }
+        if (l.isConst()) {
+            return (value(l) == 0) ? r : new Node.AddConst(value(l), r);
+        }
+        if (r.isConst()) {
+            return (value(r) == 0) ? l : new Node.AddConst(value(r), l);
+        }
+        return new Node.Add(l, r);
+    }
+
+    private static Node sub(Node l, Node r) {
+        if (l.isConst() && r.isConst()) {
+            return new Node.Const(value(l) - value(r));
+        }
+        if (r.isConst()) {
+            return (value(r) == 0) ? l : new Node.AddConst(-value(r), l);
+        }
+        return new Node.Sub(l, r);
+    }
+
+    private static Node mul(Node l, Node r) {
+        if (l.isConst() && r.isConst()) {
+            return new Node.Const(value(l) * value(r));
+        }
+        if (r.isConst()) {
+            Node swap = l; l = r; r = swap;
+        }
+        if (l.isConst()) {
+            double c = value(l);
+            if (c == 1) {
+                return r;
+            }
+            if (r instanceof Node.MulConst) {
+                return new Node.MulConst(c * ((Node.MulConst) r).c, ((Node.MulConst) r).a);
+            }
+            return new Node.MulConst(c, r);
+        }
+        return new Node.Mul(l, r);
+    }
+
+    private static Node div(Node l, Node r) {
+        if (l.isConst() && r.isConst()) {
+            return new Node.Const(value(l) / value(r));
+        }
+        if (r.isConst()) {
+            // Precomputed reciprocal
+            return mul(new Node.Const(1.0/value(r)), l);
+        }
+        if (l.isConst()) {
+            return new Node.ConstDiv(value(l), r);
+        }
+        return new Node.Div(l, r);
+    }
+
+    private static Node pow(Node base, Node exponent) {
+        if (base.isConst() && exponent.isConst()) {
+            return new Node.Const(Math.pow(value(base), value(exponent)));
+        }
+        if (!exponent.isConst()) {
+            return new Node.Pow(base, exponent);
+        }
+
+        double x = value(exponent);
+        int n = (int) x;
+        if (n != x || Math.abs(n) > MAX_UNROLLED_POWER) {
+            return new Node.Pow(base, exponent);
+        }
+        if (n < 0) {
+            return div(new Node.Const(1), pow(base, new Node.Const(-n)));
+        }
+
+        // (c*a)^n = c^n * a^n
+        if (base instanceof Node.MulConst) {
+            Node.MulConst m = (Node.MulConst) base;
+            return mul(new Node.Const(Math.pow(m.c, n)), pow(m.a, exponent));
+        }
+
+        switch (n) {
+            case 0: return new Node.Const(1);
+            case 1: return base;
+            case 2: return new Node.Square(base);
+            case 3: return new Node.Cube(base);
+            case 4: return new Node.Fourth(base);
+            default: return new Node.PowInt(base, n);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model;
+
+/**
+ * Evaluates the rate laws of a compiled GRN. Implemented by classes generated at startup (see
+ * GrnCodeGenerator) or, where no Java compiler is available, by an evaluator over the compiled expression tree.
+ * A kernel is shared by the parallel passes of a population, so any working storage must be kept per thread.
+ */
+public interface GrnKernel {
+
+    /**
+     * @param t       current time
+     * @param y       state
+     * @param delayed state at t - delay (indexed like y), may be null if the model has no delay
+     * @param in      external inputs
+     * @param rate    output
+     */
+    void rates(double t, double[] y, double[] delayed, double[] in, double[] rate);
+}
@@ -0,0 +1,156 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model;
+
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.ActivatorDDE;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.ChenRates;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.Dsys;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.RepressorDDE;
+
+import java.util.Random;
+
+/**
+ * Compares the compiled GRN kernels, generated and interpreted, with the hand-written classes
+ * (ActivatorDDE, RepressorDDE, Dsys): the largest relative difference between the rates, and the time
+ * per rate evaluation.
+ *
+ * Usage: GrnKernelBenchmark [evaluations]
+ */
+public class GrnKernelBenchmark {
+
+    private static final int STATES = 1024;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int evaluations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        Random rng = new Random(42);
+
+        // Chen cells: states and delayed states around the oscillator's range, random field levels
+        double[][] states = new double[STATES][8];
+        double[][] delayed = new double[STATES][8];
+        double[][] levels = new double[STATES][2];
+        for (int i = 0; i < STATES; i++) {
+            for (int c = 0; c < 7; c++) {
+                states[i][c] = 5000*rng.nextDouble();
+                delayed[i][c] = 5000*rng.nextDouble();
+            }
+            states[i][7] = 100*rng.nextDouble();
+            levels[i][0] = 100*rng.nextDouble();
+            levels[i][1] = 100*rng.nextDouble();
+        }
+
+        compareChen("activator", new ActivatorDDE(new double[8]), GrnCompiler.compile(GrnModels.chenActivator()),
+                states, delayed, levels, evaluations);
+        compareChen("activator", new ActivatorDDE(new double[8]),
+                GrnCompiler.compileInterpreted(GrnModels.chenActivator()), states, delayed, levels, evaluations);
+        compareChen("repressor", new RepressorDDE(new double[8]), GrnCompiler.compile(GrnModels.chenRepressor()),
+                states, delayed, levels, evaluations);
+        compareChen("repressor", new RepressorDDE(new double[8]),
+                GrnCompiler.compileInterpreted(GrnModels.chenRepressor()), states, delayed, levels, evaluations);
+
+        // D flip-flop: states and inputs either side of all thresholds
+        double[][] dStates = new double[STATES][4];
+        double[][] dLevels = new double[STATES][2];
+        double[] times = new double[STATES];
+        for (int i = 0; i < STATES; i++) {
+            for (int c = 0; c < 4; c++) {
+                dStates[i][c] = 200*rng.nextDouble();
+            }
+            dLevels[i][0] = 200*rng.nextDouble();
+            dLevels[i][1] = 3000*rng.nextDouble();
+            times[i] = 100*rng.nextDouble();
+        }
+
+        compareDsys("dsys", new Dsys(), GrnCompiler.compile(GrnModels.dFlipFlop()), dStates, dLevels, times, evaluations);
+        compareDsys("dsys", new Dsys(), GrnCompiler.compileInterpreted(GrnModels.dFlipFlop()),
+                dStates, dLevels, times, evaluations);
+    }
+
+    private static void compareChen(String name, ChenRates handWritten, CompiledGrn compiled,
+                                    double[][] states, double[][] delayed, double[][] levels, int evaluations) {
+        double[] r1 = new double[8];
+        double[] r2 = new double[8];
+
+        double maxDiff = 0;
+        for (int i = 0; i < STATES; i++) {
+            handWritten.rates(states[i], delayed[i], levels[i][0], levels[i][1], r1);
+            compiled.rates(states[i], delayed[i], levels[i][0], levels[i][1], r2);
+            maxDiff = Math.max(maxDiff, relativeDifference(r1, r2));
+        }
+
+        double tHand = 0, tCompiled = 0;
+        double sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int k = 0; k < evaluations; k++) {
+                int i = k & (STATES - 1);
+                handWritten.rates(states[i], delayed[i], levels[i][0], levels[i][1], r1);
+                sink += r1[0];
+            }
+            tHand = (System.nanoTime() - start)/(double) evaluations;
+
+            start = System.nanoTime();
+            for (int k = 0; k < evaluations; k++) {
+                int i = k & (STATES - 1);
+                compiled.rates(states[i], delayed[i], levels[i][0], levels[i][1], r2);
+                sink += r2[0];
+            }
+            tCompiled = (System.nanoTime() - start)/(double) evaluations;
+        }
+
+        report(name, compiled, maxDiff, tHand, tCompiled, sink);
+    }
+
+    private static void compareDsys(String name, Dsys handWritten, CompiledGrn compiled,
+                                    double[][] states, double[][] levels, double[] times, int evaluations) {
+        double[] r1 = new double[4];
+        double[] r2 = new double[4];
+
+        double maxDiff = 0;
+        for (int i = 0; i < STATES; i++) {
+            handWritten.setExternalLevel(levels[i][0], levels[i][1]);
+            handWritten.derivative(times[i], states[i], r1);
+            compiled.setInputs(levels[i][0], levels[i][1]);
+            compiled.derivative(times[i], states[i], r2);
+            maxDiff = Math.max(maxDiff, relativeDifference(r1, r2));
+        }
+
+        double tHand = 0, tCompiled = 0;
+        double sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int k = 0; k < evaluations; k++) {
+                int i = k & (STATES - 1);
+                handWritten.setExternalLevel(levels[i][0], levels[i][1]);
+                handWritten.derivative(times[i], states[i], r1);
+                sink += r1[0];
+            }
+            tHand = (System.nanoTime() - start)/(double) evaluations;
+
+            start = System.nanoTime();
+            for (int k = 0; k < evaluations; k++) {
+                int i = k & (STATES - 1);
+                compiled.setInputs(levels[i][0], levels[i][1]);
+                compiled.derivative(times[i], states[i], r2);
+                sink += r2[0];
+            }
+            tCompiled = (System.nanoTime() - start)/(double) evaluations;
+        }
+
+        report(name, compiled, maxDiff, tHand, tCompiled, sink);
+    }
+
+    private static double relativeDifference(double[] a, double[] b) {
+        double max = 0;
+        for (int c = 0; c < a.length; c++) {
+            max = Math.max(max, Math.abs(a[c] - b[c])/Math.max(1e-12, Math.abs(a[c])));
+        }
+        return max;
+    }
+
+    private static void report(String name, CompiledGrn compiled, double maxDiff, double tHand, double tCompiled, double sink) {
+        System.out.println(name + (compiled.isGenerated() ? " [generated]" : " [interpreted]")
+                + ": max relative difference " + maxDiff
+                + "; hand-written " + String.format("%.1f", tHand) + " ns/eval"
+                + ", compiled " + String.format("%.1f", tCompiled) + " ns/eval"
+                + " (checksum " + (float) sink + ")");
+    }
+}
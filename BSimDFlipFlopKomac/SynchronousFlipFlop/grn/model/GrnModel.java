@@ -0,0 +1,145 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declarative description of a GRN: species (the state), external inputs, parameters, an optional
+ * delay, intermediate definitions and one rate law per species. Expressions are plain strings:
+ *
+ *   + - * / ^, parentheses, numbers, names, and the functions
+ *   pow(x, y), exp(x), log(c) (constants only), step(x) (0 if x < 0, else 1) and delayed(species)
+ *   (the species at t - delay).
+ *
+ * Parameters may be given as expressions of earlier parameters. The current time is available as t;
+ * a clock species (rate 1, e.g. the time since division of the Chen cells) can be declared with clock().
+ *
+ * A model is turned into a fast kernel by GrnCompiler.
+ */
+public class GrnModel {
+
+    private final String name;
+
+    private final List<String> species = new ArrayList<String>();
+    private final List<String> inputs = new ArrayList<String>();
+    private final Map<String, String> parameters = new LinkedHashMap<String, String>();
+    private final Map<String, String> definitions = new LinkedHashMap<String, String>();
+    private final Map<String, String> rates = new LinkedHashMap<String, String>();
+
+    private String clock = null;
+    private double delay = 0;
+    private double historyLength = 0;
+
+    public GrnModel(String _name) {
+        this.name = _name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Add state variables, in the order in which they appear in the state array.
+     */
+    public GrnModel species(String... names) {
+        for (String s : names) {
+            if (species.contains(s)) {
+                throw new IllegalArgumentException("Species " + s + " declared twice in model " + name);
+            }
+            species.add(s);
+        }
+        return this;
+    }
+
+    /**
+     * Add a clock species: a state variable with rate 1, which is also used as the time t.
+     */
+    public GrnModel clock(String _name) {
+        species(_name);
+        rate(_name, "1");
+        clock = _name;
+        return this;
+    }
+
+    /**
+     * Add external inputs (e.g. chemical field levels), in the order in which they are passed in.
+     */
+    public GrnModel input(String... names) {
+        for (String s : names) {
+            inputs.add(s);
+        }
+        return this;
+    }
+
+    public GrnModel parameter(String _name, double value) {
+        parameters.put(_name, Double.toString(value));
+        return this;
+    }
+
+    /**
+     * A parameter given as an expression of earlier parameters, e.g. "20*S_R".
+     */
+    public GrnModel parameter(String _name, String expression) {
+        parameters.put(_name, expression);
+        return this;
+    }
+
+    /**
+     * The delay of delayed(...) references, and how far back the history has to reach.
+     */
+    public GrnModel delay(double _delay, double _historyLength) {
+        this.delay = _delay;
+        this.historyLength = _historyLength;
+        return this;
+    }
+
+    /**
+     * An intermediate quantity, evaluated once per rate evaluation before the rate laws.
+     */
+    public GrnModel define(String _name, String expression) {
+        definitions.put(_name, expression);
+        return this;
+    }
+
+    public GrnModel rate(String _species, String expression) {
+        if (!species.contains(_species)) {
+            throw new IllegalArgumentException("Rate given for unknown species " + _species + " in model " + name);
+        }
+        rates.put(_species, expression);
+        return this;
+    }
+
+    public List<String> getSpecies() {
+        return species;
+    }
+
+    public List<String> getInputs() {
+        return inputs;
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    public Map<String, String> getDefinitions() {
+        return definitions;
+    }
+
+    public Map<String, String> getRates() {
+        return rates;
+    }
+
+    public String getClock() {
+        return clock;
+    }
+
+    public double getDelay() {
+        return delay;
+    }
+
+    public double getHistoryLength() {
+        return historyLength;
+    }
+}
@@ -0,0 +1,150 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model;
+
+import BSimDFlipFlopKomac.SynchronousFlipFlop.ChenParameters;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.Dsys;
+
+import java.util.Map;
+
+/**
+ * The GRNs of the flip-flop simulations written as GrnModels: the Chen activator and repressor
+ * (as in ActivatorDDE and RepressorDDE) and the D flip-flop (as in Dsys).
+ */
+public class GrnModels {
+
+    /**
+     * Activator cell: state R_a, L_a, A_a, F_a, M_a, H_a, I_a, time; inputs H_e, I_e.
+     */
+    public static GrnModel chenActivator() {
+        GrnModel m = new GrnModel("activator")
+                .species("R_a", "L_a", "A_a", "F_a", "M_a", "H_a", "I_a")
+                .clock("time")
+                .input("H_e", "I_e")
+                .delay(7.5, 8.0);
+        chenParameters(m);
+
+        return m
+                .define("deg", "d_C/(K_C + R_a + A_a + L_a + F_a + M_a)")
+                .define("hH",  "(delayed(H_a)/K_H_s)^n_H")
+                .define("hL",  "(delayed(L_a)/K_L)^n_L")
+                .define("hIw", "(delayed(I_a)/K_I_w)^n_I")
+                .define("hIm", "(delayed(I_a)/K_I_m)^n_I")
+                .define("uptake", "d_A*A_a/(K_A + I_a + H_a)")
+
+                .rate("R_a", "(eta_R0 + eta_R1*hH)/(1 + hH + hL) - deg*R_a - d*R_a")
+                .rate("L_a", "(eta_L0 + eta_L1*hIw)/(1 + hIw) - deg*L_a - d*L_a")
+                .rate("A_a", "(eta_A0 + eta_A1*hIm)/(1 + hIm) - deg*A_a - d*A_a")
+                .rate("F_a", "(eta_F0 + eta_F1*hH)/(1 + hH + hL) - deg*F_a - d*F_a - m*F_a")
+                .rate("M_a", "m*F_a - deg*M_a - d*M_a")
+                .rate("H_a", "phi_H*R_a - D_H*(H_a - H_e) - uptake*H_a - d*H_a")
+                .rate("I_a", "D_I*(I_e - I_a) - uptake*I_a - d*I_a");
+    }
+
+    /**
+     * Repressor cell: state C_r, L_r, A_r, Y_r, M_r, H_r, I_r, time; inputs H_e, I_e.
+     */
+    public static GrnModel chenRepressor() {
+        GrnModel m = new GrnModel("repressor")
+                .species("C_r", "L_r", "A_r", "Y_r", "M_r", "H_r", "I_r")
+                .clock("time")
+                .input("H_e", "I_e")
+                .delay(7.5, 8.0);
+        chenParameters(m);
+
+        return m
+                .define("deg", "d_C/(K_C + C_r + A_r + L_r + Y_r + M_r)")
+                .define("hH",  "(delayed(H_r)/K_H_w)^n_H")
+                .define("hL",  "(delayed(L_r)/K_L)^n_L")
+                .define("hIw", "(delayed(I_r)/K_I_w)^n_I")
+                .define("hIm", "(delayed(I_r)/K_I_m)^n_I")
+                .define("uptake", "d_A*A_r/(K_A + I_r + H_r)")
+
+                .rate("C_r", "(eta_C0 + eta_C1*hH)/(1 + hH + hL) - deg*C_r - d*C_r")
+                .rate("L_r", "(eta_L0 + eta_L1*hIw)/(1 + hIw) - deg*L_r - d*L_r")
+                .rate("A_r", "(eta_A0 + eta_A1*hIm)/(1 + hIm) - deg*A_r - d*A_r")
+                .rate("Y_r", "(eta_Y0 + eta_Y1*hIw)/(1 + hIw + hL) - deg*Y_r - d*Y_r - m*Y_r")
+                .rate("M_r", "m*Y_r - deg*M_r - d*M_r")
+                .rate("H_r", "D_H*(H_e - H_r) - uptake*H_r - d*H_r")
+                .rate("I_r", "phi_I*C_r - D_I*(I_r - I_e) - uptake*I_r - d*I_r");
+    }
+
+    /**
+     * D flip-flop: state a, ac, q, qc; inputs D, CLK; the parameters of Dsys. The rates are scaled by the time t,
+     * as in Dsys (GrnKernelBenchmark checks them against Dsys.rates).
+     */
+    public static GrnModel dFlipFlop() {
+        GrnModel m = new GrnModel("dsys")
+                .species("a", "ac", "q", "qc")
+                .input("D", "CLK");
+
+        // The parameter values are those of Dsys
+        for (Map.Entry<String, Double> p : new Dsys().getParameters().entrySet()) {
+            m.parameter(p.getKey(), p.getValue());
+        }
+
+        return m
+                .define("clkLow", "step(Kd2 - CLK)")
+                .define("clkHigh", "step(CLK - Kd5)")
+                .define("qOpen", "step(Kd7 - q)")
+                .define("qcOpen", "step(Kd7 - qc)")
+
+                .rate("a",  "t*(a1*step(D - Kd1)*clkLow + a2*step(Kd3 - ac) - dt1*a)")
+                .rate("ac", "t*(a1*step(Kd1 - D)*clkLow + a2*step(Kd3 - a) - dt1*ac)")
+                .rate("q",  "t*(a3*step(a - Kd4)*clkHigh*qOpen + a4*step(Kd6 - qc)*qOpen - dt2*q)")
+                .rate("qc", "t*(a3*step(ac - Kd4)*clkHigh*qcOpen + a4*step(Kd6 - q)*qcOpen - dt2*qc)");
+    }
+
+    /*
+     * Parameters shared by the activator and the repressor (see ActivatorDDE), with the overrides
+     * from ChenParameters.
+     */
+    private static void chenParameters(GrnModel m) {
+        m
+                .parameter("S_R", 10.423)
+                .parameter("S_C", 16.437)
+                .parameter("S_L", 8.36)
+                .parameter("S_A", 408.37)
+                .parameter("S_F", 5.031)
+                .parameter("S_Y", 7.723)
+                .parameter("ClpXP", 683.89)
+
+                .parameter("eta_R0", "20*S_R")
+                .parameter("eta_R1", "367*S_R")
+                .parameter("eta_C0", "1*S_C")
+                .parameter("eta_C1", "624.44*S_C")
+                .parameter("eta_F0", "20*S_F")
+                .parameter("eta_F1", "367*S_F")
+                .parameter("eta_Y0", "1*S_Y")
+                .parameter("eta_Y1", "1713*S_Y")
+                .parameter("eta_L0", "1*S_L")
+                .parameter("eta_L1", "1735.47*S_L")
+                .parameter("eta_A0", "1*S_A")
+                .parameter("eta_A1", "5.23*S_A")
+
+                .parameter("K_H_w", 16599.38)
+                .parameter("K_H_s", 5936.86)
+                .parameter("K_L", 47.7)
+                .parameter("K_I_w", 2357.3)
+                .parameter("K_I_m", 594.23)
+
+                .parameter("n_H", 4)
+                .parameter("n_L", 2)
+                .parameter("n_I", 4)
+
+                .parameter("d_C", "1.8*ClpXP")
+                .parameter("K_C", 1300)
+                .parameter("d_A", 2257)
+                .parameter("K_A", 5110000)
+
+                .parameter("d", "log(2)/25")
+                .parameter("m", "log(2)/3")
+
+                .parameter("D_H", 3)
+                .parameter("D_I", 2.1)
+                .parameter("phi_H", 16)
+                .parameter("phi_I", 2);
+
+        for (Map.Entry<String, Double> p : ChenParameters.p.entrySet()) {
+            m.parameter(p.getKey(), p.getValue());
+        }
+    }
+}
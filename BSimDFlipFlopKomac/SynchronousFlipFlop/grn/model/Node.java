@@ -0,0 +1,172 @@
+package BSimDFlipFlopKomac.SynchronousFlipFlop.grn.model;
+
+/**
+ * Compiled expression: a tree of small specialised nodes produced by GrnCompiler. Constants are folded,
+ * divisions by constants are multiplications by precomputed reciprocals and integer powers are unrolled,
+ * so no node evaluates Math.pow for the usual Hill exponents.
+ */
+abstract class Node {
+
+    abstract double eval(Frame f);
+
+    boolean isConst() {
+        return false;
+    }
+
+    /**
+     * Values an expression is evaluated against.
+     */
+    static final class Frame {
+        double t;
+        double[] y;
+        double[] delayed;
+        double[] inputs;
+        final double[] locals;
+
+        Frame(int nLocals) {
+            locals = new double[nLocals];
+        }
+    }
+
+    static final class Const extends Node {
+        final double value;
+        Const(double _value) { value = _value; }
+        double eval(Frame f) { return value; }
+        boolean isConst() { return true; }
+    }
+
+    static final class State extends Node {
+        final int i;
+        State(int _i) { i = _i; }
+        double eval(Frame f) { return f.y[i]; }
+    }
+
+    static final class Delayed extends Node {
+        final int i;
+        Delayed(int _i) { i = _i; }
+        double eval(Frame f) { return f.delayed[i]; }
+    }
+
+    static final class Input extends Node {
+        final int i;
+        Input(int _i) { i = _i; }
+        double eval(Frame f) { return f.inputs[i]; }
+    }
+
+    static final class Local extends Node {
+        final int i;
+        Local(int _i) { i = _i; }
+        double eval(Frame f) { return f.locals[i]; }
+    }
+
+    static final class Time extends Node {
+        double eval(Frame f) { return f.t; }
+    }
+
+    static final class Neg extends Node {
+        final Node a;
+        Neg(Node _a) { a = _a; }
+        double eval(Frame f) { return -a.eval(f); }
+    }
+
+    static final class Add extends Node {
+        final Node a, b;
+        Add(Node _a, Node _b) { a = _a; b = _b; }
+        double eval(Frame f) { return a.eval(f) + b.eval(f); }
+    }
+
+    static final class Sub extends Node {
+        final Node a, b;
+        Sub(Node _a, Node _b) { a = _a; b = _b; }
+        double eval(Frame f) { return a.eval(f) - b.eval(f); }
+    }
+
+    static final class Mul extends Node {
+        final Node a, b;
+        Mul(Node _a, Node _b) { a = _a; b = _b; }
+        double eval(Frame f) { return a.eval(f) * b.eval(f); }
+    }
+
+    static final class Div extends Node {
+        final Node a, b;
+        Div(Node _a, Node _b) { a = _a; b = _b; }
+        double eval(Frame f) { return a.eval(f) / b.eval(f); }
+    }
+
+    static final class AddConst extends Node {
+        final double c;
+        final Node a;
+        AddConst(double _c, Node _a) { c = _c; a = _a; }
+        double eval(Frame f) { return c + a.eval(f); }
+    }
+
+    static final class MulConst extends Node {
+        final double c;
+        final Node a;
+        MulConst(double _c, Node _a) { c = _c; a = _a; }
+        double eval(Frame f) { return c * a.eval(f); }
+    }
+
+    // c/a
+    static final class ConstDiv extends Node {
+        final double c;
+        final Node a;
+        ConstDiv(double _c, Node _a) { c = _c; a = _a; }
+        double eval(Frame f) { return c / a.eval(f); }
+    }
+
+    static final class Square extends Node {
+        final Node a;
+        Square(Node _a) { a = _a; }
+        double eval(Frame f) { double x = a.eval(f); return x*x; }
+    }
+
+    static final class Cube extends Node {
+        final Node a;
+        Cube(Node _a) { a = _a; }
+        double eval(Frame f) { double x = a.eval(f); return x*x*x; }
+    }
+
+    static final class Fourth extends Node {
+        final Node a;
+        Fourth(Node _a) { a = _a; }
+        double eval(Frame f) { double x = a.eval(f); double x2 = x*x; return x2*x2; }
+    }
+
+    // Other positive integer powers, by repeated squaring
+    static final class PowInt extends Node {
+        final Node a;
+        final int n;
+        PowInt(Node _a, int _n) { a = _a; n = _n; }
+        double eval(Frame f) {
+            double x = a.eval(f);
+            double result = 1;
+            for (int k = n; k > 0; k >>= 1) {
+                if ((k & 1) != 0) {
+                    result *= x;
+                }
+                x *= x;
+            }
+            return result;
+        }
+    }
+
+    static final class Pow extends Node {
+        final Node a, b;
+        Pow(Node _a, Node _b) { a = _a; b = _b; }
+        double eval(Frame f) { return Math.pow(a.eval(f), b.eval(f)); }
+    }
+
+    static final class Exp extends Node {
+        final Node a;
+        Exp(Node _a) { a = _a; }
+        double eval(Frame f) { return Math.exp(a.eval(f)); }
+    }
+
+    // Unit step, as in Dsys: 0 if a < 0, else 1
+    static final class Step extends Node {
+        final Node a;
+        Step(Node _a) { a = _a; }
+        double eval(Frame f) { return (a.eval(f) < 0) ? 0 : 1; }
+    }
+}
@@ -2,6 +2,7 @@ package BSimJohnsonCounter;
 
 import BSimDFlipFlopKomac.SynchronousFlipFlop.ActivatorBacterium;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.RepressorBacterium;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.SpeciesField;
 import bsim.BSim;
 import bsim.BSimChemicalField;
 import bsim.BSimTicker;
@@ -692,50 +693,11 @@ public class JohnsonCounterTest {
                         qcField = qcFieldStart;
                     }
 
-                    int[] i_boxes = iField.getBoxes();
-                    //Average concentrations
-                    double i_conc = 0;
-                    for (int i = 0; i < i_boxes[0]; i++) {
-                        for (int j = 0; j < i_boxes[1]; j++) {
-                            i_conc += iField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] h_boxes = hField.getBoxes();
-                    //Average concentrations
-                    double h_conc = 0;
-                    for (int i = 0; i < i_boxes[0]; i++) {
-                        for (int j = 0; j < i_boxes[1]; j++) {
-                            h_conc += hField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] q_boxes = qField.getBoxes();
-                    //Average concentrations
-                    double q_conc = 0;
-                    for (int i = 0; i < q_boxes[0]; i++) {
-                        for (int j = 0; j < q_boxes[1]; j++) {
-                            q_conc += qField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] qc_boxes = qcField.getBoxes();
-                    //Average concentrations
-                    double qc_conc = 0;
-                    for (int i = 0; i < qc_boxes[0]; i++) {
-                        for (int j = 0; j < qc_boxes[1]; j++) {
-                            qc_conc += qcField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    i_conc /= i_boxes[0] * i_boxes[1];
-                    h_conc /= h_boxes[0] * h_boxes[1];
-                    q_conc /= q_boxes[0] * q_boxes[1];
-                    qc_conc /= qc_boxes[0] * qc_boxes[1];
+                    //Average concentrations, maintained by the fields
+                    double i_conc = SpeciesField.mean(iField);
+                    double h_conc = SpeciesField.mean(hField);
+                    double q_conc = SpeciesField.mean(qField);
+                    double qc_conc = SpeciesField.mean(qcField);
                     write(o + "," + h_conc + "," + i_conc + "," + q_conc + "," + qc_conc);
 
                     if (sim.getSimulationTime() % 100 == 0) {
@@ -782,50 +744,11 @@ public class JohnsonCounterTest {
                         qcField = qcFieldStart;
                     }
 
-                    int[] i_boxes = iField.getBoxes();
-                    //Average concentrations
-                    double i_conc = 0;
-                    for (int i = 0; i < i_boxes[0]; i++) {
-                        for (int j = 0; j < i_boxes[1]; j++) {
-                            i_conc += iField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] h_boxes = hField.getBoxes();
-                    //Average concentrations
-                    double h_conc = 0;
-                    for (int i = 0; i < i_boxes[0]; i++) {
-                        for (int j = 0; j < i_boxes[1]; j++) {
-                            h_conc += hField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] q_boxes = qField.getBoxes();
-                    //Average concentrations
-                    double q_conc = 0;
-                    for (int i = 0; i < q_boxes[0]; i++) {
-                        for (int j = 0; j < q_boxes[1]; j++) {
-                            q_conc += qField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] qc_boxes = qcField.getBoxes();
-                    //Average concentrations
-                    double qc_conc = 0;
-                    for (int i = 0; i < qc_boxes[0]; i++) {
-                        for (int j = 0; j < qc_boxes[1]; j++) {
-                            qc_conc += qcField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    i_conc /= i_boxes[0] * i_boxes[1];
-                    h_conc /= h_boxes[0] * h_boxes[1];
-                    q_conc /= q_boxes[0] * q_boxes[1];
-                    qc_conc /= qc_boxes[0] * qc_boxes[1];
+                    //Average concentrations, maintained by the fields
+                    double i_conc = SpeciesField.mean(iField);
+                    double h_conc = SpeciesField.mean(hField);
+                    double q_conc = SpeciesField.mean(qField);
+                    double qc_conc = SpeciesField.mean(qcField);
                     write(o + "," + h_conc + "," + i_conc + "," + q_conc + "," + qc_conc);
 
                     if (sim.getSimulationTime() % 100 == 0) {
@@ -872,50 +795,11 @@ public class JohnsonCounterTest {
                         qcField = qcFieldStart;
                     }
 
-                    int[] i_boxes = iField.getBoxes();
-                    //Average concentrations
-                    double i_conc = 0;
-                    for (int i = 0; i < i_boxes[0]; i++) {
-                        for (int j = 0; j < i_boxes[1]; j++) {
-                            i_conc += iField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] h_boxes = hField.getBoxes();
-                    //Average concentrations
-                    double h_conc = 0;
-                    for (int i = 0; i < i_boxes[0]; i++) {
-                        for (int j = 0; j < i_boxes[1]; j++) {
-                            h_conc += hField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] q_boxes = qField.getBoxes();
-                    //Average concentrations
-                    double q_conc = 0;
-                    for (int i = 0; i < q_boxes[0]; i++) {
-                        for (int j = 0; j < q_boxes[1]; j++) {
-                            q_conc += qField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] qc_boxes = qcField.getBoxes();
-                    //Average concentrations
-                    double qc_conc = 0;
-                    for (int i = 0; i < qc_boxes[0]; i++) {
-                        for (int j = 0; j < qc_boxes[1]; j++) {
-                            qc_conc += qcField.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    i_conc /= i_boxes[0] * i_boxes[1];
-                    h_conc /= h_boxes[0] * h_boxes[1];
-                    q_conc /= q_boxes[0] * q_boxes[1];
-                    qc_conc /= qc_boxes[0] * qc_boxes[1];
+                    //Average concentrations, maintained by the fields
+                    double i_conc = SpeciesField.mean(iField);
+                    double h_conc = SpeciesField.mean(hField);
+                    double q_conc = SpeciesField.mean(qField);
+                    double qc_conc = SpeciesField.mean(qcField);
                     write(o + "," + h_conc + "," + i_conc + "," + q_conc + "," + qc_conc);
 
                     if (sim.getSimulationTime() % 100 == 0) {
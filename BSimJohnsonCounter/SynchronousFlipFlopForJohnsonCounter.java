@@ -3,7 +3,12 @@ package BSimJohnsonCounter;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.ActivatorBacterium;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.BSimDBacterium;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.ChenParameters;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.PopulationGenerator;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.RepressorBacterium;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.MultiSpeciesField;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.SpeciesField;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.ChenPopulationDDE;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.DsysPopulation;
 import bsim.BSim;
 import bsim.BSimChemicalField;
 import bsim.BSimTicker;
@@ -64,6 +69,9 @@ public class SynchronousFlipFlopForJohnsonCounter {
     @Parameter(names = "-qspars", arity = 4, description = "Multipliers for the quorum sensing parameters. [D_H, D_I, phi_H, phi_I].")
     public List<Double> qsPars = new ArrayList<>(Arrays.asList(new Double[] {1., 1., 1., 1.}));
 
+    @Parameter(names = "-immobilized", description = "Fix the cells in place: skip their mechanics and compute their field boxes once (growth must be disabled).")
+    public boolean immobilized = false;
+
 
     /**
      * Whether to enable growth
@@ -80,6 +88,9 @@ public class SynchronousFlipFlopForJohnsonCounter {
     }
 
     public FlipFlopResult run(BSim sim, BSimChemicalField d) {
+        if(immobilized && WITH_GROWTH) {
+            throw new IllegalArgumentException("Cells cannot be immobilized when growth is enabled");
+        }
         double simX = simDimensions.get(0);
         double simY = simDimensions.get(1);
         double simZ = simDimensions.get(2);
@@ -119,12 +130,16 @@ public class SynchronousFlipFlopForJohnsonCounter {
 
         double external_decay = mu_e/60.0;
 
-        BSimChemicalField h_e_field  = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
-        BSimChemicalField i_e_field  = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
+        // The species of this flip-flop share the grid, diffusivity and decay: one field, updated in one sweep
+        // (d comes from the previous stage)
+        final MultiSpeciesField chemicals = new MultiSpeciesField(sim, 4, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
+
+        BSimChemicalField h_e_field  = chemicals.species(0);
+        BSimChemicalField i_e_field  = chemicals.species(1);
 
         BSimChemicalField d_e_field  = d;
-        BSimChemicalField q_e_field  = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
-        BSimChemicalField qc_e_field = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
+        BSimChemicalField q_e_field  = chemicals.species(2);
+        BSimChemicalField qc_e_field = chemicals.species(3);
 
         // ICs as in Chen paper (as in original DDEs)
         h_e_field.setConc(10.0);
@@ -139,28 +154,30 @@ public class SynchronousFlipFlopForJohnsonCounter {
         final ArrayList<RepressorBacterium> bacteriaRepressors = new ArrayList();
         final ArrayList<BSimDBacterium> bacteriaD = new ArrayList();
 
+        // The GRNs of all D cells are integrated together, in one sweep per tick
+        final DsysPopulation dPopulation = new DsysPopulation();
+
+        // Likewise for the activator and repressor GRNs, one population per cell type
+        final ChenPopulationDDE activatorPopulation = ChenPopulationDDE.activators();
+        final ChenPopulationDDE repressorPopulation = ChenPopulationDDE.repressors();
+
         // Track all of the bacteria in the simulation, for use of common methods etc
         final ArrayList<BSimCapsuleBacterium> bacteriaAll = new ArrayList();
 
 
         Random bacRng = new Random();
 
-        generator:
+        // Cell centres at least sqrt(4.5) apart, in random order: activators first, then repressors, then D cells
+        List<Vector3d> centres = PopulationGenerator.poissonDisk(nActivatorStart + nRepressorStart + nD1Bacterium,
+                Math.sqrt(4.5), 1.1, 1.1, sim.getBound().x - 1.1, sim.getBound().y - 1.1, bacRng);
+        Iterator<Vector3d> nextCentre = centres.iterator();
+
         while(bacteriaActivators.size() < nActivatorStart) {
             double bL = 1. + 0.1*(bacRng.nextDouble() - 0.5);
             double angle = bacRng.nextDouble()*2*Math.PI;
 
-            Vector3d pos = new Vector3d(1.1 + bacRng.nextDouble()*(sim.getBound().x - 2.2), 1.1 + bacRng.nextDouble()*(sim.getBound().y - 2.2), bacRng.nextDouble()*0.1*(simZ - 0.1)/2.0);
-            // Test intersection
-
-            Vector3d distance = new Vector3d(0,0,0);
-
-            for(BSimCapsuleBacterium otherBac : bacteriaAll){
-                distance.sub(otherBac.position, pos);
-                if(distance.lengthSquared() < 4.5){
-                    continue generator;
-                }
-            }
+            Vector3d pos = nextCentre.next();
+            pos.z = bacRng.nextDouble()*0.1*(simZ - 0.1)/2.0;
 
             double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
@@ -170,27 +187,18 @@ public class SynchronousFlipFlopForJohnsonCounter {
                     h_e_field, i_e_field, ICs);
 
             bac.L = bL;
+            bac.setPopulation(activatorPopulation);
 
             bacteriaActivators.add(bac);
             bacteriaAll.add(bac);
         }
 
-        generator:
         while(bacteriaRepressors.size() < nRepressorStart) {
             double bL = 1. + 0.1*(bacRng.nextDouble() - 0.5);
             double angle = bacRng.nextDouble()*2*Math.PI;
 
-            Vector3d pos = new Vector3d(1.1 + bacRng.nextDouble()*(sim.getBound().x - 2.2), 1.1 + bacRng.nextDouble()*(sim.getBound().y - 2.2), simZ/2.0);
-            // Test intersection
-
-            Vector3d distance = new Vector3d(0,0,0);
-
-            for(BSimCapsuleBacterium otherBac : bacteriaAll){
-                distance.sub(otherBac.position, pos);
-                if(distance.lengthSquared() < 4.5){
-                    continue generator;
-                }
-            }
+            Vector3d pos = nextCentre.next();
+            pos.z = simZ/2.0;
 
             double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
@@ -200,28 +208,19 @@ public class SynchronousFlipFlopForJohnsonCounter {
                     h_e_field, i_e_field, ICs);
 
             bac.L = bL;
+            bac.setPopulation(repressorPopulation);
 
             bacteriaRepressors.add(bac);
             bacteriaAll.add(bac);
         }
 
 
-        generator:
         while(bacteriaD.size() < nD1Bacterium) {
             double bL = 1. + 0.1*(bacRng.nextDouble() - 0.5);
             double angle = bacRng.nextDouble()*2*Math.PI;
 
-            Vector3d pos = new Vector3d(1.1 + bacRng.nextDouble()*(sim.getBound().x - 2.2), 1.1 + bacRng.nextDouble()*(sim.getBound().y - 2.2), simZ/2.0);
-            // Test intersection
-
-            Vector3d distance = new Vector3d(0,0,0);
-
-            for(BSimCapsuleBacterium otherBac : bacteriaAll){
-                distance.sub(otherBac.position, pos);
-                if(distance.lengthSquared() < 4.5){
-                    continue generator;
-                }
-            }
+            Vector3d pos = nextCentre.next();
+            pos.z = simZ/2.0;
 
             BSimDBacterium bac = new BSimDBacterium (sim,
                     new Vector3d(pos.x - bL*Math.sin(angle), pos.y - bL*Math.cos(angle), pos.z),
@@ -229,11 +228,25 @@ public class SynchronousFlipFlopForJohnsonCounter {
                     h_e_field, i_e_field, d_e_field, q_e_field, qc_e_field);
 
             bac.L = bL;
+            bac.setPopulation(dPopulation);
 
             bacteriaD.add(bac);
             bacteriaAll.add(bac);
         }
 
+        // Immobilized cells: no mechanics in action(), and their field boxes computed once, here
+        if(immobilized) {
+            for(ActivatorBacterium b : bacteriaActivators) {
+                b.immobilize();
+            }
+            for(RepressorBacterium b : bacteriaRepressors) {
+                b.immobilize();
+            }
+            for(BSimDBacterium b : bacteriaD) {
+                b.immobilize();
+            }
+        }
+
         // Set up stuff for growth.
         final ArrayList<ActivatorBacterium> act_born = new ArrayList();
         final ArrayList<ActivatorBacterium> act_dead = new ArrayList();
@@ -266,6 +279,22 @@ public class SynchronousFlipFlopForJohnsonCounter {
                     b.action();
                 }
 
+                // D cell GRNs (re-scaled time units), then exchange with the fields
+                dPopulation.step(sim.getTime()/60, sim.getDt()/60);
+                for(BSimDBacterium b : bacteriaD) {
+                    b.exchange();
+                }
+
+                // Activator and repressor GRNs (one solver reading step), then exchange with the fields
+                activatorPopulation.step(sim.getDt()/60);
+                for(ActivatorBacterium b : bacteriaActivators) {
+                    b.exchange();
+                }
+                repressorPopulation.step(sim.getDt()/60);
+                for(RepressorBacterium b : bacteriaRepressors) {
+                    b.exchange();
+                }
+
                 long endTimeAction = System.nanoTime();
                 if((sim.getTimestep() % LOG_INTERVAL) == 0) {
                     System.out.println("Action update for " + bacteriaAll.size() + " bacteria took " + (endTimeAction - startTimeAction)/1e6 + " ms.");
@@ -274,11 +303,8 @@ public class SynchronousFlipFlopForJohnsonCounter {
                 // ********************************************** Chemical fields
                 startTimeAction = System.nanoTime();
 
-                h_e_field.update();
-                i_e_field.update();
+                chemicals.update();
                 d_e_field.update();
-                q_e_field.update();
-                qc_e_field.update();
 
                 endTimeAction = System.nanoTime();
                 if((sim.getTimestep() % LOG_INTERVAL) == 0) {
@@ -351,6 +377,9 @@ public class SynchronousFlipFlopForJohnsonCounter {
                             act_dead.add(b);
                         }
                     }
+                    for (ActivatorBacterium b : act_dead) {
+                        b.leavePopulation();
+                    }
                     bacteriaActivators.removeAll(act_dead);
                     bacteriaAll.removeAll(act_dead);
                     act_dead.clear();
@@ -362,6 +391,9 @@ public class SynchronousFlipFlopForJohnsonCounter {
                             rep_dead.add(b);
                         }
                     }
+                    for (RepressorBacterium b : rep_dead) {
+                        b.leavePopulation();
+                    }
                     bacteriaRepressors.removeAll(rep_dead);
                     bacteriaAll.removeAll(rep_dead);
                     rep_dead.clear();
@@ -372,6 +404,9 @@ public class SynchronousFlipFlopForJohnsonCounter {
                             d_dead.add(b);
                         }
                     }
+                    for (BSimDBacterium b : d_dead) {
+                        b.leavePopulation();
+                    }
                     bacteriaD.removeAll(d_dead);
                     bacteriaAll.removeAll(d_dead);
                     d_dead.clear();
@@ -564,50 +599,11 @@ public class SynchronousFlipFlopForJohnsonCounter {
                     String buffer = new String();
                     //Contentration in the middle
 
-                    int[] i_boxes = i_e_field.getBoxes();
-                    //Average concentrations
-                    double i_conc = 0;
-                    for(int i = 0; i < i_boxes[0]; i++) {
-                        for(int j = 0; j < i_boxes[1]; j++) {
-                            i_conc += i_e_field.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] h_boxes = h_e_field.getBoxes();
-                    //Average concentrations
-                    double h_conc = 0;
-                    for(int i = 0; i < i_boxes[0]; i++) {
-                        for(int j = 0; j < i_boxes[1]; j++) {
-                            h_conc += h_e_field.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] q_boxes = q_e_field.getBoxes();
-                    //Average concentrations
-                    double q_conc = 0;
-                    for(int i = 0; i < q_boxes[0]; i++) {
-                        for(int j = 0; j < q_boxes[1]; j++) {
-                            q_conc += q_e_field.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    int[] qc_boxes = qc_e_field.getBoxes();
-                    //Average concentrations
-                    double qc_conc = 0;
-                    for(int i = 0; i < qc_boxes[0]; i++) {
-                        for(int j = 0; j < qc_boxes[1]; j++) {
-                            qc_conc += qc_e_field.getConc(i, j, 0);
-                        }
-
-                    }
-
-                    i_conc /= i_boxes[0] * i_boxes[1];
-                    h_conc /= h_boxes[0] * h_boxes[1];
-                    q_conc /= q_boxes[0] * q_boxes[1];
-                    qc_conc /= qc_boxes[0] * qc_boxes[1];
+                    //Average concentrations, maintained by the fields
+                    double i_conc = SpeciesField.mean(i_e_field);
+                    double h_conc = SpeciesField.mean(h_e_field);
+                    double q_conc = SpeciesField.mean(q_e_field);
+                    double qc_conc = SpeciesField.mean(qc_e_field);
                     write(o + "," + h_conc+ "," + i_conc+ "," + q_conc+ "," + qc_conc);
 
                     if(sim.getSimulationTime()%100 == 0){
@@ -3,7 +3,11 @@ package BSimJohnsonCounter;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.ActivatorBacterium;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.BSimDBacterium;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.ChenParameters;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.PopulationGenerator;
 import BSimDFlipFlopKomac.SynchronousFlipFlop.RepressorBacterium;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.field.MultiSpeciesField;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.ChenPopulationDDE;
+import BSimDFlipFlopKomac.SynchronousFlipFlop.grn.DsysPopulation;
 import bsim.BSim;
 import bsim.BSimChemicalField;
 import bsim.capsule.BSimCapsuleBacterium;
@@ -14,6 +18,7 @@ import com.beust.jcommander.Parameter;
 import javax.vecmath.Vector3d;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 
@@ -53,6 +58,9 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
     @Parameter(names = "-qspars", arity = 4, description = "Multipliers for the quorum sensing parameters. [D_H, D_I, phi_H, phi_I].")
     public List<Double> qsPars = new ArrayList<>(Arrays.asList(new Double[]{1., 1., 1., 1.}));
 
+    @Parameter(names = "-immobilized", description = "Fix the cells in place: skip their mechanics and compute their field boxes once (growth must be disabled).")
+    public boolean immobilized = false;
+
 
     /**
      * Whether to enable growth
@@ -88,6 +96,8 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
     double external_diffusivity;
     double external_decay = mu_e;
 
+    // h, i, q and qc of this flip-flop, updated in one sweep (d comes from the previous stage)
+    MultiSpeciesField chemicals;
     BSimChemicalField h_e_field;
     BSimChemicalField i_e_field;
     BSimChemicalField d_e_field;
@@ -99,6 +109,13 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
     final ArrayList<RepressorBacterium> bacteriaRepressors = new ArrayList();
     final ArrayList<BSimDBacterium> bacteriaD = new ArrayList();
 
+    // The GRNs of all D cells are integrated together, in one sweep per tick
+    final DsysPopulation dPopulation = new DsysPopulation();
+
+    // Likewise for the activator and repressor GRNs, one population per cell type
+    final ChenPopulationDDE activatorPopulation = ChenPopulationDDE.activators();
+    final ChenPopulationDDE repressorPopulation = ChenPopulationDDE.repressors();
+
     // Track all of the bacteria in the simulation, for use of common methods etc
     final ArrayList<BSimCapsuleBacterium> bacteriaAll = new ArrayList();
 
@@ -151,12 +168,14 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
 
         external_decay = mu_e / 60.0;
 
-        h_e_field = new BSimChemicalField(sim, new int[]{(int) simX, (int) simY, 1}, external_diffusivity, external_decay);
-        i_e_field = new BSimChemicalField(sim, new int[]{(int) simX, (int) simY, 1}, external_diffusivity, external_decay);
+        chemicals = new MultiSpeciesField(sim, 4, new int[]{(int) simX, (int) simY, 1}, external_diffusivity, external_decay);
+
+        h_e_field = chemicals.species(0);
+        i_e_field = chemicals.species(1);
 
         d_e_field = d;
-        q_e_field = new BSimChemicalField(sim, new int[]{(int) simX, (int) simY, 1}, external_diffusivity, external_decay);
-        qc_e_field = new BSimChemicalField(sim, new int[]{(int) simX, (int) simY, 1}, external_diffusivity, external_decay);
+        q_e_field = chemicals.species(2);
+        qc_e_field = chemicals.species(3);
 
         // ICs as in Chen paper (as in original DDEs)
         h_e_field.setConc(10.0);
@@ -169,22 +188,17 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
 
         Random bacRng = new Random();
 
-        generator:
+        // Cell centres at least sqrt(4.5) apart, in random order: activators first, then repressors, then D cells
+        List<Vector3d> centres = PopulationGenerator.poissonDisk(nActivatorStart + nRepressorStart + nD1Bacterium,
+                Math.sqrt(4.5), 1.1, 1.1, sim.getBound().x - 1.1, sim.getBound().y - 1.1, bacRng);
+        Iterator<Vector3d> nextCentre = centres.iterator();
+
         while (bacteriaActivators.size() < nActivatorStart) {
             double bL = 1. + 0.1 * (bacRng.nextDouble() - 0.5);
             double angle = bacRng.nextDouble() * 2 * Math.PI;
 
-            Vector3d pos = new Vector3d(1.1 + bacRng.nextDouble() * (sim.getBound().x - 2.2), 1.1 + bacRng.nextDouble() * (sim.getBound().y - 2.2), bacRng.nextDouble() * 0.1 * (simZ - 0.1) / 2.0);
-            // Test intersection
-
-            Vector3d distance = new Vector3d(0, 0, 0);
-
-            for (BSimCapsuleBacterium otherBac : bacteriaAll) {
-                distance.sub(otherBac.position, pos);
-                if (distance.lengthSquared() < 4.5) {
-                    continue generator;
-                }
-            }
+            Vector3d pos = nextCentre.next();
+            pos.z = bacRng.nextDouble() * 0.1 * (simZ - 0.1) / 2.0;
 
             double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
@@ -194,27 +208,18 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
                     h_e_field, i_e_field, ICs);
 
             bac.L = bL;
+            bac.setPopulation(activatorPopulation);
 
             bacteriaActivators.add(bac);
             bacteriaAll.add(bac);
         }
 
-        generator:
         while (bacteriaRepressors.size() < nRepressorStart) {
             double bL = 1. + 0.1 * (bacRng.nextDouble() - 0.5);
             double angle = bacRng.nextDouble() * 2 * Math.PI;
 
-            Vector3d pos = new Vector3d(1.1 + bacRng.nextDouble() * (sim.getBound().x - 2.2), 1.1 + bacRng.nextDouble() * (sim.getBound().y - 2.2), simZ / 2.0);
-            // Test intersection
-
-            Vector3d distance = new Vector3d(0, 0, 0);
-
-            for (BSimCapsuleBacterium otherBac : bacteriaAll) {
-                distance.sub(otherBac.position, pos);
-                if (distance.lengthSquared() < 4.5) {
-                    continue generator;
-                }
-            }
+            Vector3d pos = nextCentre.next();
+            pos.z = simZ / 2.0;
 
             double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
@@ -224,28 +229,19 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
                     h_e_field, i_e_field, ICs);
 
             bac.L = bL;
+            bac.setPopulation(repressorPopulation);
 
             bacteriaRepressors.add(bac);
             bacteriaAll.add(bac);
         }
 
 
-        generator:
         while (bacteriaD.size() < nD1Bacterium) {
             double bL = 1. + 0.1 * (bacRng.nextDouble() - 0.5);
             double angle = bacRng.nextDouble() * 2 * Math.PI;
 
-            Vector3d pos = new Vector3d(1.1 + bacRng.nextDouble() * (sim.getBound().x - 2.2), 1.1 + bacRng.nextDouble() * (sim.getBound().y - 2.2), simZ / 2.0);
-            // Test intersection
-
-            Vector3d distance = new Vector3d(0, 0, 0);
-
-            for (BSimCapsuleBacterium otherBac : bacteriaAll) {
-                distance.sub(otherBac.position, pos);
-                if (distance.lengthSquared() < 4.5) {
-                    continue generator;
-                }
-            }
+            Vector3d pos = nextCentre.next();
+            pos.z = simZ / 2.0;
 
             BSimDBacterium bac = new BSimDBacterium(sim,
                     new Vector3d(pos.x - bL * Math.sin(angle), pos.y - bL * Math.cos(angle), pos.z),
@@ -253,10 +249,27 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
                     h_e_field, i_e_field, d_e_field, q_e_field, qc_e_field);
 
             bac.L = bL;
+            bac.setPopulation(dPopulation);
 
             bacteriaD.add(bac);
             bacteriaAll.add(bac);
         }
+
+        // Immobilized cells: no mechanics in action(), and their field boxes computed once, here
+        if (immobilized) {
+            if (WITH_GROWTH) {
+                throw new IllegalArgumentException("Cells cannot be immobilized when growth is enabled");
+            }
+            for (ActivatorBacterium b : bacteriaActivators) {
+                b.immobilize();
+            }
+            for (RepressorBacterium b : bacteriaRepressors) {
+                b.immobilize();
+            }
+            for (BSimDBacterium b : bacteriaD) {
+                b.immobilize();
+            }
+        }
     }
 
     public FlipFlopResult animateFlipFlop(BSim sim, BSimChemicalField d) {
@@ -269,6 +282,22 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
             b.action();
         }
 
+        // D cell GRNs (re-scaled time units), then exchange with the fields
+        dPopulation.step(sim.getTime() / 60, sim.getDt() / 60);
+        for (BSimDBacterium b : bacteriaD) {
+            b.exchange();
+        }
+
+        // Activator and repressor GRNs (one solver reading step), then exchange with the fields
+        activatorPopulation.step(sim.getDt() / 60);
+        for (ActivatorBacterium b : bacteriaActivators) {
+            b.exchange();
+        }
+        repressorPopulation.step(sim.getDt() / 60);
+        for (RepressorBacterium b : bacteriaRepressors) {
+            b.exchange();
+        }
+
         long endTimeAction = System.nanoTime();
         if ((sim.getTimestep() % LOG_INTERVAL) == 0) {
             System.out.println("Action update for " + bacteriaAll.size() + " bacteria took " + (endTimeAction - startTimeAction) / 1e6 + " ms.");
@@ -277,11 +306,8 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
         // ********************************************** Chemical fields
         startTimeAction = System.nanoTime();
 
-        h_e_field.update();
-        i_e_field.update();
+        chemicals.update();
         d_e_field.update();
-        q_e_field.update();
-        qc_e_field.update();
 
         endTimeAction = System.nanoTime();
         if ((sim.getTimestep() % LOG_INTERVAL) == 0) {
@@ -354,6 +380,9 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
                     act_dead.add(b);
                 }
             }
+            for (ActivatorBacterium b : act_dead) {
+                b.leavePopulation();
+            }
             bacteriaActivators.removeAll(act_dead);
             bacteriaAll.removeAll(act_dead);
             act_dead.clear();
@@ -365,6 +394,9 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
                     rep_dead.add(b);
                 }
             }
+            for (RepressorBacterium b : rep_dead) {
+                b.leavePopulation();
+            }
             bacteriaRepressors.removeAll(rep_dead);
             bacteriaAll.removeAll(rep_dead);
             rep_dead.clear();
@@ -375,6 +407,9 @@ public class SynchronousFlipFlopForJohnsonCounterTest {
                     d_dead.add(b);
                 }
             }
+            for (BSimDBacterium b : d_dead) {
+                b.leavePopulation();
+            }
             bacteriaD.removeAll(d_dead);
             bacteriaAll.removeAll(d_dead);
             d_dead.clear();